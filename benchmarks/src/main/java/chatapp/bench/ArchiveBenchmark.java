@@ -0,0 +1,98 @@
+package chatapp.bench;
+
+import chatapp.ChatServer;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Exporting every history as a columnar archive versus the getAllMessages() + toString() dump
+// it replaces, and importing the archive into an empty server. Each call covers the whole
+// data set; archive and dump sizes are printed once per trial.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ArchiveBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int messages;
+
+    @Param({"200"})
+    public int users;
+
+    private ChatServer server;
+    private Path dir;
+    private Path archive;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        List<User> all = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            User usr = new User("archive-user" + i, server);
+            server.registerUser(usr);
+            all.add(usr);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < messages; i++) {
+            User from = all.get(random.nextInt(users));
+            String to = all.get(random.nextInt(users)).getName();
+            from.sendMessage(to, "message " + i + " about topic " + random.nextInt(50));
+        }
+        dir = Files.createTempDirectory("archive-bench");
+        archive = dir.resolve("histories.arc");
+        server.exportHistories(archive);
+        exportAsText();
+        System.out.printf("%n  archive %,d bytes, text dump %,d bytes%n", Files.size(archive), Files.size(dir.resolve("histories.txt")));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(archive);
+        Files.deleteIfExists(dir.resolve("histories.txt"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public long exportArchive() {
+        return server.exportHistories(archive);
+    }
+
+    @Benchmark
+    public long exportAsText() throws IOException {
+        long lines = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(dir.resolve("histories.txt"), StandardCharsets.UTF_8)) {
+            for (User usr : server.getUsers()) {
+                out.write(usr.getName());
+                out.newLine();
+                for (Message msg : usr.getHistory().getAllMessages()) {
+                    out.write(msg.toString());
+                    out.newLine();
+                    lines++;
+                }
+            }
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public long importArchive() {
+        ChatServer target = new ChatServer();
+        target.setEventSink(NoOpEventSink.INSTANCE);
+        return target.importHistories(archive);
+    }
+}
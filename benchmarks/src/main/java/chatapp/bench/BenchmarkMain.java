@@ -0,0 +1,27 @@
+package chatapp.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Entry point of benchmarks.jar. Always attaches the GC profiler (alloc rate, bytes/op) and runs
+// the selection once per thread count in -Dbench.threads (default "1,4").
+// Any regular JMH arguments, e.g. a benchmark regex or -p userCount=1000, pass through.
+//
+//   java -Dbench.threads=1,8 -jar target/benchmarks.jar ChatServerBenchmark
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        for (String threads : System.getProperty("bench.threads", "1,4").split(",")) {
+            new Runner(new OptionsBuilder()
+                    .parent(cli)
+                    .addProfiler(GCProfiler.class)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .build()).run();
+        }
+    }
+}
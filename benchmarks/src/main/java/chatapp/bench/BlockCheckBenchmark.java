@@ -0,0 +1,105 @@
+package chatapp.bench;
+
+import chatapp.BlockList;
+import chatapp.ChatServer;
+import chatapp.NoOpEventSink;
+import chatapp.User;
+import chatapp.UserDictionary;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Per-recipient block checks against receivers with empty, small and imported block lists,
+// next to the HashSet<String> lookup they replaced, plus importing a list entry by entry
+// versus with one blockUsers call.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class BlockCheckBenchmark {
+
+    @Param({"0", "10", "100000"})
+    public int blockListSize;
+
+    private ChatServer server;
+    private User sender;
+    private int receiverId;
+    private int allowedId;
+    private int blockedId;
+    private Set<String> nameSet;
+    private List<String> blockees;
+    private int[] blockeeIds;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        User receiver = new User("receiver", server);
+        sender = new User("sender", server);
+        server.registerUser(receiver);
+        server.registerUser(sender);
+        receiverId = receiver.getId();
+        allowedId = sender.getId();
+
+        blockees = new ArrayList<>(blockListSize);
+        for (int i = 0; i < blockListSize; i++) {
+            blockees.add("blocked" + i);
+        }
+        // Blocking only takes names the server has seen, so they are known before the list is built.
+        blockeeIds = new int[blockListSize];
+        for (int i = 0; i < blockListSize; i++) {
+            blockeeIds[i] = UserDictionary.GLOBAL.idOf(blockees.get(i));
+        }
+        server.blockUsers("receiver", blockees);
+        blockedId = blockListSize > 0 ? blockeeIds[blockListSize / 2] : allowedId;
+        nameSet = new HashSet<>(blockees);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Benchmark
+    public boolean isBlocked_notBlocked() {
+        return server.isBlocked(receiverId, allowedId);
+    }
+
+    @Benchmark
+    public boolean isBlocked_blocked() {
+        return server.isBlocked(receiverId, blockedId);
+    }
+
+    @Benchmark
+    public boolean hashSetOfNames_notBlocked() {
+        return nameSet.contains("sender");
+    }
+
+    @Benchmark
+    public void sendToReceiver(Blackhole bh) {
+        bh.consume(server.sendMessage(sender, List.of("receiver"), "hello"));
+    }
+
+    @Benchmark
+    public BlockList importOneByOne() {
+        BlockList list = new BlockList();
+        for (int id : blockeeIds) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    @Benchmark
+    public BlockList importBulk() {
+        BlockList list = new BlockList();
+        list.addAll(blockeeIds);
+        return list;
+    }
+}
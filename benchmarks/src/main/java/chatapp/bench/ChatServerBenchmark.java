@@ -0,0 +1,138 @@
+package chatapp.bench;
+
+import chatapp.ChatServer;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.SearchMessagesByUser;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Core mediator paths. Thread count is set from the command line (-t) or by BenchmarkMain.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ChatServerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"10", "1000"})
+        public int userCount;
+
+        @Param({"100", "10000"})
+        public int historyDepth;
+
+        @Param({"10", "100000"})
+        public int blockListSize;
+
+        ChatServer server;
+        List<User> users;
+        List<String> names;
+        User heavy;
+        User peer;
+        List<Message> heavyHistory;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            server = new ChatServer();
+            server.setEventSink(NoOpEventSink.INSTANCE);
+            users = new ArrayList<>(userCount);
+            names = new ArrayList<>(userCount);
+            for (int i = 0; i < userCount; i++) {
+                User u = new User("user" + i, server);
+                server.registerUser(u);
+                users.add(u);
+                names.add(u.getName());
+            }
+            heavy = users.get(0);
+            peer = users.get(1);
+
+            for (int i = 0; i < historyDepth; i++) {
+                User from = users.get(1 + i % (userCount - 1));
+                from.sendMessage(heavy.getName(), "history line " + i);
+            }
+            heavyHistory = heavy.getHistory().getAllMessages();
+
+            for (int i = 0; i < blockListSize; i++) {
+                server.blockUser(heavy.getName(), "blocked" + i);
+            }
+        }
+
+        User randomUser() {
+            return users.get(ThreadLocalRandom.current().nextInt(userCount));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Sender {
+        User self;
+        List<String> group;
+
+        @Setup(Level.Iteration)
+        public void setUp(Server s) {
+            self = s.randomUser();
+            group = new ArrayList<>();
+            for (int i = 0; i < Math.min(10, s.userCount); i++) {
+                group.add(s.randomUser().getName());
+            }
+        }
+    }
+
+    @Benchmark
+    public Message sendOneToOne(Server s, Sender sender) {
+        return s.server.sendMessage(sender.self, List.of(s.randomUser().getName()), "hi").join();
+    }
+
+    @Benchmark
+    public Message sendMultiRecipient(Server s, Sender sender) {
+        return s.server.sendMessage(sender.self, sender.group, "hi all").join();
+    }
+
+    @Benchmark
+    public boolean isBlockedMiss(Server s) {
+        return s.server.isBlocked(s.heavy.getName(), s.peer.getName());
+    }
+
+    @Benchmark
+    public boolean isBlockedHit(Server s) {
+        return s.server.isBlocked(s.heavy.getName(), "blocked0");
+    }
+
+    @Benchmark
+    public void iterateConversation(Server s, Blackhole bh) {
+        Iterator<Message> it = s.heavy.iterator(s.peer);
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public void scanConversation(Server s, Blackhole bh) {
+        Iterator<Message> it = new SearchMessagesByUser(s.heavyHistory, s.peer.getName());
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+
+    // Send-then-undo keeps the history depth stable across invocations.
+    @Benchmark
+    public void sendThenUndo(Server s, Sender sender) {
+        s.server.sendMessage(sender.self, List.of(s.heavy.getName()), "oops").join();
+        s.server.undoLastMessage(sender.self);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void printUserHistory(Server s) {
+        s.server.printUserHistory(s.heavy);
+    }
+}
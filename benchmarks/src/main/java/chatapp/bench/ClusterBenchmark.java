@@ -0,0 +1,80 @@
+package chatapp.bench;
+
+import chatapp.ChatCluster;
+import chatapp.InMemoryTransport;
+import chatapp.LoopbackSocketTransport;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.ShardTransport;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Direct-message throughput through a cluster of shards. With one shard every delivery is
+// local; with more, most cross a shard boundary. The loopback transport's score covers the
+// hand-off to the socket; each iteration ends by waiting for the receiving shards to catch up,
+// so a transport that cannot keep up shows as a slow last iteration rather than a fast score.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ClusterBenchmark {
+
+    @Param({"1", "4"})
+    public int shards;
+
+    @Param({"memory", "socket"})
+    public String transport;
+
+    @Param({"256"})
+    public int userCount;
+
+    private ChatCluster cluster;
+    private User[] users;
+    private String[] names;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        ShardTransport t = transport.equals("socket") ? new LoopbackSocketTransport() : new InMemoryTransport();
+        cluster = new ChatCluster(shards, t);
+        cluster.setEventSink(NoOpEventSink.INSTANCE);
+        List<User> created = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            created.add(cluster.createUser("member" + i));
+        }
+        users = created.toArray(new User[0]);
+        names = created.stream().map(User::getName).toArray(String[]::new);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        if (!cluster.awaitQuiescence(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Shards did not drain");
+        }
+        cluster.close();
+    }
+
+    @Benchmark
+    public Message directMessage() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        User from = users[random.nextInt(users.length)];
+        return from.sendMessage(names[random.nextInt(names.length)], "hello").join();
+    }
+
+    @Benchmark
+    public Message fanOutToEight() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        User from = users[random.nextInt(users.length)];
+        List<String> to = new ArrayList<>(8);
+        for (int i = 0; i < 8; i++) {
+            to.add(names[random.nextInt(names.length)]);
+        }
+        return from.sendMessage(to, "hello all").join();
+    }
+}
@@ -0,0 +1,66 @@
+package chatapp.bench;
+
+import chatapp.ChatHistory;
+import chatapp.ChatServer;
+import chatapp.Message;
+import chatapp.SearchMessagesByUser;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Indexed ChatHistory.iterator(User) against the original full-history scan.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversationLookupBenchmark {
+
+    @Param({"1000", "100000", "500000"})
+    public int historySize;
+
+    @Param({"100"})
+    public int peers;
+
+    private ChatHistory history;
+    private List<Message> allMessages;
+    private User peer;
+
+    @Setup
+    public void setUp() {
+        ChatServer server = new ChatServer();
+        history = new ChatHistory();
+        peer = new User("Peer0", server);
+
+        Random random = new Random(42);
+        Instant ts = Instant.now();
+        for (int i = 0; i < historySize; i++) {
+            String from = "Peer" + random.nextInt(peers);
+            history.addHistory(new Message(from, List.of("Owner"), ts.plusMillis(i), "message " + i));
+        }
+        allMessages = history.getAllMessages();
+    }
+
+    @Benchmark
+    public void indexedLookup(Blackhole bh) {
+        Iterator<Message> it = history.iterator(peer);
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+
+    @Benchmark
+    public void linearScan(Blackhole bh) {
+        Iterator<Message> it = new SearchMessagesByUser(allMessages, peer.getName());
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package chatapp.bench;
+
+import chatapp.ChatServer;
+import chatapp.DedupCache;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// What an idempotency key adds to a send: plain sends, keyed sends with fresh keys (a miss
+// and an insert), and retries answered from the cache. The cache-only pair runs 4 threads
+// against a half-full cache to show the striped lookup under contention; misses keep
+// inserting, so they also pay for rotating generations out.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DedupBenchmark {
+
+    private ChatServer server;
+    private User sender;
+    private List<String> recipients;
+    private DedupCache<Integer> cache;
+    private String[] keys;
+    private long next;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        server.enableDeduplication(DedupCache.DEFAULT_CAPACITY, Duration.ofMinutes(10));
+        sender = new User("sender", server);
+        User receiver = new User("receiver", server);
+        server.registerUser(sender);
+        server.registerUser(receiver);
+        recipients = List.of("receiver");
+        server.sendMessage(sender, recipients, "first", "retried-key");
+
+        cache = new DedupCache<>(DedupCache.DEFAULT_CAPACITY, Duration.ofMinutes(10));
+        keys = new String[DedupCache.DEFAULT_CAPACITY / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key-" + i;
+            cache.putIfAbsent(i & 1023, keys[i], i);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static final AtomicInteger THREADS = new AtomicInteger(1024);
+        int i;
+        int senderId;
+        long fresh;
+
+        @Setup
+        public void setUp() {
+            senderId = THREADS.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    public CompletableFuture<Message> unkeyedSend() {
+        return server.sendMessage(sender, recipients, "hello");
+    }
+
+    @Benchmark
+    public CompletableFuture<Message> keyedSend() {
+        return server.sendMessage(sender, recipients, "hello", Long.toString(next++));
+    }
+
+    @Benchmark
+    public CompletableFuture<Message> retriedSend() {
+        return server.sendMessage(sender, recipients, "hello", "retried-key");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Integer cacheHit(Cursor cursor) {
+        int i = cursor.i++ & (keys.length - 1);
+        return cache.putIfAbsent(i & 1023, keys[i], -1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Integer cacheMiss(Cursor cursor) {
+        return cache.putIfAbsent(cursor.senderId, Long.toString(cursor.fresh++), 0);
+    }
+}
@@ -0,0 +1,69 @@
+package chatapp.bench;
+
+import chatapp.AsyncEventSink;
+import chatapp.ChatServer;
+import chatapp.ConsoleEventSink;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// What logging costs a sender: synchronous console formatting, the async ring, or nothing.
+// Console output goes to a null stream so only formatting and locking are measured.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventSinkBenchmark {
+
+    @Param({"NOOP", "CONSOLE", "ASYNC"})
+    public String sink;
+
+    private PrintStream originalOut;
+    private AsyncEventSink async;
+    private ChatServer server;
+    private User sender;
+    private List<String> recipients;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        originalOut = System.out;
+        PrintStream nullOut = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(nullOut);
+
+        server = new ChatServer();
+        switch (sink) {
+            case "NOOP" -> server.setEventSink(NoOpEventSink.INSTANCE);
+            case "CONSOLE" -> server.setEventSink(new ConsoleEventSink());
+            default -> {
+                async = new AsyncEventSink(nullOut, 1 << 16);
+                server.setEventSink(async);
+            }
+        }
+        sender = new User("Alice", server);
+        server.registerUser(sender);
+        server.registerUser(new User("Bob", server));
+        recipients = List.of("Bob");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        if (async != null) {
+            async.close();
+            async = null;
+        }
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public Message sendOneToOne() {
+        return server.sendMessage(sender, recipients, "hi").join();
+    }
+}
@@ -0,0 +1,96 @@
+package chatapp.bench;
+
+import chatapp.ChatServer;
+import chatapp.FairScheduler;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Latency percentiles of a light user's one-to-one sends while three heavy users keep the server
+// saturated with 50-recipient messages, each sending the next as soon as the last completes.
+// "none" is the bare mediator; "fair" puts the deficit round robin scheduler in front of it with
+// one slot per core; "fair+limit" also caps every sender at 20k recipients a second, so heavy
+// sends beyond that fail fast. Compare lightSend's p99/p99.9 across the three: with scheduling a
+// light send waits for the heavy sends already running, not for the heavy backlog.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FairnessBenchmark {
+
+    @Param({"none", "fair", "fair+limit"})
+    public String admission;
+
+    private ChatServer server;
+    private User light;
+    private List<String> wide;
+    private final AtomicInteger heavyIds = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        if (admission.startsWith("fair")) {
+            server.enableFairScheduling(Runtime.getRuntime().availableProcessors(), FairScheduler.DEFAULT_QUANTUM, 256);
+        }
+        if (admission.endsWith("limit")) {
+            server.enableRateLimiting(20_000, 500);
+        }
+        wide = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            User rec = new User("fan" + i, server);
+            server.registerUser(rec);
+            wide.add(rec.getName());
+        }
+        light = new User("light", server);
+        server.registerUser(light);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Heavy {
+        User sender;
+
+        @Setup(Level.Iteration)
+        public void setUp(FairnessBenchmark bench) {
+            sender = new User("heavy" + bench.heavyIds.getAndIncrement(), bench.server);
+            bench.server.registerUser(sender);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public Message heavySend(Heavy heavy) {
+        try {
+            return server.sendMessage(heavy.sender, wide, "broadcast").join();
+        } catch (CompletionException e) {
+            // Rate-limited; rejections are part of the load.
+            return null;
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public Message lightSend() {
+        try {
+            return server.sendMessage(light, List.of("fan0"), "ping").join();
+        } catch (CompletionException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package chatapp.bench;
+
+import chatapp.ChatHistory;
+import chatapp.ChatServer;
+import chatapp.HistoryPage;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Reader throughput on one history while a single writer keeps delivering to it. Each group
+// runs three readers next to one writer; the *Idle groups run the same readers with no writer,
+// so the gap between the two is what concurrent writes cost the readers.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Group)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class HistorySnapshotBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int historySize;
+
+    private ChatServer server;
+    private User writer;
+    private User inbox;
+    private ChatHistory history;
+    private long sent;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        writer = new User("writer", server);
+        inbox = new User("inbox", server);
+        server.registerUser(writer);
+        server.registerUser(inbox);
+        for (int i = 0; i < historySize; i++) {
+            writer.sendMessage("inbox", "backlog " + i);
+        }
+        history = inbox.getHistory();
+    }
+
+    // Whole-history scan.
+    private static int scan(List<Message> all, Blackhole bh) {
+        int n = 0;
+        for (Message m : all) {
+            bh.consume(m);
+            n++;
+        }
+        return n;
+    }
+
+    private static int newestPage(ChatHistory history) {
+        HistoryPage page = history.latest(50);
+        return page.getMessages().size();
+    }
+
+    private static int conversation(User inbox, User peer, Blackhole bh) {
+        int n = 0;
+        for (Iterator<Message> it = inbox.iterator(peer); it.hasNext() && n < 1000; n++) {
+            bh.consume(it.next());
+        }
+        return n;
+    }
+
+    @Benchmark
+    @Group("scanUnderWrites")
+    @GroupThreads(3)
+    public int scanReader(Blackhole bh) {
+        return scan(history.getAllMessages(), bh);
+    }
+
+    @Benchmark
+    @Group("scanUnderWrites")
+    @GroupThreads(1)
+    public void scanWriter() {
+        writer.sendMessage("inbox", "live " + sent++);
+    }
+
+    @Benchmark
+    @Group("scanIdle")
+    @GroupThreads(3)
+    public int scanIdleReader(Blackhole bh) {
+        return scan(history.getAllMessages(), bh);
+    }
+
+    @Benchmark
+    @Group("pageUnderWrites")
+    @GroupThreads(3)
+    public int pageReader() {
+        return newestPage(history);
+    }
+
+    @Benchmark
+    @Group("pageUnderWrites")
+    @GroupThreads(1)
+    public void pageWriter() {
+        writer.sendMessage("inbox", "live " + sent++);
+    }
+
+    @Benchmark
+    @Group("pageIdle")
+    @GroupThreads(3)
+    public int pageIdleReader() {
+        return newestPage(history);
+    }
+
+    @Benchmark
+    @Group("conversationUnderWrites")
+    @GroupThreads(3)
+    public int conversationReader(Blackhole bh) {
+        return conversation(inbox, writer, bh);
+    }
+
+    @Benchmark
+    @Group("conversationUnderWrites")
+    @GroupThreads(1)
+    public void conversationWriter() {
+        writer.sendMessage("inbox", "live " + sent++);
+    }
+}
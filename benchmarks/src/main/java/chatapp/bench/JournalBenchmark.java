@@ -0,0 +1,113 @@
+package chatapp.bench;
+
+import chatapp.ChatServer;
+import chatapp.FsyncPolicy;
+import chatapp.Message;
+import chatapp.MessageJournal;
+import chatapp.NoOpEventSink;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Sustained append throughput per fsync policy, and replay time for a log of a given size.
+// Recovery time per GB = recover score (ms) * 1024 / logMegabytes.
+public class JournalBenchmark {
+
+    private static final List<String> RECIPIENTS = List.of("Bob", "Carol");
+    private static final String CONTENT = "a typical chat line of roughly sixty bytes of text content..";
+
+    @State(Scope.Benchmark)
+    public static class AppendState {
+        @Param({"EVERY_WRITE", "PERIODIC", "OS"})
+        public FsyncPolicy fsync;
+
+        Path dir;
+        MessageJournal journal;
+        Message msg;
+
+        @Setup(Level.Iteration)
+        public void open() throws IOException {
+            dir = Files.createTempDirectory("journal-append");
+            journal = new MessageJournal(dir, fsync);
+            msg = new Message("Alice", RECIPIENTS, Instant.now(), CONTENT);
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() {
+            journal.close();
+            deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 2, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Threads(4)
+    @Fork(1)
+    public void append(AppendState state) {
+        state.journal.logSend(state.msg);
+    }
+
+    @State(Scope.Benchmark)
+    public static class RecoverState {
+        @Param({"64", "256", "1024"})
+        public int logMegabytes;
+
+        Path dir;
+
+        @Setup(Level.Trial)
+        public void write() throws IOException {
+            dir = Files.createTempDirectory("journal-recover");
+            try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+                journal.logRegister("Alice");
+                journal.logRegister("Bob");
+                journal.logRegister("Carol");
+                Instant ts = Instant.now();
+                long target = (long) logMegabytes * 1024 * 1024;
+                for (int i = 0; journal.position() < target; i++) {
+                    journal.logSend(new Message("Alice", RECIPIENTS, ts.plusMillis(i), CONTENT));
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+    public ChatServer recover(RecoverState state) {
+        try (MessageJournal journal = new MessageJournal(state.dir, FsyncPolicy.OS)) {
+            ChatServer server = new ChatServer();
+            server.setEventSink(NoOpEventSink.INSTANCE);
+            server.recoverFrom(journal);
+            return server;
+        }
+    }
+
+    static void deleteRecursively(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package chatapp.bench;
+
+import chatapp.ChatClient;
+import chatapp.ChatNetworkServer;
+import chatapp.ChatServer;
+import chatapp.HistogramSnapshot;
+import chatapp.LatencyHistogram;
+import chatapp.NoOpEventSink;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Drives a ChatNetworkServer over localhost and reports throughput and latency percentiles.
+// Each client keeps up to --window sends in flight to random other clients.
+//   ack latency:      request written -> OK received by the sender
+//   delivery latency: request written -> DELIVERY pushed to the recipient (send time rides in
+//                     the content; System.nanoTime is comparable between processes on one host)
+// Without --port an in-process server is started on an ephemeral port.
+//
+//   java -cp target/benchmarks.jar chatapp.bench.LoadGenerator --clients 32 --messages 50000 --window 64
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = -1;
+        int clients = 16;
+        int messages = 20_000;
+        int window = 32;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--host" -> host = args[i + 1];
+                case "--port" -> port = Integer.parseInt(args[i + 1]);
+                case "--clients" -> clients = Integer.parseInt(args[i + 1]);
+                case "--messages" -> messages = Integer.parseInt(args[i + 1]);
+                case "--window" -> window = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        ChatNetworkServer embedded = null;
+        if (port < 0) {
+            ChatServer server = new ChatServer();
+            server.setEventSink(NoOpEventSink.INSTANCE);
+            embedded = new ChatNetworkServer(server, new InetSocketAddress(host, 0));
+            embedded.start();
+            port = embedded.getPort();
+        }
+
+        LatencyHistogram ackLatency = new LatencyHistogram();
+        LatencyHistogram deliveryLatency = new LatencyHistogram();
+        LongAdder delivered = new LongAdder();
+        List<ChatClient> connections = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        String run = Long.toString(System.nanoTime(), 36);
+        for (int c = 0; c < clients; c++) {
+            ChatClient client = new ChatClient(host, port);
+            client.setDeliveryListener(msg -> {
+                String content = msg.getContent();
+                int space = content.indexOf(' ');
+                if (space > 0) {
+                    deliveryLatency.record(System.nanoTime() - Long.parseLong(content.substring(0, space)));
+                    delivered.increment();
+                }
+            });
+            String name = "load-" + run + "-" + c;
+            client.register(name).get(10, TimeUnit.SECONDS);
+            connections.add(client);
+            names.add(name);
+        }
+
+        int perClient = messages;
+        int inFlight = window;
+        long start = System.nanoTime();
+        List<Thread> drivers = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            ChatClient client = connections.get(c);
+            int self = c;
+            drivers.add(Thread.ofPlatform().start(() -> {
+                Semaphore permits = new Semaphore(inFlight);
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                List<CompletableFuture<Long>> last = new ArrayList<>();
+                client.setAutoFlush(false);
+                for (int i = 0; i < perClient; i++) {
+                    // Sends pile up in the client buffer until the window is full, then go out together.
+                    if (!permits.tryAcquire()) {
+                        client.flush();
+                        permits.acquireUninterruptibly();
+                    }
+                    int to = random.nextInt(names.size() - 1);
+                    String recipient = names.get(to >= self ? to + 1 : to);
+                    long sentAt = System.nanoTime();
+                    CompletableFuture<Long> ack = client.send(List.of(recipient), sentAt + " payload");
+                    ack.whenComplete((id, err) -> {
+                        ackLatency.record(System.nanoTime() - sentAt);
+                        permits.release();
+                    });
+                    if (i >= perClient - inFlight) {
+                        last.add(ack);
+                    }
+                }
+                client.flush();
+                last.forEach(CompletableFuture::join);
+            }));
+        }
+        for (Thread driver : drivers) {
+            driver.join();
+        }
+        long total = (long) clients * messages;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (delivered.sum() < total && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("clients=%d messages/client=%d window=%d%n", clients, messages, window);
+        System.out.printf("throughput: %.0f msgs/sec (%d acked, %d delivered in %.2fs)%n",
+                total / seconds, ackLatency.snapshot().getCount(), delivered.sum(), seconds);
+        print("ack", ackLatency.snapshot());
+        print("delivery", deliveryLatency.snapshot());
+
+        for (ChatClient client : connections) {
+            client.close();
+        }
+        if (embedded != null) {
+            embedded.close();
+        }
+    }
+
+    private static void print(String label, HistogramSnapshot s) {
+        System.out.printf("%-9s p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus%n", label,
+                s.getP50() / 1e3, s.getP90() / 1e3, s.getP99() / 1e3, s.getP999() / 1e3, s.getMax() / 1e3);
+    }
+}
@@ -0,0 +1,81 @@
+package chatapp.bench;
+
+import chatapp.Message;
+import chatapp.MessageCodec;
+import chatapp.MessageView;
+import chatapp.UserDictionary;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Binary codec against the toString() form it replaces. Run with -prof gc for bytes/op.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private static final int BATCH = 1024;
+
+    private MessageCodec codec;
+    private Message msg;
+    private ByteBuffer out;
+    private ByteBuffer encodedBatch;
+    private MessageView view;
+    private int searchId;
+
+    @Setup
+    public void setUp() {
+        UserDictionary dictionary = new UserDictionary();
+        codec = new MessageCodec(dictionary);
+        msg = new Message("Devaansh", List.of("James", "Adrian"), Instant.now(), "Don't forget the project notes!");
+        out = ByteBuffer.allocate(codec.maxEncodedSize(msg));
+
+        encodedBatch = ByteBuffer.allocate(BATCH * codec.maxEncodedSize(msg));
+        for (int i = 0; i < BATCH; i++) {
+            codec.encode(new Message(i % 2 == 0 ? "James" : "Adrian", List.of("Devaansh"), Instant.now(), "msg " + i), encodedBatch);
+        }
+        encodedBatch.flip();
+        view = new MessageView(dictionary);
+        searchId = dictionary.lookup("James");
+    }
+
+    @Benchmark
+    public int encodeBinary() {
+        out.clear();
+        return codec.encode(msg, out);
+    }
+
+    @Benchmark
+    public byte[] encodeToString() {
+        return msg.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int scanWithFlyweight() {
+        int matches = 0;
+        for (int pos = 0; pos < encodedBatch.limit(); pos = view.end()) {
+            if (view.wrap(encodedBatch, pos).hasParticipant(searchId)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void decodeToMessages(Blackhole bh) {
+        ByteBuffer in = encodedBatch.duplicate();
+        while (in.hasRemaining()) {
+            bh.consume(codec.decode(in));
+        }
+    }
+}
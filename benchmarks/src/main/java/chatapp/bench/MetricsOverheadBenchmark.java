@@ -0,0 +1,52 @@
+package chatapp.bench;
+
+import chatapp.ChatServer;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Send and undo with metrics off and on; the difference is the instrumentation cost.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsOverheadBenchmark {
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private ChatServer server;
+    private User sender;
+    private List<String> recipients;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        if (metrics) {
+            server.enableMetrics();
+        }
+        sender = new User("Alice", server);
+        server.registerUser(sender);
+        server.registerUser(new User("Bob", server));
+        server.registerUser(new User("Carol", server));
+        recipients = List.of("Bob", "Carol");
+    }
+
+    @Benchmark
+    public Message send() {
+        return server.sendMessage(sender, recipients, "hi").join();
+    }
+
+    @Benchmark
+    public void sendThenUndo() {
+        server.sendMessage(sender, recipients, "oops").join();
+        server.undoLastMessage(sender);
+    }
+}
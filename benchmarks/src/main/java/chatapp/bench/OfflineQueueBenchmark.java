@@ -0,0 +1,117 @@
+package chatapp.bench;
+
+import chatapp.ChatServer;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.OfflineStore;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Sends to an offline recipient whose queue already holds `queued` messages, a send undone right
+// away next to the same pair against an online recipient (both dominated by the sender's side),
+// the queue's own offer + retract by id, which stays flat however deep the queue is, and the one
+// batched flush a re-registration does.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class OfflineQueueBenchmark {
+
+    @Param({"1000", "100000"})
+    public int queued;
+
+    private ChatServer server;
+    private User sender;
+    private List<String> offlineRecipient;
+    private List<String> onlineRecipient;
+    private int awayId;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        sender = new User("sender", server);
+        User away = new User("away", server);
+        User online = new User("online", server);
+        server.registerUser(sender);
+        server.registerUser(away);
+        server.registerUser(online);
+        server.unregisterUser(away);
+        awayId = away.getId();
+        offlineRecipient = List.of("away");
+        onlineRecipient = List.of("online");
+        for (int i = 0; i < queued; i++) {
+            server.sendMessage(sender, offlineRecipient, "backlog " + i);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Benchmark
+    public CompletableFuture<Message> sendToOffline() {
+        return server.sendMessage(sender, offlineRecipient, "hello");
+    }
+
+    @Benchmark
+    public void sendAndUndoOffline() {
+        server.sendMessage(sender, offlineRecipient, "oops");
+        server.undoLastMessage(sender);
+    }
+
+    @Benchmark
+    public void sendAndUndoOnline() {
+        server.sendMessage(sender, onlineRecipient, "oops");
+        server.undoLastMessage(sender);
+    }
+
+    @Benchmark
+    public boolean queueOfferAndRetract() {
+        Message msg = new Message(sender.getId(), new int[] {awayId}, Instant.EPOCH, "oops");
+        OfflineStore store = server.getOfflineStore();
+        store.offer(awayId, msg);
+        return store.remove(awayId, msg.getId());
+    }
+
+    @State(Scope.Thread)
+    public static class Backlog {
+        ChatServer server;
+        User away;
+
+        @Setup(Level.Invocation)
+        public void fill(OfflineQueueBenchmark bench) {
+            server = new ChatServer();
+            server.setEventSink(NoOpEventSink.INSTANCE);
+            away = new User("away", server);
+            server.registerUser(away);
+            server.unregisterUser(away);
+            OfflineStore store = server.getOfflineStore();
+            Instant now = Instant.now();
+            int senderId = bench.sender.getId();
+            for (int i = 0; i < bench.queued; i++) {
+                store.offer(away.getId(), new Message(senderId, new int[] {away.getId()}, now, "backlog " + i));
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            server.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int reRegister(Backlog backlog) {
+        User back = new User("away", backlog.server);
+        backlog.server.registerUser(back);
+        return back.getHistory().size();
+    }
+}
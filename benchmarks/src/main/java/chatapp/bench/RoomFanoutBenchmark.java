@@ -0,0 +1,50 @@
+package chatapp.bench;
+
+import chatapp.ChatServer;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost of one post to rooms of growing size.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class RoomFanoutBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int members;
+
+    private ChatServer server;
+    private User poster;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        List<User> everyone = new ArrayList<>(members);
+        for (int i = 0; i < members; i++) {
+            User u = new User("member" + i, server);
+            server.registerUser(u);
+            everyone.add(u);
+        }
+        poster = everyone.getFirst();
+        server.joinRoom("bench", everyone);
+        // A handful of blockers so the precomputed filter has something to do.
+        for (int i = 1; i < Math.min(members, 6); i++) {
+            server.blockUser("member" + i, poster.getName());
+        }
+    }
+
+    @Benchmark
+    public Message sendToRoom() {
+        return server.sendToRoom(poster, "bench", "hello room").join();
+    }
+}
@@ -0,0 +1,99 @@
+package chatapp.bench;
+
+import chatapp.Message;
+import chatapp.SearchIndex;
+import chatapp.SearchMessagesByUser;
+import chatapp.SearchQuery;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Query latency on an index of historySize messages. Words follow a Zipf-like distribution over
+// a 50k vocabulary, so "w0" is in most messages and "w40000" in a handful.
+// The participant scan is the pre-index baseline for "messages involving X".
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx24g", "-XX:+UseParallelGC"})
+public class SearchBenchmark {
+
+    private static final int VOCABULARY = 50_000;
+    private static final int USERS = 1000;
+    private static final Instant T0 = Instant.parse("2025-01-01T00:00:00Z");
+
+    @Param({"1000000", "10000000"})
+    public int historySize;
+
+    private SearchIndex index;
+    private List<Message> messages;
+    private Instant rangeFrom;
+    private Instant rangeTo;
+
+    @Setup(Level.Trial)
+    public void build() {
+        Random random = new Random(42);
+        String[] users = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = "user" + i;
+        }
+        index = new SearchIndex();
+        messages = new ArrayList<>(historySize);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < historySize; i++) {
+            content.setLength(0);
+            int words = 4 + random.nextInt(8);
+            for (int w = 0; w < words; w++) {
+                // Inverse-power sampling: small ranks are far more frequent.
+                int rank = (int) Math.min(VOCABULARY - 1, Math.pow(VOCABULARY, random.nextDouble()) - 1);
+                content.append('w').append(rank).append(' ');
+            }
+            Message msg = new Message(users[random.nextInt(USERS)], List.of(users[random.nextInt(USERS)]),
+                    T0.plusMillis(i * 10L), content.toString());
+            index.add(msg);
+            messages.add(msg);
+        }
+        rangeFrom = T0.plusMillis(historySize * 5L);
+        rangeTo = rangeFrom.plusSeconds(600);
+    }
+
+    @Benchmark
+    public List<Message> rareTerm() {
+        return index.search(SearchQuery.terms("w40000"));
+    }
+
+    @Benchmark
+    public List<Message> commonTermNewest50() {
+        return index.search(SearchQuery.terms("w1").limit(50));
+    }
+
+    @Benchmark
+    public List<Message> twoTermConjunction() {
+        return index.search(SearchQuery.terms("w2 w300"));
+    }
+
+    @Benchmark
+    public List<Message> phrase() {
+        return index.search(SearchQuery.phrase("w0 w1"));
+    }
+
+    @Benchmark
+    public List<Message> participantAndTimeRange() {
+        return index.search(SearchQuery.terms("w5").withParticipant("user7").between(rangeFrom, rangeTo));
+    }
+
+    @Benchmark
+    public void participantScanBaseline(Blackhole bh) {
+        Iterator<Message> it = new SearchMessagesByUser(messages, "user7");
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package chatapp.bench;
+
+import chatapp.BackpressurePolicy;
+import chatapp.ChatServer;
+import chatapp.Message;
+import chatapp.NoOpEventSink;
+import chatapp.OutgoingMessage;
+import chatapp.User;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// A bridge-style burst: burstSize messages from a few senders to a few recipients, delivered
+// one sendMessage at a time versus one sendBatch. Scores are per burst; divide by burstSize.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SendBatchBenchmark {
+
+    @Param({"16", "256"})
+    public int burstSize;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    private ChatServer server;
+    private List<OutgoingMessage> burst;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        server = async ? new ChatServer(1024, BackpressurePolicy.BLOCK) : new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            User u = new User("user" + i, server);
+            server.registerUser(u);
+            users.add(u);
+        }
+        for (int i = 0; i < 100; i++) {
+            server.registerUser(new User("blocked" + i, server));
+            server.blockUser("user0", "blocked" + i);
+        }
+
+        Random random = new Random(42);
+        burst = new ArrayList<>(burstSize);
+        for (int i = 0; i < burstSize; i++) {
+            User from = users.get(random.nextInt(4));
+            List<String> to = List.of(users.get(4 + random.nextInt(4)).getName(), "user0");
+            burst.add(new OutgoingMessage(from, to, "bridged line " + i));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Benchmark
+    public void oneAtATime(Blackhole bh) {
+        List<CompletableFuture<Message>> pending = new ArrayList<>(burst.size());
+        for (OutgoingMessage out : burst) {
+            pending.add(server.sendMessage(out.getSender(), out.getRecipientNames(), out.getContent()));
+        }
+        for (CompletableFuture<Message> f : pending) {
+            bh.consume(f.join());
+        }
+    }
+
+    @Benchmark
+    public List<Message> batched() {
+        return server.sendBatch(burst).join();
+    }
+}
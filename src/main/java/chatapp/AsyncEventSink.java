@@ -0,0 +1,117 @@
+package chatapp;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Multi-producer ring buffer drained by one background thread. Producers only claim a slot and
+// store references; formatting and output happen on the writer, a batch per flush.
+// When the ring is full, events are dropped and counted rather than blocking senders.
+public class AsyncEventSink extends FormattingEventSink implements AutoCloseable {
+
+    private static final int MAX_BATCH_CHARS = 64 * 1024;
+
+    private static final class Slot {
+        volatile long sequence = -1;
+        int type;
+        Object a;
+        Object b;
+    }
+
+    private final Slot[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed = 0;
+    private final LongAdder dropped = new LongAdder();
+    private final PrintStream out;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public AsyncEventSink(PrintStream out, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.out = out;
+        this.writer = new Thread(this::drain, "chat-event-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public long droppedEvents() {
+        return dropped.sum();
+    }
+
+    @Override
+    protected void emit(int type, Object a, Object b) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Slot slot = ring[(int) seq & mask];
+        slot.type = type;
+        slot.a = a;
+        slot.b = b;
+        slot.sequence = seq;
+    }
+
+    // Waits until everything published so far has been written.
+    public void flush() {
+        long target = claimed.get();
+        while (consumed < target && writer.isAlive()) {
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        StringBuilder batch = new StringBuilder(MAX_BATCH_CHARS);
+        long next = 0;
+        while (running || next < claimed.get()) {
+            Slot slot = ring[(int) next & mask];
+            if (slot.sequence == next) {
+                format(slot.type, slot.a, slot.b, batch);
+                slot.a = null;
+                slot.b = null;
+                next++;
+                if (batch.length() < MAX_BATCH_CHARS) {
+                    continue;
+                }
+            }
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+            }
+            // Slots are released only after their text is out, so flush() means "written".
+            consumed = next;
+            if (slot.sequence != next) {
+                LockSupport.parkNanos(100_000);
+            }
+        }
+        if (batch.length() > 0) {
+            out.print(batch);
+            out.flush();
+        }
+        consumed = next;
+    }
+}
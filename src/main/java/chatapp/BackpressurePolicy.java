@@ -0,0 +1,7 @@
+package chatapp;
+
+public enum BackpressurePolicy {
+    BLOCK,
+    DROP,
+    FAIL
+}
@@ -0,0 +1,157 @@
+package chatapp;
+
+import java.util.Arrays;
+
+// Senders one receiver has blocked, by interned user id. A short or sparse list is a sorted int[]
+// that contains() binary-searches, so blocking one late-registered user costs four bytes rather
+// than a bitset reaching up to their id; once the ids are dense enough that a bitset over them
+// is no bigger than the array, the list switches to the bitset.
+// Copy-on-write: contains() is a plain volatile read, updates are rare and synchronized.
+// A list nobody is on answers contains() from the size check alone.
+public class BlockList {
+
+    // Below this many ids a binary search costs about what the bit test does.
+    private static final int MIN_BITSET = 64;
+
+    private static final class Ids {
+        final int size;
+        // Exactly one of these is set.
+        final int[] sorted;
+        final long[] words;
+
+        Ids(int size, int[] sorted, long[] words) {
+            this.size = size;
+            this.sorted = sorted;
+            this.words = words;
+        }
+    }
+
+    private static final Ids EMPTY = new Ids(0, new int[0], null);
+
+    private volatile Ids ids = EMPTY;
+
+    public boolean contains(int userId) {
+        Ids current = ids;
+        if (current.size == 0) {
+            return false;
+        }
+        if (current.words != null) {
+            int word = userId >>> 6;
+            return word < current.words.length && (current.words[word] & (1L << userId)) != 0;
+        }
+        return Arrays.binarySearch(current.sorted, userId) >= 0;
+    }
+
+    public boolean isEmpty() {
+        return ids.size == 0;
+    }
+
+    public int size() {
+        return ids.size;
+    }
+
+    // Bytes the current representation holds, for comparing the two.
+    long footprint() {
+        Ids current = ids;
+        return current.words != null ? 8L * current.words.length : 4L * current.sorted.length;
+    }
+
+    public boolean add(int userId) {
+        return addAll(new int[] {userId}) == 1;
+    }
+
+    // One copy of the list for the whole batch; returns how many were new.
+    public synchronized int addAll(int[] userIds) {
+        if (userIds.length == 0) {
+            return 0;
+        }
+        int[] adding = distinct(userIds);
+        int[] current = sorted(ids);
+        int[] merged = new int[current.length + adding.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < current.length || j < adding.length) {
+            if (j == adding.length || (i < current.length && current[i] < adding[j])) {
+                merged[n++] = current[i++];
+            } else {
+                if (i < current.length && current[i] == adding[j]) {
+                    i++;
+                }
+                merged[n++] = adding[j++];
+            }
+        }
+        int added = n - current.length;
+        if (added > 0) {
+            ids = build(merged, n);
+        }
+        return added;
+    }
+
+    public boolean remove(int userId) {
+        return removeAll(new int[] {userId}) == 1;
+    }
+
+    // One copy for the whole batch; returns how many were present.
+    public synchronized int removeAll(int[] userIds) {
+        if (ids.size == 0 || userIds.length == 0) {
+            return 0;
+        }
+        int[] removing = distinct(userIds);
+        int[] current = sorted(ids);
+        int[] kept = new int[current.length];
+        int n = 0;
+        for (int id : current) {
+            if (Arrays.binarySearch(removing, id) < 0) {
+                kept[n++] = id;
+            }
+        }
+        int removed = current.length - n;
+        if (removed > 0) {
+            ids = build(kept, n);
+        }
+        return removed;
+    }
+
+    // The first count ids of a sorted, duplicate-free array, as whichever form is smaller.
+    private static Ids build(int[] sorted, int count) {
+        if (count == 0) {
+            return EMPTY;
+        }
+        int words = (sorted[count - 1] >>> 6) + 1;
+        if (count < MIN_BITSET || 8L * words > 4L * count) {
+            return new Ids(count, count == sorted.length ? sorted : Arrays.copyOf(sorted, count), null);
+        }
+        long[] bits = new long[words];
+        for (int i = 0; i < count; i++) {
+            bits[sorted[i] >>> 6] |= 1L << sorted[i];
+        }
+        return new Ids(count, null, bits);
+    }
+
+    private static int[] sorted(Ids current) {
+        if (current.words == null) {
+            return current.sorted;
+        }
+        int[] out = new int[current.size];
+        int n = 0;
+        for (int w = 0; w < current.words.length; w++) {
+            for (long bits = current.words[w]; bits != 0; bits &= bits - 1) {
+                out[n++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return out;
+    }
+
+    private static int[] distinct(int[] userIds) {
+        int[] out = userIds.clone();
+        Arrays.sort(out);
+        int n = 0;
+        for (int i = 0; i < out.length; i++) {
+            if (i == 0 || out[i] != out[i - 1]) {
+                out[n++] = out[i];
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+}
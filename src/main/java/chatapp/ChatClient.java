@@ -0,0 +1,190 @@
+package chatapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Blocking client for ChatNetworkServer. Every request returns a future completed by a reader
+// thread when the matching response arrives, so callers can keep many requests in flight.
+// With autoFlush off, requests collect in the socket buffer until flush(), and a burst goes
+// out in as few packets as it fits.
+public class ChatClient implements AutoCloseable {
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final Map<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final Thread reader;
+    private volatile Consumer<Message> onDelivery = msg -> { };
+    private volatile boolean autoFlush = true;
+
+    public ChatClient(String host, int port) {
+        try {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        reader = Thread.ofVirtual().name("chat-client-reader").start(this::readLoop);
+    }
+
+    // Called on the reader thread for each pushed delivery; keep it short.
+    public void setDeliveryListener(Consumer<Message> onDelivery) {
+        this.onDelivery = onDelivery;
+    }
+
+    public void setAutoFlush(boolean autoFlush) {
+        this.autoFlush = autoFlush;
+    }
+
+    // Completes with the user's id.
+    public CompletableFuture<Long> register(String name) {
+        return request(ChatProtocol.REGISTER, f -> f.putString(name));
+    }
+
+    // Completes with the message id once the server has delivered it.
+    public CompletableFuture<Long> send(List<String> recipients, String content) {
+        return send(recipients, content, null);
+    }
+
+    // Resending with the same key after a timeout completes with the original message id and
+    // delivers nothing new.
+    public CompletableFuture<Long> send(List<String> recipients, String content, String idempotencyKey) {
+        return request(ChatProtocol.SEND, f -> {
+            f.putInt(recipients.size());
+            for (String name : recipients) {
+                f.putString(name);
+            }
+            f.putString(content).putString(idempotencyKey != null ? idempotencyKey : "");
+        });
+    }
+
+    public CompletableFuture<Long> block(String blockeeName) {
+        return request(ChatProtocol.BLOCK, f -> f.putString(blockeeName));
+    }
+
+    public CompletableFuture<Long> undo() {
+        return request(ChatProtocol.UNDO, f -> { });
+    }
+
+    // peerName null for the whole history; before null for the newest page.
+    public CompletableFuture<HistoryPage> history(String peerName, HistoryCursor before, int limit) {
+        return request(ChatProtocol.HISTORY, f -> f.putString(peerName != null ? peerName : "")
+                .putLong(before != null ? before.getMessageId() : 0)
+                .putLong(before != null ? before.getTimestamp().getEpochSecond() : 0)
+                .putInt(before != null ? before.getTimestamp().getNano() : 0)
+                .putInt(limit));
+    }
+
+    public void flush() {
+        try {
+            synchronized (out) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> request(byte type, Consumer<ChatProtocol.Frame> body) {
+        int requestId = nextRequestId.getAndIncrement();
+        ChatProtocol.Frame frame = new ChatProtocol.Frame(type, requestId);
+        body.accept(frame);
+        ByteBuffer bytes = frame.finish();
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        pending.put(requestId, result);
+        try {
+            synchronized (out) {
+                out.write(bytes.array(), 0, bytes.limit());
+                if (autoFlush) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            result.completeExceptionally(e);
+        }
+        return (CompletableFuture<T>) result;
+    }
+
+    private void readLoop() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            byte[] frame = new byte[8 * 1024];
+            while (true) {
+                int length = in.readInt();
+                if (length < ChatProtocol.HEADER || length > ChatProtocol.MAX_FRAME) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (frame.length < length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                in.readFully(frame, 0, length);
+                ByteBuffer body = ByteBuffer.wrap(frame, 0, length);
+                byte type = body.get();
+                int requestId = body.getInt();
+                if (type == ChatProtocol.DELIVERY) {
+                    onDelivery.accept(ChatProtocol.readMessage(body));
+                    continue;
+                }
+                CompletableFuture<Object> result = pending.remove(requestId);
+                if (result == null) {
+                    continue;
+                }
+                switch (type) {
+                    case ChatProtocol.OK -> result.complete(body.getLong());
+                    case ChatProtocol.ERROR -> result.completeExceptionally(new IllegalStateException(ChatProtocol.readString(body)));
+                    case ChatProtocol.PAGE -> {
+                        boolean hasMore = body.get() != 0;
+                        int count = body.getInt();
+                        List<Message> messages = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            messages.add(ChatProtocol.readMessage(body));
+                        }
+                        result.complete(new HistoryPage(messages, hasMore));
+                    }
+                    default -> result.completeExceptionally(new IOException("Unknown response type " + type));
+                }
+            }
+        } catch (EOFException e) {
+            failPending(new IOException("Connection closed"));
+        } catch (IOException | RuntimeException e) {
+            failPending(e);
+        }
+    }
+
+    private void failPending(Exception cause) {
+        for (Integer requestId : pending.keySet()) {
+            CompletableFuture<Object> result = pending.remove(requestId);
+            if (result != null) {
+                result.completeExceptionally(cause);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+            reader.join();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package chatapp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// A set of ChatServer shards wired to one transport, with users placed by a ShardRing.
+// Each User talks to its home shard as it would to a standalone server; the shards route
+// deliveries, block lists, retractions and edits for users homed elsewhere.
+// Rooms stay local to the shard they were created on, and only users homed there can post;
+// members homed on other shards still receive every post, forwarded to their home shard.
+public class ChatCluster implements AutoCloseable {
+
+    private final ShardRing ring;
+    private final ShardTransport transport;
+    private final ChatServer[] shards;
+
+    public ChatCluster(int shardCount, ShardTransport transport) {
+        this(new ShardRing(shardCount), transport, ChatServer::new);
+    }
+
+    public ChatCluster(ShardRing ring, ShardTransport transport, Supplier<ChatServer> shardFactory) {
+        this.ring = ring;
+        this.transport = transport;
+        this.shards = new ChatServer[ring.shardCount()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = shardFactory.get();
+            shards[i].joinCluster(i, ring, transport);
+        }
+    }
+
+    public ShardRing getRing() {
+        return ring;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public ChatServer shard(int shardId) {
+        return shards[shardId];
+    }
+
+    public ChatServer shardFor(String name) {
+        return shards[ring.shardOf(name)];
+    }
+
+    // Creates the user on its home shard and registers it there.
+    public User createUser(String name) {
+        return createUser(name, RetentionPolicy.unbounded());
+    }
+
+    public User createUser(String name, RetentionPolicy retention) {
+        ChatServer home = shardFor(name);
+        User usr = new User(name, home, retention);
+        home.registerUser(usr);
+        return usr;
+    }
+
+    public User getUser(String name) {
+        return shardFor(name).getUser(name);
+    }
+
+    public boolean isBlocked(String receiverName, String senderName) {
+        return shardFor(receiverName).isBlocked(receiverName, senderName);
+    }
+
+    public void setEventSink(ChatEventSink events) {
+        for (ChatServer shard : shards) {
+            shard.setEventSink(events);
+        }
+    }
+
+    // Waits until every cross-shard hand-off so far has been applied; false on timeout.
+    public boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+        return transport.awaitQuiescence(timeout, unit);
+    }
+
+    @Override
+    public void close() {
+        for (ChatServer shard : shards) {
+            shard.shutdown();
+        }
+        transport.close();
+    }
+}
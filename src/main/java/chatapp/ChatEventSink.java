@@ -0,0 +1,25 @@
+package chatapp;
+
+import java.util.List;
+
+// Where ChatServer reports what it did. Callers pass raw values only; any text is built by
+// the sink, so a disabled sink costs a virtual call and nothing more.
+public interface ChatEventSink {
+    void userRegistered(String name);
+    void userUnregistered(String name);
+    void userBlocked(String blockerName, String blockeeName);
+    void userBlocked(String blockerName, int count);
+    void userUnblocked(String blockerName, String blockeeName);
+    void userUnblocked(String blockerName, int count);
+    void deliveryBlocked(String senderName, String recipientName);
+    void delivered(Message msg);
+    void nothingToUndo(String senderName);
+    void undoRequested(String senderName, MessageMemento snapshot);
+    void undone(String senderName);
+    void edited(String senderName, Message msg);
+    void roomJoined(String name, String roomId);
+    void roomJoined(int count, String roomId);
+    void roomLeft(String name, String roomId);
+    void history(String name, List<Message> messages);
+    void importSkipped(String name, int count);
+}
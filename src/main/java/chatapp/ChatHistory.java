@@ -1,50 +1,503 @@
 package chatapp;
 
+import java.time.Instant;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
-public class ChatHistory implements IterableByUser {
+// Each history guards itself, so deliveries to different users never share a lock.
+// Writers take that lock and publish a new snapshot of every log they touched before releasing
+// it; readers of the hot messages (getAllMessages, iterator, paging) take no lock at all and
+// see one published point in time. Past the RetentionPolicy the oldest messages spill to a
+// ColdTier and are paged back in transparently, under the lock, by the same methods.
+public class ChatHistory implements IterableByUser, PageableByUser {
 
-    private final List<Message> history = new ArrayList<>();
-    private final List<MessageMemento> sentMementos = new ArrayList<>();
-    private final List<Message> sentMsg = new ArrayList<>();
+    // Once over a limit, evict down to this fraction of it so spills happen in reasonable blocks.
+    private static final double LOW_WATERMARK = 0.9;
+    private static final MessageLog EMPTY = new MessageLog();
 
-    public void addHistory(Message msg) {
-        history.add(msg);
+    private final MessageLog history = new MessageLog();
+    // The user's own sent messages that can still be undone or edited, newest last.
+    private final RevisionStore sent;
+    // Indexed by peer user id: every hot message that peer sent or received, in history order.
+    private final IdTable<MessageLog> conversations = new IdTable<>();
+    // Logs changed under the current lock hold, published together on the way out.
+    private final List<MessageLog> unpublished = new ArrayList<>();
+
+    private final RetentionPolicy retention;
+    private final ColdTier cold;
+    private long hotBytes = 0;
+    // Set once, before the first spill is published; from then on reads go through the lock.
+    private volatile boolean spilled = false;
+
+    public ChatHistory() {
+        this(RetentionPolicy.unbounded());
+    }
+
+    public ChatHistory(RetentionPolicy retention) {
+        this.retention = retention;
+        this.sent = new RevisionStore(retention.getUndoDepth());
+        this.cold = retention.isBounded() ? new ColdTier(retention.getSpillDirectory()) : null;
+    }
+
+    public synchronized void addHistory(Message msg) {
+        appendHot(msg);
+        enforceRetention();
+        publish();
+    }
+
+    // One lock acquisition and one retention pass for a whole batch.
+    public synchronized void addHistory(List<Message> batch) {
+        for (Message msg : batch) {
+            appendHot(msg);
+        }
+        enforceRetention();
+        publish();
+    }
+
+    // For imports: appends what this history does not hold yet and returns that. Ids are no help,
+    // since they restart with every process; a message held already has the same sender,
+    // timestamp and content. Copies within the batch (a self-send) are all appended.
+    public synchronized List<Message> addHistoryIfAbsent(List<Message> batch) {
+        Set<Fingerprint> held = new HashSet<>();
+        if (size() > 0) {
+            forEachMessage(msg -> held.add(Fingerprint.of(msg)));
+        }
+        List<Message> added = new ArrayList<>(batch.size());
+        for (Message msg : batch) {
+            if (held.isEmpty() || !held.contains(Fingerprint.of(msg))) {
+                appendHot(msg);
+                added.add(msg);
+            }
+        }
+        enforceRetention();
+        publish();
+        return added;
+    }
+
+    public synchronized void recordSentMsgs(List<Message> batch) {
+        for (Message msg : batch) {
+            sent.record(msg);
+            appendHot(msg);
+        }
+        enforceRetention();
+        publish();
+    }
+
+    public synchronized void recordSentMsg(Message msg) {
+        sent.record(msg);
+        appendHot(msg);
+        enforceRetention();
+        publish();
+    }
+
+    public synchronized Message getLastSentMessage() {
+        return sent.last();
+    }
+
+    public synchronized MessageMemento undoLastMemento(){
+        return sent.removeLast();
+    }
+
+    public synchronized boolean canEdit(long messageId) {
+        return sent.get(messageId) != null;
+    }
+
+    public synchronized boolean canRevert(long messageId) {
+        return sent.revisionCount(messageId) > 1;
+    }
+
+    // Records a new revision of one of this user's sent messages and swaps it into this history.
+    // Returns null if the message is no longer in the undo window.
+    public synchronized Message editSentMessage(long messageId, String content, Instant editedAt) {
+        Message edited = sent.edit(messageId, content, editedAt);
+        if (edited != null) {
+            replaceMessage(edited);
+        }
+        return edited;
+    }
+
+    // Rolls a sent message back to its previous revision; null if it has never been edited.
+    public synchronized Message revertEdit(long messageId) {
+        Message reverted = sent.revert(messageId);
+        if (reverted != null) {
+            replaceMessage(reverted);
+        }
+        return reverted;
+    }
+
+    public synchronized List<MessageMemento> revisions(long messageId) {
+        return sent.revisions(messageId);
     }
 
-    public void recordSentMsg(Message msg) {
-        sentMsg.add(msg);
-        sentMementos.add(new MessageMemento(msg.getContent(),msg.getTimestamp()));
-        history.add(msg);
+    public synchronized int undoDepth() {
+        return sent.size();
     }
 
-    public Message getLastSentMessage() {
-        if (sentMsg.isEmpty()) {
-            return null;
+    // Swaps in another revision of a message this history holds, by id; no scan either way.
+    public synchronized boolean replaceMessage(Message msg) {
+        Message old = history.replace(msg);
+        if (old == null) {
+            return cold != null && cold.replace(msg);
         }
-        return sentMsg.getLast();
+        hotBytes += estimateBytes(msg) - estimateBytes(old);
+        replaceInConversation(msg.getSenderId(), msg);
+        for (int i = 0; !msg.isRoomMessage() && i < msg.getRecipientCount(); i++) {
+            replaceInConversation(msg.getRecipientId(i), msg);
+        }
+        publish();
+        return true;
     }
 
-    public MessageMemento undoLastMemento(){
-        if (sentMsg.isEmpty()) {
-            return null;
+    private void replaceInConversation(int peerId, Message msg) {
+        MessageLog conversation = conversations.get(peerId);
+        if (conversation != null) {
+            conversation.replace(msg);
+            unpublished.add(conversation);
         }
-        return sentMementos.remove(sentMsg.size() - 1);
     }
 
-    public void removeMessage(Message msg){
-        history.remove(msg);
-        sentMsg.remove(msg);
+    public synchronized void removeMessage(Message msg){
+        int copies = history.remove(msg.getId());
+        if (copies > 0) {
+            hotBytes -= copies * estimateBytes(msg);
+            unindex(msg);
+        } else if (cold != null) {
+            cold.remove(msg.getId());
+        }
+        sent.remove(msg.getId());
+        publish();
     }
 
+    public synchronized boolean contains(Message msg) {
+        return history.contains(msg.getId()) || (cold != null && cold.contains(msg.getId()));
+    }
+
+    public synchronized int size() {
+        return hotSize() + coldSize();
+    }
+
+    public synchronized int hotSize() {
+        return history.size();
+    }
+
+    public synchronized int coldSize() {
+        return cold != null ? cold.size() : 0;
+    }
+
+    public synchronized long hotBytes() {
+        return hotBytes;
+    }
+
+    public synchronized long coldBytes() {
+        return cold != null ? cold.diskBytes() : 0;
+    }
+
+    // Read-only, point-in-time and, until something spills, neither locked nor copied. Once
+    // spilled, the cold part is inflated a block at a time as the list is read.
     public List<Message> getAllMessages() {
-        return history;
+        MessageLog.Snapshot hot = hotOnly(history);
+        if (hot != null) {
+            return hot;
+        }
+        synchronized (this) {
+            List<Message> older = cold.snapshot();
+            MessageLog.Snapshot recent = history.snapshot();
+            return older.isEmpty() ? recent : new Concatenated(older, recent);
+        }
+    }
+
+    private record Fingerprint(int senderId, Instant timestamp, String content) {
+        static Fingerprint of(Message msg) {
+            return new Fingerprint(msg.getSenderId(), msg.getTimestamp(), msg.getContent());
+        }
+    }
+
+    private static final class Concatenated extends AbstractList<Message> {
+        private final List<Message> older;
+        private final List<Message> recent;
+
+        Concatenated(List<Message> older, List<Message> recent) {
+            this.older = older;
+            this.recent = recent;
+        }
+
+        @Override
+        public int size() {
+            return older.size() + recent.size();
+        }
+
+        @Override
+        public Message get(int index) {
+            return index < older.size() ? older.get(index) : recent.get(index - older.size());
+        }
+    }
+
+    // Streams the whole history oldest first without copying it. Once spilled, cold blocks are
+    // inflated one at a time and the lock is held until the last message has been handed over.
+    public void forEachMessage(Consumer<Message> action) {
+        MessageLog.Snapshot hot = hotOnly(history);
+        if (hot != null) {
+            hot.forEach(action);
+            return;
+        }
+        synchronized (this) {
+            cold.iterator(-1).forEachRemaining(action);
+            history.snapshot().forEach(action);
+        }
     }
 
     @Override
     public Iterator<Message> iterator(User userToSearchWith) {
-        return new SearchMessagesByUser(history, userToSearchWith.getName());
+        MessageLog.Snapshot hot = hotOnly(conversations.get(userToSearchWith.getId()));
+        if (hot != null) {
+            return hot.iterator();
+        }
+        // Both halves are fixed here: a spill while the caller iterates neither repeats nor hides anything.
+        synchronized (this) {
+            Iterator<Message> recent = conversationSnapshot(userToSearchWith.getId()).iterator();
+            Iterator<Message> older = cold.iterator(userToSearchWith.getId());
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    synchronized (ChatHistory.this) {
+                        return older.hasNext() || recent.hasNext();
+                    }
+                }
+
+                @Override
+                public Message next() {
+                    synchronized (ChatHistory.this) {
+                        return older.hasNext() ? older.next() : recent.next();
+                    }
+                }
+            };
+        }
+    }
+
+    public HistoryPage latest(int limit) {
+        return before(null, limit);
+    }
+
+    public HistoryPage before(HistoryCursor cursor, int limit) {
+        MessageLog.Snapshot hot = hotOnly(history);
+        if (hot != null) {
+            return pageBefore(hot, -1, false, cursor, limit);
+        }
+        synchronized (this) {
+            return pageBefore(history.snapshot(), -1, true, cursor, limit);
+        }
+    }
+
+    public HistoryPage after(HistoryCursor cursor, int limit) {
+        return after(cursor, null, limit);
+    }
+
+    // Like after(cursor, limit) but stops at 'to', for continuing a between(...) page.
+    public HistoryPage after(HistoryCursor cursor, Instant to, int limit) {
+        MessageLog.Snapshot hot = hotOnly(history);
+        if (hot != null) {
+            return pageAfter(hot, -1, false, cursor, null, to, limit);
+        }
+        synchronized (this) {
+            return pageAfter(history.snapshot(), -1, true, cursor, null, to, limit);
+        }
+    }
+
+    // Oldest first from 'from' (inclusive) up to 'to' (exclusive); null bounds are open.
+    public HistoryPage between(Instant from, Instant to, int limit) {
+        MessageLog.Snapshot hot = hotOnly(history);
+        if (hot != null) {
+            return pageAfter(hot, -1, false, null, from, to, limit);
+        }
+        synchronized (this) {
+            return pageAfter(history.snapshot(), -1, true, null, from, to, limit);
+        }
+    }
+
+    @Override
+    public HistoryPage pageWith(User userToSearchWith, HistoryCursor before, int limit) {
+        return pageWith(userToSearchWith.getId(), before, limit);
+    }
+
+    // By id, for callers that know a peer only by name and must not create a User for it.
+    public HistoryPage pageWith(int peerId, HistoryCursor before, int limit) {
+        MessageLog.Snapshot hot = hotOnly(conversations.get(peerId));
+        if (hot != null) {
+            return pageBefore(hot, peerId, false, before, limit);
+        }
+        synchronized (this) {
+            return pageBefore(conversationSnapshot(peerId), peerId, true, before, limit);
+        }
+    }
+
+    // The published snapshot of a log, or null once the history has spilled and reads must
+    // merge in the cold tier under the lock. The snapshot is taken first, so a spill racing
+    // with this call cannot hide messages from it.
+    private MessageLog.Snapshot hotOnly(MessageLog log) {
+        MessageLog.Snapshot snapshot = log != null ? log.snapshot() : EMPTY.snapshot();
+        return spilled ? null : snapshot;
+    }
+
+    private MessageLog.Snapshot conversationSnapshot(int peerId) {
+        MessageLog conversation = conversations.get(peerId);
+        return conversation != null ? conversation.snapshot() : EMPTY.snapshot();
+    }
+
+    // Fetches one extra message to learn whether an older page exists.
+    private HistoryPage pageBefore(MessageLog.Snapshot hot, int peerId, boolean withCold, HistoryCursor cursor, int limit) {
+        boolean fromHot = cursor == null || inHot(hot, cursor);
+        List<Message> page = new ArrayList<>(limit + 1);
+        if (fromHot) {
+            page.addAll(cursor == null ? hot.tail(limit + 1)
+                    : hot.before(cursor.getMessageId(), cursor.getTimestamp(), limit + 1));
+        }
+        int missing = limit + 1 - page.size();
+        if (missing > 0 && withCold && cold.size() > 0) {
+            MessageLog.Snapshot older = coldLog(peerId);
+            page.addAll(0, fromHot ? older.tail(missing)
+                    : older.before(cursor.getMessageId(), cursor.getTimestamp(), missing));
+        }
+        boolean hasMore = page.size() > limit;
+        return new HistoryPage(hasMore ? page.subList(1, page.size()) : page, hasMore);
+    }
+
+    private HistoryPage pageAfter(MessageLog.Snapshot hot, int peerId, boolean withCold, HistoryCursor cursor,
+                                  Instant from, Instant to, int limit) {
+        boolean fromCold = withCold && cold.size() > 0 && (cursor != null ? !inHot(hot, cursor)
+                : from == null || hot.isEmpty() || from.isBefore(hot.first().getTimestamp()));
+        List<Message> page = new ArrayList<>(limit + 1);
+        if (fromCold) {
+            MessageLog.Snapshot older = coldLog(peerId);
+            page.addAll(cursor != null ? older.after(cursor.getMessageId(), cursor.getTimestamp(), to, limit + 1)
+                    : older.range(from, to, limit + 1));
+            if (page.size() <= limit) {
+                page.addAll(hot.range(null, to, limit + 1 - page.size()));
+            }
+        } else {
+            page.addAll(cursor != null ? hot.after(cursor.getMessageId(), cursor.getTimestamp(), to, limit + 1)
+                    : hot.range(from, to, limit + 1));
+        }
+        boolean hasMore = page.size() > limit;
+        return new HistoryPage(hasMore ? page.subList(0, limit) : page, hasMore);
+    }
+
+    private static boolean inHot(MessageLog.Snapshot hot, HistoryCursor cursor) {
+        return hot.contains(cursor.getMessageId(), cursor.getTimestamp())
+                || (!hot.isEmpty() && !cursor.getTimestamp().isBefore(hot.first().getTimestamp()));
+    }
+
+    // Spilled messages only come back decoded, so a page that reaches past the hot tier decodes
+    // the cold one (or, for a conversation, the blocks that involve the peer).
+    private MessageLog.Snapshot coldLog(int peerId) {
+        MessageLog log = new MessageLog();
+        cold.iterator(peerId).forEachRemaining(log::append);
+        log.publish();
+        return log.snapshot();
+    }
+
+    // Releases the spilled blocks of a bounded history; the history must not be used afterwards.
+    public synchronized void close() {
+        if (cold != null) {
+            cold.close();
+        }
+    }
+
+    private void appendHot(Message msg) {
+        history.append(msg);
+        hotBytes += estimateBytes(msg);
+        index(msg);
+    }
+
+    private void enforceRetention() {
+        if (cold == null) {
+            return;
+        }
+        int maxMessages = retention.getMaxMessages();
+        long maxBytes = retention.getMaxBytes();
+        Instant cutoff = retention.getMaxAge() != null ? Instant.now().minus(retention.getMaxAge()) : null;
+        boolean over = (maxMessages > 0 && history.size() > maxMessages)
+                || (maxBytes > 0 && hotBytes > maxBytes)
+                || (cutoff != null && !history.isEmpty() && history.first().getTimestamp().isBefore(cutoff));
+        if (!over) {
+            return;
+        }
+
+        int targetMessages = maxMessages > 0 ? (int) (maxMessages * LOW_WATERMARK) : Integer.MAX_VALUE;
+        long targetBytes = maxBytes > 0 ? (long) (maxBytes * LOW_WATERMARK) : Long.MAX_VALUE;
+        List<Message> evicted = new ArrayList<>();
+        while (!history.isEmpty()) {
+            Message oldest = history.first();
+            boolean keep = history.size() <= targetMessages
+                    && hotBytes <= targetBytes
+                    && (cutoff == null || !oldest.getTimestamp().isBefore(cutoff));
+            if (keep) {
+                break;
+            }
+            evicted.add(oldest);
+            hotBytes -= history.remove(oldest.getId()) * estimateBytes(oldest);
+            unindex(oldest);
+            // Undo and edits only reach messages that are still hot.
+            sent.remove(oldest.getId());
+        }
+        spilled = true;
+        cold.spill(evicted);
+    }
+
+    private void publish() {
+        history.publish();
+        for (MessageLog log : unpublished) {
+            log.publish();
+        }
+        unpublished.clear();
+    }
+
+    // Rough heap footprint: object headers and fields, the recipient array and the content chars.
+    static long estimateBytes(Message msg) {
+        return 96 + 4L * msg.getRecipientCount() + 2L * msg.getContent().length();
+    }
+
+    // Room posts are filed under their sender only; indexing every member would cost O(room) per post.
+    private void index(Message msg) {
+        indexPeer(msg.getSenderId(), msg);
+        if (msg.isRoomMessage()) {
+            return;
+        }
+        for (int i = 0; i < msg.getRecipientCount(); i++) {
+            indexPeer(msg.getRecipientId(i), msg);
+        }
+    }
+
+    private void indexPeer(int peerId, Message msg) {
+        MessageLog conversation = conversations.computeIfAbsent(peerId, id -> new MessageLog());
+        // A name listed twice on one message (or sender == recipient) is indexed once.
+        if (conversation.last() != msg) {
+            conversation.append(msg);
+            unpublished.add(conversation);
+        }
+    }
+
+    private void unindex(Message msg) {
+        unindexPeer(msg.getSenderId(), msg);
+        if (msg.isRoomMessage()) {
+            return;
+        }
+        for (int i = 0; i < msg.getRecipientCount(); i++) {
+            unindexPeer(msg.getRecipientId(i), msg);
+        }
+    }
+
+    private void unindexPeer(int peerId, Message msg) {
+        MessageLog conversation = conversations.get(peerId);
+        if (conversation != null && conversation.remove(msg.getId()) > 0) {
+            unpublished.add(conversation);
+            if (conversation.isEmpty()) {
+                conversations.remove(peerId);
+            }
+        }
     }
 }
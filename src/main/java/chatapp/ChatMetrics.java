@@ -0,0 +1,250 @@
+package chatapp;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for one ChatServer. The server starts with DISABLED, whose
+// recording methods return on a final-field check, so turning metrics off costs a branch.
+public class ChatMetrics implements ChatMetricsMXBean {
+
+    public static final ChatMetrics DISABLED = new ChatMetrics(false, Map.of());
+
+    private final boolean enabled;
+    private final Map<String, User> users;
+
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder recipientsDelivered = new LongAdder();
+    private final LongAdder blockedDrops = new LongAdder();
+    private final LongAdder missingRecipients = new LongAdder();
+    private final LongAdder undos = new LongAdder();
+    private final LongAdder emptyUndos = new LongAdder();
+    private final LongAdder rejectedSends = new LongAdder();
+    private final LongAdder queuedSends = new LongAdder();
+    private final LatencyHistogram sendLatency;
+    private final LatencyHistogram batchLatency;
+    private final LatencyHistogram undoLatency;
+    private final LatencyHistogram historyIterationLatency;
+    private final LatencyHistogram queueWait;
+
+    private ObjectName registeredAs;
+
+    ChatMetrics(boolean enabled, Map<String, User> users) {
+        this.enabled = enabled;
+        this.users = users;
+        this.sendLatency = enabled ? new LatencyHistogram() : null;
+        this.batchLatency = enabled ? new LatencyHistogram() : null;
+        this.undoLatency = enabled ? new LatencyHistogram() : null;
+        this.historyIterationLatency = enabled ? new LatencyHistogram() : null;
+        this.queueWait = enabled ? new LatencyHistogram() : null;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Returns 0 when disabled so callers can skip System.nanoTime() as well.
+    long startTimer() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    void messageSent(long startNanos) {
+        if (!enabled) return;
+        messagesSent.increment();
+        sendLatency.record(System.nanoTime() - startNanos);
+    }
+
+    // Batches count every message but record one latency for the whole call.
+    void batchSent(long startNanos, int messages) {
+        if (!enabled) return;
+        messagesSent.add(messages);
+        batchLatency.record(System.nanoTime() - startNanos);
+    }
+
+    void delivered() {
+        if (enabled) recipientsDelivered.increment();
+    }
+
+    void delivered(int count) {
+        if (enabled) recipientsDelivered.add(count);
+    }
+
+    void blocked() {
+        if (enabled) blockedDrops.increment();
+    }
+
+    void blocked(int count) {
+        if (enabled && count > 0) blockedDrops.add(count);
+    }
+
+    void missingRecipient() {
+        if (enabled) missingRecipients.increment();
+    }
+
+    void missingRecipients(int count) {
+        if (enabled && count > 0) missingRecipients.add(count);
+    }
+
+    void undone(long startNanos) {
+        if (!enabled) return;
+        undos.increment();
+        undoLatency.record(System.nanoTime() - startNanos);
+    }
+
+    void nothingToUndo() {
+        if (enabled) emptyUndos.increment();
+    }
+
+    void historyIterated(long startNanos) {
+        if (enabled) historyIterationLatency.record(System.nanoTime() - startNanos);
+    }
+
+    // Turned away by the sender's rate limit or a full scheduler lane.
+    void sendRejected() {
+        if (enabled) rejectedSends.increment();
+    }
+
+    void sendQueued() {
+        if (enabled) queuedSends.increment();
+    }
+
+    // Time a queued send waited for its lane's turn.
+    void sendDequeued(long startNanos) {
+        if (enabled) queueWait.record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getRecipientsDelivered() {
+        return recipientsDelivered.sum();
+    }
+
+    @Override
+    public long getBlockedDrops() {
+        return blockedDrops.sum();
+    }
+
+    @Override
+    public long getMissingRecipients() {
+        return missingRecipients.sum();
+    }
+
+    @Override
+    public long getUndos() {
+        return undos.sum();
+    }
+
+    @Override
+    public long getEmptyUndos() {
+        return emptyUndos.sum();
+    }
+
+    @Override
+    public long getRejectedSends() {
+        return rejectedSends.sum();
+    }
+
+    @Override
+    public long getQueuedSends() {
+        return queuedSends.sum();
+    }
+
+    @Override
+    public HistogramSnapshot getSendLatency() {
+        return snapshotOf(sendLatency);
+    }
+
+    @Override
+    public HistogramSnapshot getBatchLatency() {
+        return snapshotOf(batchLatency);
+    }
+
+    @Override
+    public HistogramSnapshot getUndoLatency() {
+        return snapshotOf(undoLatency);
+    }
+
+    @Override
+    public HistogramSnapshot getHistoryIterationLatency() {
+        return snapshotOf(historyIterationLatency);
+    }
+
+    @Override
+    public HistogramSnapshot getQueueWait() {
+        return snapshotOf(queueWait);
+    }
+
+    // Computed on demand: walks every registered user, so it is not free on large servers.
+    @Override
+    public Map<String, Integer> getHistorySizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (User usr : users.values()) {
+            sizes.put(usr.getName(), usr.getHistory().size());
+        }
+        return sizes;
+    }
+
+    @Override
+    public void reset() {
+        messagesSent.reset();
+        recipientsDelivered.reset();
+        blockedDrops.reset();
+        missingRecipients.reset();
+        undos.reset();
+        emptyUndos.reset();
+        rejectedSends.reset();
+        queuedSends.reset();
+        if (enabled) {
+            sendLatency.reset();
+            batchLatency.reset();
+            undoLatency.reset();
+            historyIterationLatency.reset();
+            queueWait.reset();
+        }
+    }
+
+    public ChatMetricsSnapshot snapshot() {
+        return new ChatMetricsSnapshot(getMessagesSent(), getRecipientsDelivered(), getBlockedDrops(),
+                getMissingRecipients(), getUndos(), getEmptyUndos(), getRejectedSends(), getQueuedSends(), getSendLatency(),
+                getBatchLatency(), getUndoLatency(), getHistoryIterationLatency(), getQueueWait(), getHistorySizes());
+    }
+
+    // Registers under chatapp:type=ChatServer,name=<serverName> on the platform MBean server.
+    public synchronized ObjectName registerMBean(String serverName) {
+        try {
+            ObjectName name = ObjectName.getInstance("chatapp:type=ChatServer,name=" + ObjectName.quote(serverName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registeredAs = name;
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics MBean for " + serverName, e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registeredAs == null) {
+            return;
+        }
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeans.unregisterMBean(registeredAs);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not unregister " + registeredAs, e);
+        } finally {
+            registeredAs = null;
+        }
+    }
+
+    private static HistogramSnapshot snapshotOf(LatencyHistogram histogram) {
+        return histogram != null ? histogram.snapshot() : new HistogramSnapshot(0, 0, 0, 0, 0, 0, 0);
+    }
+}
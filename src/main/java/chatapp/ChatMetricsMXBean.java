@@ -0,0 +1,22 @@
+package chatapp;
+
+import java.util.Map;
+
+public interface ChatMetricsMXBean {
+    boolean isEnabled();
+    long getMessagesSent();
+    long getRecipientsDelivered();
+    long getBlockedDrops();
+    long getMissingRecipients();
+    long getUndos();
+    long getEmptyUndos();
+    long getRejectedSends();
+    long getQueuedSends();
+    HistogramSnapshot getSendLatency();
+    HistogramSnapshot getBatchLatency();
+    HistogramSnapshot getUndoLatency();
+    HistogramSnapshot getHistoryIterationLatency();
+    HistogramSnapshot getQueueWait();
+    Map<String, Integer> getHistorySizes();
+    void reset();
+}
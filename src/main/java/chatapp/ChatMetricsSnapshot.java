@@ -0,0 +1,111 @@
+package chatapp;
+
+import java.util.Collections;
+import java.util.Map;
+
+// Point-in-time copy of a server's ChatMetrics.
+public class ChatMetricsSnapshot {
+
+    private final long messagesSent;
+    private final long recipientsDelivered;
+    private final long blockedDrops;
+    private final long missingRecipients;
+    private final long undos;
+    private final long emptyUndos;
+    private final long rejectedSends;
+    private final long queuedSends;
+    private final HistogramSnapshot sendLatency;
+    private final HistogramSnapshot batchLatency;
+    private final HistogramSnapshot undoLatency;
+    private final HistogramSnapshot historyIterationLatency;
+    private final HistogramSnapshot queueWait;
+    private final Map<String, Integer> historySizes;
+
+    ChatMetricsSnapshot(long messagesSent, long recipientsDelivered, long blockedDrops, long missingRecipients,
+                        long undos, long emptyUndos, long rejectedSends, long queuedSends, HistogramSnapshot sendLatency,
+                        HistogramSnapshot batchLatency, HistogramSnapshot undoLatency, HistogramSnapshot historyIterationLatency,
+                        HistogramSnapshot queueWait, Map<String, Integer> historySizes) {
+        this.messagesSent = messagesSent;
+        this.recipientsDelivered = recipientsDelivered;
+        this.blockedDrops = blockedDrops;
+        this.missingRecipients = missingRecipients;
+        this.undos = undos;
+        this.emptyUndos = emptyUndos;
+        this.rejectedSends = rejectedSends;
+        this.queuedSends = queuedSends;
+        this.sendLatency = sendLatency;
+        this.batchLatency = batchLatency;
+        this.undoLatency = undoLatency;
+        this.historyIterationLatency = historyIterationLatency;
+        this.queueWait = queueWait;
+        this.historySizes = Collections.unmodifiableMap(historySizes);
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getRecipientsDelivered() {
+        return recipientsDelivered;
+    }
+
+    public long getBlockedDrops() {
+        return blockedDrops;
+    }
+
+    public long getMissingRecipients() {
+        return missingRecipients;
+    }
+
+    public long getUndos() {
+        return undos;
+    }
+
+    public long getEmptyUndos() {
+        return emptyUndos;
+    }
+
+    public long getRejectedSends() {
+        return rejectedSends;
+    }
+
+    public long getQueuedSends() {
+        return queuedSends;
+    }
+
+    public HistogramSnapshot getSendLatency() {
+        return sendLatency;
+    }
+
+    public HistogramSnapshot getBatchLatency() {
+        return batchLatency;
+    }
+
+    public HistogramSnapshot getUndoLatency() {
+        return undoLatency;
+    }
+
+    public HistogramSnapshot getHistoryIterationLatency() {
+        return historyIterationLatency;
+    }
+
+    public HistogramSnapshot getQueueWait() {
+        return queueWait;
+    }
+
+    public Map<String, Integer> getHistorySizes() {
+        return historySizes;
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + messagesSent + " delivered=" + recipientsDelivered + " blocked=" + blockedDrops
+                + " missing=" + missingRecipients + " undos=" + undos + " emptyUndos=" + emptyUndos
+                + " rejected=" + rejectedSends + " queued=" + queuedSends
+                + System.lineSeparator() + "  send:    " + sendLatency
+                + System.lineSeparator() + "  batch:   " + batchLatency
+                + System.lineSeparator() + "  undo:    " + undoLatency
+                + System.lineSeparator() + "  history: " + historyIterationLatency
+                + System.lineSeparator() + "  queued:  " + queueWait;
+    }
+}
@@ -0,0 +1,477 @@
+package chatapp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking front end for one ChatServer, speaking ChatProtocol. A single selector thread
+// accepts, reads, decodes and writes; the requests themselves run on a virtual thread per busy
+// connection, in arrival order, since sends, blocks and undos can wait on mailboxes, the journal
+// or the fair scheduler. A client may pipeline as many as it likes: past MAX_PENDING_REQUESTS
+// not yet run, the selector stops reading its connection until the backlog halves.
+// Each connection registers at most one user, which receives its deliveries as pushed DELIVERY
+// frames. Names in requests are looked up, never interned, and sends to a name nobody has
+// registered are refused.
+//
+// Outbound frames, whether responses or pushes from any delivering thread, are appended to the
+// connection's buffer and the connection queued once; the selector thread then drains every
+// queued connection with one write each, so a burst of deliveries costs one syscall.
+// A connection whose unsent output passes MAX_OUTBOUND is dropped as too slow.
+public class ChatNetworkServer implements AutoCloseable {
+
+    public static final int MAX_OUTBOUND = 32 * 1024 * 1024;
+    public static final int MAX_PENDING_REQUESTS = 1024;
+
+    private final ChatServer server;
+    private final InetSocketAddress address;
+    private final Queue<Connection> flushQueue = new ConcurrentLinkedQueue<>();
+    // Paused connections whose backlog has drained; the selector thread reads them again.
+    private final Queue<Connection> resumeQueue = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel listener;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+
+    private final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(8 * 1024);
+        // Guarded by this connection; filled by any thread, drained by the selector thread.
+        ByteBuffer out = ByteBuffer.allocate(8 * 1024);
+        boolean queued = false;
+        boolean overflowed = false;
+        // Guarded by this connection, like closed.
+        NetworkUser user;
+        boolean closed = false;
+        // Decoded requests not yet run, and whether a worker is running them.
+        final Queue<Runnable> requests = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicBoolean working = new AtomicBoolean();
+        // Selector thread only.
+        boolean paused = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Returns false once the backlog is full and reading should pause.
+        boolean submit(Runnable request) {
+            requests.add(request);
+            if (working.compareAndSet(false, true)) {
+                Thread.ofVirtual().name("chat-request").start(this::work);
+            }
+            return pending.incrementAndGet() < MAX_PENDING_REQUESTS;
+        }
+
+        private void work() {
+            do {
+                for (Runnable request; (request = requests.poll()) != null; ) {
+                    request.run();
+                    if (pending.decrementAndGet() == MAX_PENDING_REQUESTS / 2) {
+                        resumeQueue.add(this);
+                        selector.wakeup();
+                    }
+                }
+                working.set(false);
+                // A request added after the last poll but before the flag cleared has no worker yet.
+            } while (!requests.isEmpty() && working.compareAndSet(false, true));
+        }
+
+        void enqueue(ByteBuffer frame) {
+            boolean wake;
+            synchronized (this) {
+                if (overflowed) {
+                    return;
+                }
+                if (out.position() + frame.remaining() > MAX_OUTBOUND) {
+                    overflowed = true;
+                } else {
+                    if (out.remaining() < frame.remaining()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + frame.remaining()));
+                        bigger.put(out.flip());
+                        out = bigger;
+                    }
+                    out.put(frame);
+                }
+                wake = !queued;
+                queued = true;
+            }
+            if (wake) {
+                flushQueue.add(this);
+                if (Thread.currentThread() != selectorThread) {
+                    selector.wakeup();
+                }
+            }
+        }
+    }
+
+    // A registered user whose deliveries also go out to its connection.
+    private static final class NetworkUser extends User {
+        private final Connection connection;
+
+        NetworkUser(String name, ChatServer server, Connection connection) {
+            super(name, server);
+            this.connection = connection;
+        }
+
+        @Override
+        public void receiveMessageInternal(Message msg) {
+            super.receiveMessageInternal(msg);
+            connection.enqueue(new ChatProtocol.Frame(ChatProtocol.DELIVERY, 0).putMessage(msg).finish());
+        }
+
+        @Override
+        public void receiveMessagesInternal(List<Message> batch) {
+            super.receiveMessagesInternal(batch);
+            for (Message msg : batch) {
+                connection.enqueue(new ChatProtocol.Frame(ChatProtocol.DELIVERY, 0).putMessage(msg).finish());
+            }
+        }
+    }
+
+    public ChatNetworkServer(ChatServer server, InetSocketAddress address) {
+        this.server = server;
+        this.address = address;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        try {
+            selector = Selector.open();
+            listener = ServerSocketChannel.open();
+            listener.bind(address);
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        running = true;
+        selectorThread = Thread.ofPlatform().name("chat-selector").daemon().start(this::loop);
+    }
+
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(conn);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        close(conn);
+                    }
+                }
+                for (Connection conn; (conn = flushQueue.poll()) != null; ) {
+                    try {
+                        flush(conn);
+                    } catch (IOException e) {
+                        close(conn);
+                    }
+                }
+                for (Connection conn; (conn = resumeQueue.poll()) != null; ) {
+                    if (conn.paused && conn.channel.isOpen()) {
+                        conn.paused = false;
+                        try {
+                            process(conn);
+                        } catch (IOException | RuntimeException e) {
+                            close(conn);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    private void read(Connection conn) throws IOException {
+        if (conn.channel.read(conn.in) < 0) {
+            close(conn);
+            return;
+        }
+        process(conn);
+    }
+
+    // Hands every complete frame buffered so far to the connection's worker, unless its backlog
+    // fills first; the rest waits in the buffer until the worker catches up.
+    private void process(Connection conn) throws IOException {
+        ByteBuffer in = conn.in.flip();
+        while (!conn.paused && in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < ChatProtocol.HEADER || length > ChatProtocol.MAX_FRAME) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                if (in.capacity() < 4 + length) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(in.capacity() * 2, 4 + length));
+                    bigger.put(in);
+                    conn.in = bigger;
+                    updateInterest(conn);
+                    return;
+                }
+                break;
+            }
+            int end = in.position() + 4 + length;
+            in.position(in.position() + 4);
+            byte type = in.get();
+            int requestId = in.getInt();
+            // The read buffer is reused, so the worker gets its own copy of the body.
+            ByteBuffer body = ByteBuffer.allocate(end - in.position()).put(in.slice(in.position(), end - in.position())).flip();
+            in.position(end);
+            conn.paused = !conn.submit(() -> handle(conn, type, requestId, body));
+        }
+        in.compact();
+        updateInterest(conn);
+    }
+
+    // Runs on the connection's worker.
+    private void handle(Connection conn, byte type, int requestId, ByteBuffer body) {
+        synchronized (conn) {
+            if (conn.closed) {
+                return;
+            }
+        }
+        ByteBuffer reply;
+        try {
+            reply = switch (type) {
+                case ChatProtocol.REGISTER -> register(conn, requestId, ChatProtocol.readString(body));
+                case ChatProtocol.SEND -> {
+                    User sender = requireUser(conn);
+                    int count = body.getInt();
+                    List<String> recipients = new ArrayList<>(Math.min(count, body.remaining() / 4));
+                    for (int i = 0; i < count; i++) {
+                        recipients.add(requireKnown(ChatProtocol.readString(body)));
+                    }
+                    String content = ChatProtocol.readString(body);
+                    String key = ChatProtocol.readString(body);
+                    // With mailboxes the OK waits for delivery without holding up the selector.
+                    server.sendMessage(sender, recipients, content, key.isEmpty() ? null : key)
+                            .whenComplete((msg, err) -> conn.enqueue(err == null ? ok(requestId, msg.getId()) : error(requestId, err)));
+                    yield null;
+                }
+                case ChatProtocol.BLOCK -> {
+                    requireUser(conn).blockUser(requireKnown(ChatProtocol.readString(body)));
+                    yield ok(requestId, 0);
+                }
+                case ChatProtocol.UNDO -> {
+                    requireUser(conn).undoLastMessage();
+                    yield ok(requestId, 0);
+                }
+                case ChatProtocol.HISTORY -> page(requestId, requireUser(conn), body);
+                default -> throw new IllegalArgumentException("Unknown request type " + type);
+            };
+        } catch (RuntimeException e) {
+            reply = error(requestId, e);
+        }
+        if (reply != null) {
+            conn.enqueue(reply);
+        }
+    }
+
+    private ByteBuffer register(Connection conn, int requestId, String name) {
+        synchronized (conn) {
+            if (conn.user != null) {
+                throw new IllegalStateException("Already registered as " + conn.user.getName());
+            }
+        }
+        if (server.getUser(name) != null) {
+            throw new IllegalArgumentException(name + " is already connected");
+        }
+        NetworkUser usr = new NetworkUser(name, server, conn);
+        server.registerUser(usr);
+        boolean open;
+        synchronized (conn) {
+            open = !conn.closed;
+            if (open) {
+                conn.user = usr;
+            }
+        }
+        // The connection went away while registering: nobody else will unregister the user.
+        if (!open) {
+            server.unregisterUser(usr);
+        }
+        return ok(requestId, usr.getId());
+    }
+
+    private String requireKnown(String name) {
+        if (!server.isKnownUser(name)) {
+            throw new IllegalArgumentException("Unknown user " + name);
+        }
+        return name;
+    }
+
+    private ByteBuffer page(int requestId, User usr, ByteBuffer body) {
+        String peerName = ChatProtocol.readString(body);
+        long beforeId = body.getLong();
+        long seconds = body.getLong();
+        int nanos = body.getInt();
+        int limit = body.getInt();
+        HistoryCursor before = beforeId != 0 ? new HistoryCursor(beforeId, Instant.ofEpochSecond(seconds, nanos)) : null;
+        HistoryPage page;
+        if (peerName.isEmpty()) {
+            page = usr.getHistory().before(before, limit);
+        } else {
+            // The conversation outlives the peer's connection, so only the id is needed; a name
+            // never seen has no conversation.
+            int peerId = UserDictionary.GLOBAL.lookup(peerName);
+            page = peerId >= 0 ? usr.getHistory().pageWith(peerId, before, limit) : new HistoryPage(List.of(), false);
+        }
+        ChatProtocol.Frame frame = new ChatProtocol.Frame(ChatProtocol.PAGE, requestId)
+                .putByte(page.hasMore() ? 1 : 0)
+                .putInt(page.getMessages().size());
+        for (Message msg : page.getMessages()) {
+            frame.putMessage(msg);
+        }
+        return frame.finish();
+    }
+
+    private static User requireUser(Connection conn) {
+        synchronized (conn) {
+            if (conn.user == null) {
+                throw new IllegalStateException("Register first");
+            }
+            return conn.user;
+        }
+    }
+
+    private static ByteBuffer ok(int requestId, long value) {
+        return new ChatProtocol.Frame(ChatProtocol.OK, requestId).putLong(value).finish();
+    }
+
+    private static ByteBuffer error(int requestId, Throwable e) {
+        Throwable cause = e.getCause() != null && e instanceof CompletionException ? e.getCause() : e;
+        return new ChatProtocol.Frame(ChatProtocol.ERROR, requestId).putString(String.valueOf(cause.getMessage())).finish();
+    }
+
+    // Selector thread only.
+    private void flush(Connection conn) throws IOException {
+        if (!conn.channel.isOpen()) {
+            return;
+        }
+        boolean pending;
+        synchronized (conn) {
+            conn.queued = false;
+            if (conn.overflowed) {
+                pending = false;
+            } else {
+                conn.out.flip();
+                conn.channel.write(conn.out);
+                conn.out.compact();
+                pending = conn.out.position() > 0;
+            }
+        }
+        if (conn.overflowed) {
+            close(conn);
+            return;
+        }
+        setInterest(conn, pending);
+    }
+
+    // Selector thread only.
+    private void updateInterest(Connection conn) {
+        boolean pending;
+        synchronized (conn) {
+            pending = conn.out.position() > 0;
+        }
+        setInterest(conn, pending);
+    }
+
+    private void setInterest(Connection conn, boolean pendingOutput) {
+        int ops = (conn.paused ? 0 : SelectionKey.OP_READ) | (pendingOutput ? SelectionKey.OP_WRITE : 0);
+        if (conn.key.isValid() && conn.key.interestOps() != ops) {
+            conn.key.interestOps(ops);
+        }
+    }
+
+    private void close(Connection conn) {
+        if (conn.key != null) {
+            conn.key.cancel();
+        }
+        try {
+            conn.channel.close();
+        } catch (IOException ignored) {
+            // Already gone.
+        }
+        NetworkUser usr;
+        synchronized (conn) {
+            conn.closed = true;
+            usr = conn.user;
+            conn.user = null;
+        }
+        if (usr != null && server.getUser(usr.getName()) == usr) {
+            server.unregisterUser(usr);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection conn) {
+                    close(conn);
+                }
+            }
+            listener.close();
+            selector.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package chatapp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+// Wire format shared by ChatNetworkServer and ChatClient.
+// Frame: [int length of the rest][byte type][int requestId][payload]; strings are
+// [int byte length][UTF-8]. Responses echo the request id; pushed deliveries use 0.
+//
+//   REGISTER  name
+//   SEND      int count, count recipient names, content,
+//             idempotency key ("" for none)                       -> OK(message id)
+//   BLOCK     blockee name                                        -> OK(0)
+//   UNDO      (empty)                                             -> OK(0)
+//   HISTORY   peer name ("" for everything), long beforeId (0 for the newest page),
+//             long epochSecond, int nanos, int limit              -> PAGE
+//   OK        long value
+//   ERROR     message
+//   DELIVERY  message
+//   PAGE      byte hasMore, int count, messages
+// A message is: long id, sender, int count, count recipients, long epochSecond, int nanos, content.
+public class ChatProtocol {
+
+    public static final byte REGISTER = 1;
+    public static final byte SEND = 2;
+    public static final byte BLOCK = 3;
+    public static final byte UNDO = 4;
+    public static final byte HISTORY = 5;
+
+    public static final byte OK = 64;
+    public static final byte ERROR = 65;
+    public static final byte DELIVERY = 66;
+    public static final byte PAGE = 67;
+
+    // Type and request id.
+    public static final int HEADER = 5;
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    private ChatProtocol() {
+    }
+
+    // Builds one length-prefixed frame.
+    public static final class Frame {
+        private ByteBuffer out = ByteBuffer.allocate(64);
+
+        public Frame(byte type, int requestId) {
+            out.putInt(0).put(type).putInt(requestId);
+        }
+
+        public Frame putByte(int v) {
+            ensure(1).put((byte) v);
+            return this;
+        }
+
+        public Frame putInt(int v) {
+            ensure(4).putInt(v);
+            return this;
+        }
+
+        public Frame putLong(long v) {
+            ensure(8).putLong(v);
+            return this;
+        }
+
+        public Frame putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length).putInt(bytes.length).put(bytes);
+            return this;
+        }
+
+        public Frame putMessage(Message msg) {
+            putLong(msg.getId()).putString(msg.getSender());
+            List<String> recipients = msg.getRecipients();
+            putInt(recipients.size());
+            for (String name : recipients) {
+                putString(name);
+            }
+            return putLong(msg.getTimestamp().getEpochSecond())
+                    .putInt(msg.getTimestamp().getNano())
+                    .putString(msg.getContent());
+        }
+
+        // Flipped and ready to write.
+        public ByteBuffer finish() {
+            out.putInt(0, out.position() - 4);
+            return out.flip();
+        }
+
+        private ByteBuffer ensure(int n) {
+            if (out.remaining() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + n));
+                bigger.put(out.flip());
+                out = bigger;
+            }
+            return out;
+        }
+    }
+
+    public static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    public static Message readMessage(ByteBuffer in) {
+        long id = in.getLong();
+        String sender = readString(in);
+        int count = in.getInt();
+        List<String> recipients = new ArrayList<>(Math.min(count, in.remaining() / 4));
+        for (int i = 0; i < count; i++) {
+            recipients.add(readString(in));
+        }
+        Instant timestamp = Instant.ofEpochSecond(in.getLong(), in.getInt());
+        return new Message(id, sender, recipients, timestamp, readString(in));
+    }
+}
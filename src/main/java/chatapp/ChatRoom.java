@@ -0,0 +1,90 @@
+package chatapp;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// A named group kept on the server. Members are a copy-on-write int[] of user ids: every
+// room message shares the snapshot current when it was sent, so fan-out never copies the list.
+public class ChatRoom {
+
+    // Room ids have their own dictionary, so no user name can alias a room. Codecs and journals
+    // carry them as ids like users, with a separate name table.
+    public static final UserDictionary ROOMS = new UserDictionary();
+
+    private final String name;
+    private final int id;
+    private volatile int[] members = new int[0];
+    private final BitSet memberBits = new BitSet();
+
+    public ChatRoom(String name) {
+        this.name = name;
+        this.id = idOf(name);
+    }
+
+    public static int idOf(String roomName) {
+        return ROOMS.idOf(roomName);
+    }
+
+    public static String nameOf(int roomId) {
+        return ROOMS.nameOf(roomId);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int[] members() {
+        return members;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public synchronized boolean isMember(int userId) {
+        return memberBits.get(userId);
+    }
+
+    public boolean join(int userId) {
+        return joinAll(new int[] {userId}) == 1;
+    }
+
+    // One copy of the member array for the whole batch; returns how many were new.
+    public synchronized int joinAll(int[] userIds) {
+        int[] next = Arrays.copyOf(members, members.length + userIds.length);
+        int n = members.length;
+        for (int userId : userIds) {
+            if (!memberBits.get(userId)) {
+                memberBits.set(userId);
+                next[n++] = userId;
+            }
+        }
+        int added = n - members.length;
+        if (added > 0) {
+            members = n == next.length ? next : Arrays.copyOf(next, n);
+        }
+        return added;
+    }
+
+    public synchronized boolean leave(int userId) {
+        if (!memberBits.get(userId)) {
+            return false;
+        }
+        memberBits.clear(userId);
+        int[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == userId) {
+                int[] next = new int[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                members = next;
+                return true;
+            }
+        }
+        return false;
+    }
+}
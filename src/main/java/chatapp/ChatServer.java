@@ -1,83 +1,1178 @@
 package chatapp;
 
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 public class ChatServer {
 
-    private final Map<String, User> users = new HashMap<>();
-    private final Map<String, Set<String>> blockMap = new HashMap<>();
+    private static final int SYSTEM_ID = UserDictionary.GLOBAL.idOf("SYSTEM");
+
+    // Names are only resolved at the API edge; delivery works on interned user ids.
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final IdTable<User> usersById = new IdTable<>();
+    private final IdTable<BlockList> blockLists = new IdTable<>();
+    private final IdTable<Mailbox> mailboxes = new IdTable<>();
+    private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    private final int mailboxCapacity;
+    private final BackpressurePolicy backpressure;
+    private volatile MessageJournal journal;
+    private volatile ChatEventSink events = new ConsoleEventSink();
+    private volatile ChatMetrics metrics = ChatMetrics.DISABLED;
+    private volatile SearchIndex searchIndex;
+    private volatile DedupCache<CompletableFuture<Message>> dedup;
+    private volatile OfflineStore offline = new OfflineStore();
+    private volatile RateLimiter rateLimiter;
+    private volatile FairScheduler scheduler;
+    // Set once by joinCluster; null for a standalone server. The ring is written last.
+    private int shardId = -1;
+    private ShardTransport transport;
+    private volatile ShardRing ring;
+
+    public ChatServer() {
+        this(0, BackpressurePolicy.BLOCK);
+    }
+
+    // A positive capacity switches to asynchronous delivery through per-recipient mailboxes.
+    public ChatServer(int mailboxCapacity, BackpressurePolicy backpressure) {
+        this.mailboxCapacity = mailboxCapacity;
+        this.backpressure = backpressure;
+    }
+
+    public boolean isAsync() {
+        return mailboxCapacity > 0;
+    }
+
+    // Swap before anyone goes offline; the store being replaced is closed with whatever it held.
+    public void setOfflineStore(OfflineStore store) {
+        OfflineStore previous = offline;
+        offline = store;
+        previous.close();
+    }
+
+    public OfflineStore getOfflineStore() {
+        return offline;
+    }
+
+    public void setEventSink(ChatEventSink events) {
+        this.events = events != null ? events : NoOpEventSink.INSTANCE;
+    }
+
+    // Swaps in a live ChatMetrics; until then every recording call is a no-op.
+    public ChatMetrics enableMetrics() {
+        ChatMetrics current = metrics;
+        if (!current.isEnabled()) {
+            current = new ChatMetrics(true, users);
+            metrics = current;
+        }
+        return current;
+    }
+
+    public void disableMetrics() {
+        metrics = ChatMetrics.DISABLED;
+    }
+
+    public ChatMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Builds a full-text index over every registered user's history and keeps it current from
+    // here on. Off by default, since every send then also pays for indexing.
+    public synchronized SearchIndex enableSearch() {
+        if (searchIndex == null) {
+            SearchIndex index = new SearchIndex();
+            List<Message> existing = new ArrayList<>();
+            for (User usr : users.values()) {
+                existing.addAll(usr.getHistory().getAllMessages());
+            }
+            existing.sort(Comparator.comparingLong(Message::getId));
+            index.addAll(existing);
+            searchIndex = index;
+        }
+        return searchIndex;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    // Sizes the cache behind keyed sends. Without this call the first keyed send creates one with
+    // DedupCache defaults; unkeyed sends never touch it.
+    public synchronized DedupCache<CompletableFuture<Message>> enableDeduplication(int capacity, Duration window) {
+        dedup = new DedupCache<>(capacity, window);
+        return dedup;
+    }
+
+    public DedupCache<CompletableFuture<Message>> getDedupCache() {
+        return dedup;
+    }
+
+    // Caps each sender at tokensPerSecond recipients, with bursts of up to burst. Sends over the
+    // limit fail with RejectedExecutionException. Off by default.
+    public synchronized RateLimiter enableRateLimiting(double tokensPerSecond, int burst) {
+        rateLimiter = new RateLimiter(tokensPerSecond, burst);
+        return rateLimiter;
+    }
+
+    public void disableRateLimiting() {
+        rateLimiter = null;
+    }
+
+    // Lets at most concurrency sends dispatch at once and shares the rest fairly between senders.
+    // Off by default. A queued send is not in the sender's history, so undo cannot see it yet.
+    public synchronized FairScheduler enableFairScheduling(int concurrency, int quantum, int maxQueuedPerSender) {
+        scheduler = new FairScheduler(concurrency, quantum, maxQueuedPerSender);
+        return scheduler;
+    }
+
+    public void disableFairScheduling() {
+        scheduler = null;
+    }
+
+    // Server-wide search over everything indexed.
+    public List<Message> search(SearchQuery query) {
+        return requireSearch().search(query);
+    }
+
+    // What one user can see is what their history holds: room posts from other members included,
+    // anything blocked, retracted or never delivered to them left out. Without terms the history
+    // itself is scanned rather than the whole index.
+    public List<Message> search(User usr, SearchQuery query) {
+        SearchIndex index = requireSearch();
+        ChatHistory history = usr.getHistory();
+        if (query.getTerms().isEmpty()) {
+            List<Message> out = new ArrayList<>();
+            history.forEachMessage(msg -> {
+                if (query.matchesFilters(msg)) {
+                    out.add(msg);
+                }
+            });
+            return SearchIndex.newest(out, query.getLimit());
+        }
+        return index.search(query, history::contains);
+    }
+
+    private SearchIndex requireSearch() {
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            throw new IllegalStateException("Search is not enabled on this server");
+        }
+        return index;
+    }
+
+    // Makes this server shard shardId of a cluster: it only registers users the ring places
+    // here and hands everything addressed to other shards' users to the transport.
+    public synchronized void joinCluster(int shardId, ShardRing ring, ShardTransport transport) {
+        if (this.ring != null) {
+            throw new IllegalStateException("Already shard " + this.shardId + " of a cluster");
+        }
+        this.shardId = shardId;
+        this.transport = transport;
+        transport.bind(shardId, this);
+        this.ring = ring;
+    }
+
+    public int getShardId() {
+        return shardId;
+    }
+
+    // Whether name belongs to someone a send can reach: registered here, queued for while offline,
+    // or homed on another shard. Never interns the name.
+    public boolean isKnownUser(String name) {
+        int id = UserDictionary.GLOBAL.lookup(name);
+        return id >= 0 && (usersById.get(id) != null || offline.isOpen(id) || remoteShardOf(id) >= 0);
+    }
+
+    public User getUser(String name) {
+        return users.get(name);
+    }
+
+    public Collection<User> getUsers() {
+        return Collections.unmodifiableCollection(users.values());
+    }
+
+    // Writes every registered user's history to a HistoryArchive file; returns the message count.
+    public long exportHistories(Path file) {
+        return HistoryArchive.export(this, file);
+    }
+
+    // Loads a HistoryArchive, registering users it names that are not here yet and appending to
+    // their histories what they do not hold yet; returns how many messages were appended.
+    public long importHistories(Path file) {
+        return HistoryArchive.importInto(this, file);
+    }
+
+    // Journals and indexes what an import appended: one record per message, with every history
+    // it went into, however many that is. Reports what histories already held, per user.
+    void recordImported(List<Message> messages, List<List<String>> owners, Map<String, Integer> skipped) {
+        skipped.forEach(events::importSkipped);
+        MessageJournal j = journal;
+        if (j != null) {
+            for (int i = 0; i < messages.size(); i++) {
+                j.logImport(owners.get(i), messages.get(i));
+            }
+        }
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.addAll(messages);
+        }
+    }
+
+    // Replays everything the journal holds into this server, then journals new events to it.
+    public void recoverFrom(MessageJournal journal) {
+        Map<String, User> known = new HashMap<>();
+        journal.replay(new MessageJournal.Replayer() {
+            @Override
+            public void onRegister(String name) {
+                registerUser(known.computeIfAbsent(name, n -> new User(n, ChatServer.this)));
+            }
+
+            @Override
+            public void onUnregister(String name) {
+                User usr = known.get(name);
+                if (usr != null) {
+                    unregisterUser(usr);
+                }
+            }
+
+            @Override
+            public void onBlock(String blockerName, String blockeeName) {
+                blockUser(blockerName, blockeeName);
+            }
+
+            @Override
+            public void onUnblock(String blockerName, String blockeeName) {
+                unblockUser(blockerName, blockeeName);
+            }
+
+            @Override
+            public void onBlockAll(String blockerName, List<String> blockeeNames) {
+                blockUsers(blockerName, blockeeNames);
+            }
+
+            @Override
+            public void onUnblockAll(String blockerName, List<String> blockeeNames) {
+                unblockUsers(blockerName, blockeeNames);
+            }
+
+            @Override
+            public void onJoinRoomAll(String roomId, List<String> names) {
+                List<User> members = new ArrayList<>(names.size());
+                for (String name : names) {
+                    User usr = known.get(name);
+                    if (usr != null) {
+                        members.add(usr);
+                    }
+                }
+                joinRoom(roomId, members);
+            }
+
+            @Override
+            public void onJoinRoom(String roomId, String name) {
+                User usr = known.get(name);
+                if (usr != null) {
+                    joinRoom(roomId, usr);
+                }
+            }
+
+            @Override
+            public void onLeaveRoom(String roomId, String name) {
+                User usr = known.get(name);
+                if (usr != null) {
+                    leaveRoom(roomId, usr);
+                }
+            }
+
+            @Override
+            public void onSend(Message msg) {
+                User sender = known.computeIfAbsent(msg.getSender(), n -> new User(n, ChatServer.this));
+                if (msg.isRoomMessage()) {
+                    // The log keeps only the room; members are whoever was in it at this point of the replay.
+                    ChatRoom room = rooms.computeIfAbsent(msg.getRoom(), ChatRoom::new);
+                    msg = new Message(msg.getId(), msg.getSenderId(), msg.getRoomId(), room.members(), msg.getTimestamp(), msg.getContent());
+                }
+                recordSent(sender, msg);
+                dispatch(sender, msg, ChatMetrics.DISABLED);
+            }
+
+            @Override
+            public void onImport(List<String> owners, Message msg) {
+                // The record lists exactly the histories the import appended to, a self-send twice.
+                for (String name : owners) {
+                    User usr = known.get(name);
+                    if (usr != null) {
+                        usr.getHistory().addHistory(msg);
+                    }
+                }
+                SearchIndex index = searchIndex;
+                if (index != null) {
+                    index.add(msg);
+                }
+            }
+
+            @Override
+            public void onUndo(String senderName) {
+                User usr = known.get(senderName);
+                if (usr != null) {
+                    undoLastMessage(usr);
+                }
+            }
+
+            @Override
+            public void onEdit(String senderName, long messageId, String content, Instant editedAt) {
+                User usr = known.get(senderName);
+                if (usr != null && usr.getHistory().canEdit(messageId)) {
+                    editMessage(usr, messageId, content, editedAt);
+                }
+            }
+
+            @Override
+            public void onRevertEdit(String senderName, long messageId) {
+                User usr = known.get(senderName);
+                if (usr != null && usr.getHistory().canRevert(messageId)) {
+                    revertEdit(usr, messageId);
+                }
+            }
+        });
+        this.journal = journal;
+    }
 
     public void registerUser(User usr){
-        users.put(usr.getName(), usr);
-        blockMap.putIfAbsent(usr.getName(), new HashSet<>());
-        System.out.println("[SERVER] Registered user: " + usr.getName());
+        ShardRing r = ring;
+        if (r != null && r.shardOf(usr.getId()) != shardId) {
+            throw new IllegalArgumentException(usr.getName() + " belongs to shard " + r.shardOf(usr.getId()) + ", not " + shardId);
+        }
+        if (journal != null) {
+            journal.logRegister(usr.getName());
+        }
+        blockLists.computeIfAbsent(usr.getId(), k -> new BlockList());
+        if (isAsync()) {
+            mailboxes.computeIfAbsent(usr.getId(), k -> new Mailbox(usr.getName(), mailboxCapacity));
+        }
+        // The user is reachable again before the queue is taken, so a send that finds the queue
+        // already drained delivers directly instead. Both happen under the history's lock, which
+        // every delivery takes to append, so none of those lands ahead of the older queued ones.
+        int flushed;
+        synchronized (usr.getHistory()) {
+            users.put(usr.getName(), usr);
+            usersById.put(usr.getId(), usr);
+            List<Message> queued = offline.drain(usr.getId());
+            if (!queued.isEmpty()) {
+                usr.receiveMessagesInternal(queued);
+            }
+            flushed = queued.size();
+        }
+        if (flushed > 0) {
+            metrics.delivered(flushed);
+        }
+        events.userRegistered(usr.getName());
     }
 
     public void unregisterUser(User usr){
+        if (journal != null) {
+            journal.logUnregister(usr.getName());
+        }
+        // Known users keep their block list while offline, since messages are queued for them.
+        offline.open(usr.getId());
         users.remove(usr.getName());
-        blockMap.remove(usr.getName());
-        System.out.println("[SERVER] Unregistered user: " + usr.getName());
+        usersById.remove(usr.getId());
+        Mailbox mailbox = mailboxes.remove(usr.getId());
+        if (mailbox != null) {
+            mailbox.close();
+        }
+        events.userUnregistered(usr.getName());
     }
 
+    // Names never seen here are looked up, not interned, so arbitrary strings cannot grow the
+    // dictionary or the id tables. Nobody can be blocked by or send as such a name; blocking one
+    // does nothing, and isBlocked() answers false for it.
     public void blockUser(String blockerName, String blockeeName){
-        blockMap.putIfAbsent(blockerName, new HashSet<>());
-        blockMap.get(blockerName).add(blockeeName);
-        System.out.println("[SERVER] " + blockerName + " has blocked " + blockeeName);
+        int blockerId = UserDictionary.GLOBAL.lookup(blockerName);
+        int blockeeId = UserDictionary.GLOBAL.lookup(blockeeName);
+        if (blockerId < 0 || blockeeId < 0) {
+            return;
+        }
+        // Block lists live with the blocker, where deliveries to them are checked.
+        int home = remoteShardOf(blockerId);
+        if (home >= 0) {
+            transport.send(shardId, home, ShardEnvelope.block(blockerName, List.of(blockeeName)));
+            return;
+        }
+        BlockList blocked = blockLists.computeIfAbsent(blockerId, k -> new BlockList());
+        // Journaled under the list's own lock, so the log orders racing blocks and unblocks as applied.
+        synchronized (blocked) {
+            if (journal != null) {
+                journal.logBlock(blockerName, blockeeName);
+            }
+            blocked.add(blockeeId);
+        }
+        events.userBlocked(blockerName, blockeeName);
+    }
+
+    // For imported lists: one copy of the block list and one journal record for the batch.
+    public void blockUsers(String blockerName, List<String> blockeeNames) {
+        int blockerId = UserDictionary.GLOBAL.lookup(blockerName);
+        if (blockerId < 0) {
+            return;
+        }
+        List<String> known = knownNames(blockeeNames);
+        int home = remoteShardOf(blockerId);
+        if (home >= 0) {
+            transport.send(shardId, home, ShardEnvelope.block(blockerName, known));
+            return;
+        }
+        int[] ids = Message.knownIds(known);
+        BlockList blocked = blockLists.computeIfAbsent(blockerId, k -> new BlockList());
+        int added;
+        synchronized (blocked) {
+            if (journal != null) {
+                journal.logBlockAll(blockerName, known);
+            }
+            added = blocked.addAll(ids);
+        }
+        events.userBlocked(blockerName, added);
+    }
+
+    private static List<String> knownNames(List<String> names) {
+        List<String> known = new ArrayList<>(names.size());
+        for (String name : names) {
+            if (UserDictionary.GLOBAL.lookup(name) >= 0) {
+                known.add(name);
+            }
+        }
+        return known;
+    }
+
+    public void unblockUser(String blockerName, String blockeeName) {
+        int blockerId = UserDictionary.GLOBAL.lookup(blockerName);
+        int blockeeId = UserDictionary.GLOBAL.lookup(blockeeName);
+        if (blockerId < 0 || blockeeId < 0) {
+            events.userUnblocked(blockerName, blockeeName);
+            return;
+        }
+        int home = remoteShardOf(blockerId);
+        if (home >= 0) {
+            transport.send(shardId, home, ShardEnvelope.unblock(blockerName, List.of(blockeeName)));
+            return;
+        }
+        BlockList blocked = blockLists.get(blockerId);
+        if (blocked != null) {
+            synchronized (blocked) {
+                if (journal != null) {
+                    journal.logUnblock(blockerName, blockeeName);
+                }
+                blocked.remove(blockeeId);
+            }
+        }
+        events.userUnblocked(blockerName, blockeeName);
+    }
+
+    public void unblockUsers(String blockerName, List<String> blockeeNames) {
+        int blockerId = UserDictionary.GLOBAL.lookup(blockerName);
+        if (blockerId < 0) {
+            events.userUnblocked(blockerName, 0);
+            return;
+        }
+        List<String> known = knownNames(blockeeNames);
+        int home = remoteShardOf(blockerId);
+        if (home >= 0) {
+            transport.send(shardId, home, ShardEnvelope.unblock(blockerName, known));
+            return;
+        }
+        int[] ids = Message.knownIds(known);
+        BlockList blocked = blockLists.get(blockerId);
+        int removed = 0;
+        if (blocked != null) {
+            synchronized (blocked) {
+                if (journal != null) {
+                    journal.logUnblockAll(blockerName, known);
+                }
+                removed = blocked.removeAll(ids);
+            }
+        }
+        events.userUnblocked(blockerName, removed);
     }
 
     public boolean isBlocked(String receiverName, String senderName){
-        Set<String> blockedSenders = blockMap.getOrDefault(receiverName, Collections.emptySet());
-        return blockedSenders.contains(senderName);
+        int receiverId = UserDictionary.GLOBAL.lookup(receiverName);
+        int senderId = UserDictionary.GLOBAL.lookup(senderName);
+        return receiverId >= 0 && senderId >= 0 && isBlocked(receiverId, senderId);
     }
 
-    public void sendMessage(User sender, List<String> recipientNames, String content){
+    // In a cluster this only knows receivers homed on this shard. Most receivers block nobody;
+    // their list is empty and contains() returns on the length check without touching a word.
+    public boolean isBlocked(int receiverId, int senderId){
+        BlockList blockedSenders = blockLists.get(receiverId);
+        return blockedSenders != null && blockedSenders.contains(senderId);
+    }
+
+    public ChatRoom createRoom(String roomId) {
+        return rooms.computeIfAbsent(roomId, ChatRoom::new);
+    }
+
+    public ChatRoom getRoom(String roomId) {
+        return rooms.get(roomId);
+    }
+
+    public void joinRoom(String roomId, User usr) {
+        ChatRoom room = createRoom(roomId);
+        // Membership changes and room posts are journaled under the room's lock, so on replay every
+        // post reaches the members its snapshot had.
+        synchronized (room) {
+            if (journal != null) {
+                journal.logJoinRoom(roomId, usr.getName());
+            }
+            room.join(usr.getId());
+        }
+        events.roomJoined(usr.getName(), roomId);
+    }
+
+    public void joinRoom(String roomId, List<User> newMembers) {
+        int[] ids = new int[newMembers.size()];
+        List<String> names = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            User usr = newMembers.get(i);
+            ids[i] = usr.getId();
+            names.add(usr.getName());
+        }
+        ChatRoom room = createRoom(roomId);
+        int added;
+        synchronized (room) {
+            if (journal != null) {
+                journal.logJoinRoomAll(roomId, names);
+            }
+            added = room.joinAll(ids);
+        }
+        events.roomJoined(added, roomId);
+    }
+
+    public void leaveRoom(String roomId, User usr) {
+        ChatRoom room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        synchronized (room) {
+            if (journal != null) {
+                journal.logLeaveRoom(roomId, usr.getName());
+            }
+            room.leave(usr.getId());
+        }
+        events.roomLeft(usr.getName(), roomId);
+    }
+
+    // One shared Message per room post; recipients are the room's current member snapshot.
+    public CompletableFuture<Message> sendToRoom(User sender, String roomId, String content) {
+        ChatRoom room = rooms.get(roomId);
+        if (room == null) {
+            throw new IllegalArgumentException("No such room: " + roomId);
+        }
+        if (!room.isMember(sender.getId())) {
+            throw new IllegalArgumentException(sender.getName() + " is not a member of #" + roomId);
+        }
+        return admit(sender, room.size() - 1, () -> postToRoom(sender, room, content));
+    }
+
+    private CompletableFuture<Message> postToRoom(User sender, ChatRoom room, String content) {
+        ChatMetrics m = metrics;
+        long start = m.startTimer();
+        Message msg;
+        synchronized (room) {
+            msg = Message.forRoom(sender.getId(), room.getId(), room.members(), Instant.now(), content);
+            recordSent(sender, msg);
+        }
+        CompletableFuture<Message> result = dispatch(sender, msg, m);
+        m.messageSent(start);
+        return result;
+    }
+
+    public CompletableFuture<Message> sendMessage(User sender, List<String> recipientNames, String content){
+        return admit(sender, recipientNames.size(), () -> send(sender, recipientNames, content));
+    }
+
+    // Admission control in front of the mediator: the sender's rate limit, then the fair
+    // scheduler. Costs are recipient counts. With neither enabled this is two volatile reads.
+    private <T> CompletableFuture<T> admit(User sender, int cost, Supplier<CompletableFuture<T>> send) {
+        RateLimiter limiter = rateLimiter;
+        FairScheduler sched = scheduler;
+        if (limiter == null && sched == null) {
+            return send.get();
+        }
+        ChatMetrics m = metrics;
+        if (limiter != null && !limiter.tryAcquire(sender.getId(), cost)) {
+            m.sendRejected();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Rate limit exceeded for " + sender.getName()));
+        }
+        return sched != null ? sched.submit(sender.getId(), cost, send, m) : send.get();
+    }
+
+    private CompletableFuture<Message> send(User sender, List<String> recipientNames, String content) {
+        ChatMetrics m = metrics;
+        long start = m.startTimer();
         Instant ts = Instant.now();
-        Message msg = new Message(sender.getName(), recipientNames, ts, content);
+        Message msg = new Message(sender.getId(), Message.knownIds(recipientNames), ts, content);
+        m.missingRecipients(recipientNames.size() - msg.getRecipientCount());
+        recordSent(sender, msg);
+        CompletableFuture<Message> result = dispatch(sender, msg, m);
+        // With mailboxes this covers hand-off to the recipients' queues, not the deliveries themselves.
+        m.messageSent(start);
+        return result;
+    }
 
-        sender.getHistory().recordSentMsg(msg);
+    // Idempotent send for clients that retry: a repeat of (sender, idempotencyKey) within the dedup
+    // window delivers nothing and returns the first attempt's future, even while that attempt is
+    // still in flight. An attempt that fails releases its key, so the next retry sends again.
+    public CompletableFuture<Message> sendMessage(User sender, List<String> recipientNames, String content, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return sendMessage(sender, recipientNames, content);
+        }
+        DedupCache<CompletableFuture<Message>> cache = dedup != null ? dedup : defaultDedupCache();
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        CompletableFuture<Message> first = cache.putIfAbsent(sender.getId(), idempotencyKey, result);
+        if (first != null) {
+            return first;
+        }
+        try {
+            sendMessage(sender, recipientNames, content).whenComplete((msg, err) -> {
+                if (err == null) {
+                    result.complete(msg);
+                } else {
+                    cache.remove(sender.getId(), idempotencyKey, result);
+                    result.completeExceptionally(err);
+                }
+            });
+        } catch (RuntimeException e) {
+            cache.remove(sender.getId(), idempotencyKey, result);
+            result.completeExceptionally(e);
+            throw e;
+        }
+        return result;
+    }
 
-        for(String recName : recipientNames){
-            User rec = users.get(recName);
-            if(rec == null) continue;
+    private synchronized DedupCache<CompletableFuture<Message>> defaultDedupCache() {
+        if (dedup == null) {
+            dedup = new DedupCache<>();
+        }
+        return dedup;
+    }
 
-            if(isBlocked(recName, sender.getName())) {
-                System.out.println("[SERVER] Message from " + sender.getName() + " to " + recName + " BLOCKED.");
-                continue;
+    // Amortizes a burst: one timestamp, one sent-history append per sender and one history append
+    // (or mailbox task) per recipient. Block checks are the plain O(1) lookup per delivery; a
+    // memo of pairs would cost more than the lookup it saves.
+    // Each sender's messages reach every recipient in batch order.
+    //
+    // With a rate limit or fair scheduler on, each sender's share of the batch is admitted as one
+    // send costing all of its recipients, and the shares go out as separate batches. A share that
+    // is refused fails the returned future; the other shares are still sent.
+    public CompletableFuture<List<Message>> sendBatch(List<OutgoingMessage> batch) {
+        if (rateLimiter == null && scheduler == null) {
+            return dispatchBatch(batch);
+        }
+        Map<User, List<OutgoingMessage>> shares = new LinkedHashMap<>();
+        for (OutgoingMessage out : batch) {
+            shares.computeIfAbsent(out.getSender(), k -> new ArrayList<>()).add(out);
+        }
+        List<CompletableFuture<List<Message>>> admitted = new ArrayList<>(shares.size());
+        shares.forEach((sender, share) -> {
+            int cost = 0;
+            for (OutgoingMessage out : share) {
+                cost += out.getRecipientNames().size();
+            }
+            admitted.add(admit(sender, cost, () -> dispatchBatch(share)));
+        });
+        return CompletableFuture.allOf(admitted.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            // Back into batch order: each share kept its senders' relative order.
+            Map<User, Iterator<Message>> bySender = new HashMap<>();
+            int i = 0;
+            for (User sender : shares.keySet()) {
+                bySender.put(sender, admitted.get(i++).join().iterator());
+            }
+            List<Message> sent = new ArrayList<>(batch.size());
+            for (OutgoingMessage out : batch) {
+                sent.add(bySender.get(out.getSender()).next());
+            }
+            return sent;
+        });
+    }
+
+    private CompletableFuture<List<Message>> dispatchBatch(List<OutgoingMessage> batch) {
+        ChatMetrics m = metrics;
+        long start = m.startTimer();
+        Instant ts = Instant.now();
+        List<Message> sent = new ArrayList<>(batch.size());
+        Map<User, List<Message>> bySender = new LinkedHashMap<>();
+        for (OutgoingMessage out : batch) {
+            Message msg = new Message(out.getSender().getId(), Message.knownIds(out.getRecipientNames()), ts, out.getContent());
+            m.missingRecipients(out.getRecipientNames().size() - msg.getRecipientCount());
+            sent.add(msg);
+            bySender.computeIfAbsent(out.getSender(), k -> new ArrayList<>()).add(msg);
+        }
+        MessageJournal j = journal;
+        if (j == null) {
+            bySender.forEach((sender, msgs) -> sender.getHistory().recordSentMsgs(msgs));
+        } else {
+            List<User> senders = new ArrayList<>(bySender.keySet());
+            senders.sort(Comparator.comparingInt(User::getId));
+            recordSentBatch(j, senders, 0, sent, bySender);
+        }
+
+        // Keyed by User identity, so a recipient unregistered meanwhile still gets what was grouped for it.
+        Map<User, List<Message>> byRecipient = new LinkedHashMap<>();
+        Map<Integer, List<Message>> byShard = new TreeMap<>();
+        MessageDroppedException dropped = null;
+        for (Message msg : sent) {
+            int senderId = msg.getSenderId();
+            for (int i = 0; i < msg.getRecipientCount(); i++) {
+                int recId = msg.getRecipientId(i);
+                User rec = usersById.get(recId);
+                if (rec == null && remoteShardOf(recId) < 0) {
+                    try {
+                        rec = holdForOffline(recId, msg, m);
+                    } catch (MessageDroppedException e) {
+                        dropped = dropped != null ? dropped : e;
+                        continue;
+                    }
+                }
+                if (rec == null) {
+                    int home = remoteShardOf(recId);
+                    if (home < 0) {
+                        continue;
+                    }
+                    List<Message> forShard = byShard.computeIfAbsent(home, k -> new ArrayList<>());
+                    if (forShard.isEmpty() || forShard.getLast() != msg) {
+                        forShard.add(msg);
+                    }
+                    continue;
+                }
+                if (isBlocked(recId, senderId)) {
+                    events.deliveryBlocked(msg.getSender(), rec.getName());
+                    m.blocked();
+                    continue;
+                }
+                byRecipient.computeIfAbsent(rec, k -> new ArrayList<>()).add(msg);
+            }
+        }
+
+        List<CompletableFuture<Void>> pending = isAsync() ? new ArrayList<>(byRecipient.size()) : null;
+        byRecipient.forEach((rec, msgs) -> {
+            if (pending != null) {
+                pending.add(deliverAsync(rec, () -> rec.receiveMessagesInternal(msgs), backpressure));
+            } else {
+                rec.receiveMessagesInternal(msgs);
+            }
+            m.delivered(msgs.size());
+        });
+        byShard.forEach((home, msgs) -> transport.send(shardId, home, ShardEnvelope.deliver(msgs)));
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.addAll(sent);
+        }
+        for (Message msg : sent) {
+            events.delivered(msg);
+        }
+        m.batchSent(start, sent.size());
+
+        if (pending == null) {
+            return dropped == null ? CompletableFuture.completedFuture(sent) : CompletableFuture.failedFuture(dropped);
+        }
+        if (dropped != null) {
+            pending.add(CompletableFuture.failedFuture(dropped));
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(v -> sent);
+    }
+
+    // Holds every sender's history lock, taken in id order so concurrent batches cannot deadlock,
+    // while the batch is journaled in batch order, the order recipients get it in, and filed.
+    private void recordSentBatch(MessageJournal j, List<User> senders, int next, List<Message> sent, Map<User, List<Message>> bySender) {
+        if (next < senders.size()) {
+            synchronized (senders.get(next).getHistory()) {
+                recordSentBatch(j, senders, next + 1, sent, bySender);
+            }
+            return;
+        }
+        sent.forEach(j::logSend);
+        bySender.forEach((sender, msgs) -> sender.getHistory().recordSentMsgs(msgs));
+    }
+
+    // Journals a send and files it in the sender's history under the history's lock, the one undo
+    // and edit hold, so the log has them in the order the history applied them.
+    private void recordSent(User sender, Message msg) {
+        ChatHistory senderHistory = sender.getHistory();
+        synchronized (senderHistory) {
+            if (journal != null) {
+                journal.logSend(msg);
             }
+            senderHistory.recordSentMsg(msg);
+        }
+    }
+
+    // Delivers a send already filed by recordSent.
+    private CompletableFuture<Message> dispatch(User sender, Message msg, ChatMetrics m) {
+        List<CompletableFuture<Void>> pending;
+        MessageDroppedException dropped = null;
+        if (msg.isRoomMessage()) {
+            // The member snapshot the post was made with; each member's block list is one lookup,
+            // and most are empty. Members homed on other shards get the post forwarded, once per
+            // shard, and that shard checks their block lists.
+            int memberCount = msg.getRecipientCount();
+            pending = isAsync() ? new ArrayList<>(memberCount) : null;
+            BitSet remoteShards = null;
+            for (int i = 0; i < memberCount; i++) {
+                int recId = msg.getRecipientId(i);
+                if (recId == sender.getId()) {
+                    continue;
+                }
+                int home = remoteShardOf(recId);
+                if (home >= 0) {
+                    remoteShards = remoteShards != null ? remoteShards : new BitSet();
+                    remoteShards.set(home);
+                    continue;
+                }
+                if (isBlocked(recId, sender.getId())) {
+                    m.blocked();
+                    continue;
+                }
+                User rec = usersById.get(recId);
+                if (rec == null) {
+                    try {
+                        rec = holdForOffline(recId, msg, m);
+                    } catch (MessageDroppedException e) {
+                        dropped = dropped != null ? dropped : e;
+                        continue;
+                    }
+                }
+                if (rec != null) {
+                    deliver(rec, msg, pending);
+                    m.delivered();
+                }
+            }
+            forward(remoteShards, ShardEnvelope.deliver(List.of(msg)));
+        } else {
+            int recipientCount = msg.getRecipientCount();
+            pending = isAsync() ? new ArrayList<>(recipientCount) : null;
+            BitSet remoteShards = null;
+            for(int i = 0; i < recipientCount; i++){
+                int recId = msg.getRecipientId(i);
+                User rec = usersById.get(recId);
+                if(rec == null) {
+                    int home = remoteShardOf(recId);
+                    if (home >= 0) {
+                        remoteShards = remoteShards != null ? remoteShards : new BitSet();
+                        remoteShards.set(home);
+                        continue;
+                    }
+                    try {
+                        rec = holdForOffline(recId, msg, m);
+                    } catch (MessageDroppedException e) {
+                        dropped = dropped != null ? dropped : e;
+                        continue;
+                    }
+                    if (rec == null) {
+                        continue;
+                    }
+                }
+
+                if(isBlocked(recId, sender.getId())) {
+                    events.deliveryBlocked(sender.getName(), rec.getName());
+                    m.blocked();
+                    continue;
+                }
+                deliver(rec, msg, pending);
+                m.delivered();
+            }
+            // Remote shards check their own users' block lists and deliver; this shard only hands off.
+            if (remoteShards != null) {
+                forward(remoteShards, ShardEnvelope.deliver(List.of(msg)));
+            }
+        }
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.add(msg);
+        }
+        events.delivered(msg);
+
+        // A full offline queue fails the send like a full mailbox does; everyone else still got it.
+        if (pending == null) {
+            return dropped == null ? CompletableFuture.completedFuture(msg) : CompletableFuture.failedFuture(dropped);
+        }
+        if (dropped != null) {
+            pending.add(CompletableFuture.failedFuture(dropped));
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(v -> msg);
+    }
+
+    // A recipient not registered here: queued when they were registered before, dropped when they
+    // never were. Returns the user instead if they registered again meanwhile, and throws
+    // MessageDroppedException when their queue is full.
+    private User holdForOffline(int recId, Message msg, ChatMetrics m) {
+        if (isBlocked(recId, msg.getSenderId())) {
+            events.deliveryBlocked(msg.getSender(), UserDictionary.GLOBAL.nameOf(recId));
+            m.blocked();
+            return null;
+        }
+        OfflineStore.Offer held = offline.offer(recId, msg);
+        if (held == OfflineStore.Offer.QUEUED) {
+            return null;
+        }
+        if (held == OfflineStore.Offer.FULL) {
+            throw new MessageDroppedException("Offline queue full for " + UserDictionary.GLOBAL.nameOf(recId) + ", message dropped");
+        }
+        User rec = usersById.get(recId);
+        if (rec == null) {
+            m.missingRecipient();
+        }
+        return rec;
+    }
+
+    private void deliver(User rec, Message msg, List<CompletableFuture<Void>> pending) {
+        if (pending != null) {
+            pending.add(deliverAsync(rec, () -> rec.receiveMessageInternal(msg), backpressure));
+        } else {
             rec.receiveMessageInternal(msg);
         }
-        System.out.println("[SERVER] Delivered: " + msg);
+    }
+
+    private CompletableFuture<Void> deliverAsync(User rec, Runnable delivery, BackpressurePolicy policy) {
+        Mailbox mailbox = mailboxes.get(rec.getId());
+        if (mailbox == null) {
+            delivery.run();
+            return CompletableFuture.completedFuture(null);
+        }
+        return mailbox.submit(delivery, policy);
+    }
+
+    public void shutdown() {
+        mailboxes.forEach(Mailbox::close);
+        mailboxes.clear();
+        offline.close();
     }
 
     public void undoLastMessage(User sender){
-        Message last = sender.getHistory().getLastSentMessage();
-        if(last == null) {
-            System.out.println("[SERVER] Nothing to undo for: " + sender.getName());
-            return;
+        ChatMetrics m = metrics;
+        long start = m.startTimer();
+        ChatHistory senderHistory = sender.getHistory();
+        Message last;
+        MessageMemento snap;
+        // Pop the sender's side atomically, but release it before touching recipients
+        // so two users undoing towards each other cannot deadlock.
+        synchronized (senderHistory) {
+            last = senderHistory.getLastSentMessage();
+            if(last == null) {
+                events.nothingToUndo(sender.getName());
+                m.nothingToUndo();
+                return;
+            }
+            if (journal != null) {
+                journal.logUndo(sender.getName());
+            }
+            snap = senderHistory.undoLastMemento();
+            senderHistory.removeMessage(last);
+        }
+        events.undoRequested(sender.getName(), snap);
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.remove(last);
         }
 
-        MessageMemento snap = sender.getHistory().undoLastMemento();
-        System.out.println("[SERVER] Undo request by " + sender.getName() + " for message \"" + snap.getContentSnapshot() + "\" at " + snap.getTimestamp());
+        propagate(sender, last, ShardEnvelope.retract(last), rec -> retract(rec, last), recId -> offline.remove(recId, last.getId()));
+        events.undone(sender.getName());
+        m.undone(start);
+    }
 
-        for(String recName : last.getRecipients()) {
-            User rec = users.get(recName);
-            if(rec == null) continue;
+    // Undoes up to count of the sender's most recent messages, newest first; returns how many.
+    public int undoLastMessages(User sender, int count) {
+        int undone = 0;
+        while (undone < count && sender.getHistory().getLastSentMessage() != null) {
+            undoLastMessage(sender);
+            undone++;
+        }
+        return undone;
+    }
 
-            rec.getHistory().removeMessage(last);
+    // Replaces the content of one of the sender's messages still in its undo window. Every
+    // history holding the message swaps it by id; nobody's history is scanned.
+    public Message editMessage(User sender, long messageId, String newContent) {
+        return editMessage(sender, messageId, newContent, Instant.now());
+    }
 
-            Message sysNotice = new Message("SYSTEM", Collections.singletonList(recName), java.time.Instant.now(), "(Message retracted by " + sender.getName() + " from " + rec.getName() + ")");
-            rec.receiveMessageInternal(sysNotice);
+    private Message editMessage(User sender, long messageId, String newContent, Instant editedAt) {
+        ChatHistory senderHistory = sender.getHistory();
+        Message edited;
+        synchronized (senderHistory) {
+            if (!senderHistory.canEdit(messageId)) {
+                throw new IllegalArgumentException("Message " + messageId + " is not in " + sender.getName() + "'s undo window");
+            }
+            if (journal != null) {
+                journal.logEdit(sender.getName(), messageId, newContent, editedAt);
+            }
+            edited = senderHistory.editSentMessage(messageId, newContent, editedAt);
         }
-        sender.getHistory().removeMessage(last);
-        System.out.println("[SERVER] Message undone for " + sender.getName());
+        reindex(edited);
+        propagate(sender, edited, ShardEnvelope.replace(edited), rec -> rec.getHistory().replaceMessage(edited), recId -> offline.replace(recId, edited));
+        events.edited(sender.getName(), edited);
+        return edited;
     }
 
-    public void printUserHistory(User usr){
-        System.out.println("---- Chat history for " + usr.getName() + " ----");
-        for(Message msg : usr.getHistory().getAllMessages()){
-            System.out.println(msg);
+    // Rolls the sender's message back to the revision before its latest edit.
+    public Message revertEdit(User sender, long messageId) {
+        ChatHistory senderHistory = sender.getHistory();
+        Message reverted;
+        synchronized (senderHistory) {
+            if (!senderHistory.canRevert(messageId)) {
+                throw new IllegalArgumentException("Message " + messageId + " has no edit to revert");
+            }
+            if (journal != null) {
+                journal.logRevertEdit(sender.getName(), messageId);
+            }
+            reverted = senderHistory.revertEdit(messageId);
+        }
+        reindex(reverted);
+        propagate(sender, reverted, ShardEnvelope.replace(reverted), rec -> rec.getHistory().replaceMessage(reverted), recId -> offline.replace(recId, reverted));
+        events.edited(sender.getName(), reverted);
+        return reverted;
+    }
+
+    private void reindex(Message msg) {
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.replace(msg);
+        }
+    }
+
+    private void retract(User rec, Message msg) {
+        rec.getHistory().removeMessage(msg);
+
+        Message sysNotice = new Message(SYSTEM_ID, new int[] {rec.getId()}, java.time.Instant.now(), "(Message retracted by " + msg.getSender() + " from " + rec.getName() + ")");
+        rec.receiveMessageInternal(sysNotice);
+    }
+
+    // Applies a follow-up (retraction, edit) to each recipient's copy of a message. With mailboxes
+    // it queues behind the delivery it follows and is never dropped. Recipients on other shards
+    // get the envelope instead, once per shard, behind the delivery it follows on that link.
+    // Copies still queued for offline recipients are updated in place by id.
+    private void propagate(User sender, Message msg, ShardEnvelope remote, Consumer<User> action, IntConsumer queued) {
+        BitSet remoteShards = null;
+        for(int i = 0; i < msg.getRecipientCount(); i++) {
+            int recId = msg.getRecipientId(i);
+            if (msg.isRoomMessage() && recId == sender.getId()) continue;
+            User rec = usersById.get(recId);
+            if(rec == null) {
+                int home = remoteShardOf(recId);
+                if (home >= 0) {
+                    remoteShards = remoteShards != null ? remoteShards : new BitSet();
+                    remoteShards.set(home);
+                } else {
+                    queued.accept(recId);
+                }
+                continue;
+            }
+
+            applyFollowUp(rec, action);
+        }
+        forward(remoteShards, remote);
+    }
+
+    // One envelope to each shard in the set; a null set sends nothing.
+    private void forward(BitSet shards, ShardEnvelope envelope) {
+        for (int home = shards != null ? shards.nextSetBit(0) : -1; home >= 0; home = shards.nextSetBit(home + 1)) {
+            transport.send(shardId, home, envelope);
         }
-        System.out.println("-----------------------------------------------------------");
+    }
+
+    private void applyFollowUp(User rec, Consumer<User> action) {
+        if (isAsync()) {
+            deliverAsync(rec, () -> action.accept(rec), BackpressurePolicy.BLOCK);
+        } else {
+            action.accept(rec);
+        }
+    }
+
+    // The shard that owns a user homed elsewhere, or -1 when that is this shard (or no cluster).
+    private int remoteShardOf(int userId) {
+        ShardRing r = ring;
+        if (r == null) {
+            return -1;
+        }
+        int home = r.shardOf(userId);
+        return home != shardId ? home : -1;
+    }
+
+    // Applies what another shard sent to this shard's own users. Senders are homed elsewhere,
+    // so only the receiving side runs here: block checks, histories and retraction notices.
+    void receiveFromShard(ShardEnvelope envelope) {
+        if (envelope.getKind() == ShardEnvelope.BLOCK || envelope.getKind() == ShardEnvelope.UNBLOCK) {
+            List<String> blockees = envelope.getBlockeeNames();
+            boolean block = envelope.getKind() == ShardEnvelope.BLOCK;
+            if (blockees.size() == 1) {
+                if (block) {
+                    blockUser(envelope.getBlockerName(), blockees.getFirst());
+                } else {
+                    unblockUser(envelope.getBlockerName(), blockees.getFirst());
+                }
+            } else if (block) {
+                blockUsers(envelope.getBlockerName(), blockees);
+            } else {
+                unblockUsers(envelope.getBlockerName(), blockees);
+            }
+            return;
+        }
+        ChatMetrics m = metrics;
+        for (Message msg : envelope.getMessages()) {
+            for (int i = 0; i < msg.getRecipientCount(); i++) {
+                int recId = msg.getRecipientId(i);
+                if (remoteShardOf(recId) >= 0) {
+                    continue;
+                }
+                User rec = usersById.get(recId);
+                if (rec == null) {
+                    switch (envelope.getKind()) {
+                        case ShardEnvelope.DELIVER -> {
+                            // Nobody waits on a remote delivery; the store counts what it dropped.
+                            try {
+                                rec = holdForOffline(recId, msg, m);
+                            } catch (MessageDroppedException e) {
+                                rec = null;
+                            }
+                        }
+                        case ShardEnvelope.RETRACT -> offline.remove(recId, msg.getId());
+                        case ShardEnvelope.REPLACE -> offline.replace(recId, msg);
+                        default -> { }
+                    }
+                    if (rec == null) {
+                        continue;
+                    }
+                }
+                switch (envelope.getKind()) {
+                    case ShardEnvelope.DELIVER -> {
+                        if (isBlocked(recId, msg.getSenderId())) {
+                            events.deliveryBlocked(msg.getSender(), rec.getName());
+                            m.blocked();
+                        } else {
+                            // Nobody waits on a remote delivery, so it queues rather than fail under backpressure.
+                            applyFollowUp(rec, r -> r.receiveMessageInternal(msg));
+                            m.delivered();
+                        }
+                    }
+                    case ShardEnvelope.RETRACT -> applyFollowUp(rec, r -> retract(r, msg));
+                    case ShardEnvelope.REPLACE -> applyFollowUp(rec, r -> r.getHistory().replaceMessage(msg));
+                    default -> throw new IllegalArgumentException("Unknown envelope kind " + envelope.getKind());
+                }
+            }
+        }
+    }
+
+    public void printUserHistory(User usr){
+        ChatMetrics m = metrics;
+        long start = m.startTimer();
+        List<Message> messages = usr.getHistory().getAllMessages();
+        m.historyIterated(start);
+        events.history(usr.getName(), messages);
     }
 }
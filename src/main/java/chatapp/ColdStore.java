@@ -0,0 +1,124 @@
+package chatapp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Spill segments shared by every ColdTier in one directory, so a million bounded histories hold
+// a handful of open files rather than one each. Blocks are appended to the current segment until
+// it reaches SEGMENT_SIZE; a segment counts the bytes still referenced and is deleted once a later
+// segment has taken over and its last block has been released.
+public class ColdStore {
+
+    public static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final ConcurrentMap<Path, ColdStore> SHARED = new ConcurrentHashMap<>();
+
+    // Where one block lives. Immutable, so a reader needs no lock to use it.
+    public record Extent(Segment segment, long offset, int length) {
+    }
+
+    public static final class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private long size = 0;
+        private long liveBytes = 0;
+
+        private Segment(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private final Path directory;
+    private Segment current;
+    private int segments = 0;
+
+    public ColdStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public static ColdStore shared(Path directory) {
+        return SHARED.computeIfAbsent(directory.toAbsolutePath().normalize(), ColdStore::new);
+    }
+
+    public synchronized Extent write(ByteBuffer data) {
+        try {
+            int length = data.remaining();
+            if (current == null || current.size + length > SEGMENT_SIZE) {
+                roll();
+            }
+            long offset = current.size;
+            while (data.hasRemaining()) {
+                current.channel.write(data, offset + (length - data.remaining()));
+            }
+            current.size += length;
+            current.liveBytes += length;
+            return new Extent(current, offset, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Positional reads do not move the channel, so they need no lock. A segment is only closed
+    // once nothing references it, so no extent being read can have lost its file.
+    public ByteBuffer read(Extent extent) {
+        try {
+            ByteBuffer out = ByteBuffer.allocate(extent.length());
+            while (out.hasRemaining()) {
+                if (extent.segment().channel.read(out, extent.offset() + out.position()) < 0) {
+                    throw new IOException("Spill segment " + extent.segment().path + " ends early");
+                }
+            }
+            return out.flip();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Another reference to a block already written, balanced by one more release().
+    public synchronized void retain(Extent extent) {
+        extent.segment().liveBytes += extent.length();
+    }
+
+    public synchronized void release(Extent extent) {
+        Segment segment = extent.segment();
+        segment.liveBytes -= extent.length();
+        if (segment.liveBytes == 0 && segment != current) {
+            delete(segment);
+        }
+    }
+
+    // Segments currently on disk.
+    public synchronized int segmentCount() {
+        return segments;
+    }
+
+    private void roll() throws IOException {
+        Segment previous = current;
+        Files.createDirectories(directory);
+        Path path = Files.createTempFile(directory, "spill-", ".cold");
+        path.toFile().deleteOnExit();
+        current = new Segment(path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segments++;
+        if (previous != null && previous.liveBytes == 0) {
+            delete(previous);
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+            segments--;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package chatapp;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Spilled part of one ChatHistory: blocks of MessageCodec records, each deflated and appended
+// to the ColdStore segments shared by its directory. On the heap each block keeps its id range,
+// a participant bitset and its ids (12 bytes a message), so lookups never inflate it. Removals
+// and edits are marks on the block; a block whose marks outnumber half its messages is rewritten,
+// and one with nothing live left is released. Callers synchronize.
+//
+// Blocks are numbered in spill order and a rewrite keeps the number, so an iterator that remembers
+// the last number it read, and the highest one when it started, sees each spilled message once
+// however the blocks change under it.
+public class ColdTier implements AutoCloseable {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private static final class Block {
+        final long seq;
+        final ColdStore.Extent extent;
+        final int rawLength;
+        final long minId;
+        final long maxId;
+        // Bitset of every sender/recipient id in the block, to skip blocks a conversation never touches.
+        final long[] participants;
+        // Sorted ids, and each one's position among the block's records.
+        final long[] ids;
+        final int[] positions;
+        // Removed records, by position.
+        final BitSet dead = new BitSet();
+        // Edited versions, applied as the block is decoded instead of rewriting it every time.
+        Map<Long, Message> edited;
+        int live;
+
+        Block(long seq, ColdStore.Extent extent, int rawLength, long[] participants, long[] ids, int[] positions) {
+            this.seq = seq;
+            this.extent = extent;
+            this.rawLength = rawLength;
+            this.participants = participants;
+            this.ids = ids;
+            this.positions = positions;
+            this.minId = ids[0];
+            this.maxId = ids[ids.length - 1];
+            this.live = ids.length;
+        }
+
+        boolean involves(int userId) {
+            int word = userId >>> 6;
+            return word < participants.length && (participants[word] & (1L << userId)) != 0;
+        }
+
+        // Position of a live record with this id, or -1.
+        int positionOf(long id) {
+            if (id < minId || id > maxId) {
+                return -1;
+            }
+            int i = Arrays.binarySearch(ids, id);
+            return i >= 0 && !dead.get(positions[i]) ? positions[i] : -1;
+        }
+
+        int marks() {
+            return ids.length - live + (edited != null ? edited.size() : 0);
+        }
+    }
+
+    private final ColdStore store;
+    private final MessageCodec codec = new MessageCodec(UserDictionary.GLOBAL);
+    private final List<Block> blocks = new ArrayList<>();
+    private long diskBytes = 0;
+    private int count = 0;
+    private long spills = 0;
+
+    public ColdTier(Path spillDirectory) {
+        this(ColdStore.shared(spillDirectory));
+    }
+
+    public ColdTier(ColdStore store) {
+        this.store = store;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long diskBytes() {
+        return diskBytes;
+    }
+
+    public void spill(List<Message> oldestFirst) {
+        if (!oldestFirst.isEmpty()) {
+            blocks.add(write(++spills, oldestFirst));
+            count += oldestFirst.size();
+        }
+    }
+
+    public boolean contains(long id) {
+        return blockOf(id) != null;
+    }
+
+    public boolean remove(long id) {
+        Block block = blockOf(id);
+        if (block == null) {
+            return false;
+        }
+        int i = Arrays.binarySearch(block.ids, id);
+        block.dead.set(block.positions[i]);
+        block.live--;
+        if (block.edited != null) {
+            block.edited.remove(id);
+        }
+        count--;
+        maintain(block);
+        return true;
+    }
+
+    public boolean replace(Message msg) {
+        Block block = blockOf(msg.getId());
+        if (block == null) {
+            return false;
+        }
+        if (block.edited == null) {
+            block.edited = new HashMap<>();
+        }
+        block.edited.put(msg.getId(), msg);
+        maintain(block);
+        return true;
+    }
+
+    public List<Message> readAll() {
+        List<Message> out = new ArrayList<>(count);
+        iterator(-1).forEachRemaining(out::add);
+        return out;
+    }
+
+    // Pages blocks back in one at a time; peerId < 0 means every message. Only blocks spilled
+    // before the call are read, and callers hold the same lock around every step.
+    public Iterator<Message> iterator(int peerId) {
+        if (count == 0) {
+            return Collections.emptyIterator();
+        }
+        long lastSeq = spills;
+        return new Iterator<>() {
+            private long readSeq = 0;
+            private Iterator<Message> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    int next = firstAfter(readSeq);
+                    if (next == blocks.size() || blocks.get(next).seq > lastSeq) {
+                        return false;
+                    }
+                    Block block = blocks.get(next);
+                    readSeq = block.seq;
+                    if (peerId < 0 || block.involves(peerId)) {
+                        current = decode(store, block.extent, block.rawLength, block.dead, block.edited, block.live, peerId).iterator();
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    // Point-in-time, read-only list of every spilled message that inflates one block at a time as
+    // it is read, so it costs the heap one block rather than the tier. It pins the extents it
+    // captured until it is collected, so removals, rewrites and close() cannot pull them away.
+    public List<Message> snapshot() {
+        if (count == 0) {
+            return List.of();
+        }
+        List<FrozenBlock> frozen = new ArrayList<>(blocks.size());
+        for (Block block : blocks) {
+            store.retain(block.extent);
+            frozen.add(new FrozenBlock(block.extent, block.rawLength, (BitSet) block.dead.clone(),
+                    block.edited != null ? Map.copyOf(block.edited) : null, block.live));
+        }
+        return new Snapshot(store, frozen, count);
+    }
+
+    private record FrozenBlock(ColdStore.Extent extent, int rawLength, BitSet dead, Map<Long, Message> edited, int live) {
+    }
+
+    private static final class Snapshot extends AbstractList<Message> {
+        private record Decoded(int block, List<Message> messages) {
+        }
+
+        private final ColdStore store;
+        private final List<FrozenBlock> blocks;
+        // Index of each block's first message.
+        private final int[] starts;
+        private final int size;
+        private volatile Decoded last;
+
+        Snapshot(ColdStore store, List<FrozenBlock> blocks, int size) {
+            this.store = store;
+            this.blocks = blocks;
+            this.size = size;
+            this.starts = new int[blocks.size()];
+            for (int b = 1; b < starts.length; b++) {
+                starts[b] = starts[b - 1] + blocks.get(b - 1).live();
+            }
+            List<ColdStore.Extent> pinned = blocks.stream().map(FrozenBlock::extent).toList();
+            CLEANER.register(this, () -> pinned.forEach(store::release));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Message get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            int b = Arrays.binarySearch(starts, index);
+            if (b < 0) {
+                b = -b - 2;
+            }
+            Decoded decoded = last;
+            if (decoded == null || decoded.block() != b) {
+                FrozenBlock block = blocks.get(b);
+                decoded = new Decoded(b, decode(store, block.extent(), block.rawLength(), block.dead(), block.edited(), block.live(), -1));
+                last = decoded;
+            }
+            return decoded.messages().get(index - starts[b]);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Block block : blocks) {
+            store.release(block.extent);
+        }
+        blocks.clear();
+        diskBytes = 0;
+        count = 0;
+    }
+
+    // Index of the first block numbered after seq; blocks stay in spill order.
+    private int firstAfter(long seq) {
+        int lo = 0;
+        int hi = blocks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blocks.get(mid).seq <= seq) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private Block blockOf(long id) {
+        for (Block block : blocks) {
+            if (block.positionOf(id) >= 0) {
+                return block;
+            }
+        }
+        return null;
+    }
+
+    // Drops a block with nothing live left and rewrites one carrying more marks than half its
+    // size, so removals and edits cost bounded heap per block.
+    private void maintain(Block block) {
+        if (block.live > 0 && block.marks() * 2 <= block.ids.length) {
+            return;
+        }
+        int at = blocks.indexOf(block);
+        if (block.live == 0) {
+            blocks.remove(at);
+        } else {
+            blocks.set(at, write(block.seq, decode(store, block.extent, block.rawLength, block.dead, block.edited, block.live, -1)));
+        }
+        store.release(block.extent);
+        diskBytes -= block.extent.length();
+    }
+
+    private Block write(long seq, List<Message> oldestFirst) {
+        int capacity = 0;
+        for (Message msg : oldestFirst) {
+            capacity += codec.maxEncodedSize(msg);
+        }
+        ByteBuffer raw = ByteBuffer.allocate(capacity);
+        long[] participants = new long[0];
+        long[] ids = new long[oldestFirst.size()];
+        for (int p = 0; p < ids.length; p++) {
+            Message msg = oldestFirst.get(p);
+            codec.encode(msg, raw);
+            ids[p] = msg.getId();
+            participants = mark(participants, msg.getSenderId());
+            for (int i = 0; !msg.isRoomMessage() && i < msg.getRecipientCount(); i++) {
+                participants = mark(participants, msg.getRecipientId(i));
+            }
+        }
+        int[] positions = sortedPositions(ids);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw.flip());
+        deflater.finish();
+        ByteBuffer compressed = ByteBuffer.allocate(raw.limit() + 64);
+        while (!deflater.finished()) {
+            if (!compressed.hasRemaining()) {
+                compressed = ByteBuffer.allocate(compressed.capacity() * 2).put(compressed.flip());
+            }
+            deflater.deflate(compressed);
+        }
+        deflater.end();
+
+        ColdStore.Extent extent = store.write(compressed.flip());
+        diskBytes += extent.length();
+        return new Block(seq, extent, raw.limit(), participants, ids, positions);
+    }
+
+    // Sorts ids in place and returns each one's original position.
+    private static int[] sortedPositions(long[] ids) {
+        boolean sorted = true;
+        for (int i = 1; i < ids.length && sorted; i++) {
+            sorted = ids[i - 1] < ids[i];
+        }
+        int[] positions = new int[ids.length];
+        if (sorted) {
+            Arrays.setAll(positions, i -> i);
+            return positions;
+        }
+        Integer[] order = new Integer[ids.length];
+        Arrays.setAll(order, i -> i);
+        long[] byPosition = ids.clone();
+        Arrays.sort(order, (a, b) -> Long.compare(byPosition[a], byPosition[b]));
+        for (int i = 0; i < ids.length; i++) {
+            positions[i] = order[i];
+            ids[i] = byPosition[order[i]];
+        }
+        return positions;
+    }
+
+    private static List<Message> decode(ColdStore store, ColdStore.Extent extent, int rawLength,
+                                        BitSet dead, Map<Long, Message> edited, int live, int peerId) {
+        ByteBuffer raw = inflate(store, extent, rawLength);
+        MessageView view = new MessageView(UserDictionary.GLOBAL);
+        List<Message> out = new ArrayList<>(live);
+        int position = 0;
+        for (int pos = 0; pos < raw.limit(); pos = view.end(), position++) {
+            view.wrap(raw, pos);
+            if (dead.get(position) || (peerId >= 0 && !view.hasParticipant(peerId))) {
+                continue;
+            }
+            Message override = edited != null ? edited.get(view.id()) : null;
+            out.add(override != null ? override : view.toMessage());
+        }
+        return out;
+    }
+
+    private static ByteBuffer inflate(ColdStore store, ColdStore.Extent extent, int rawLength) {
+        ByteBuffer compressed = store.read(extent);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteBuffer raw = ByteBuffer.allocate(rawLength);
+            while (!inflater.finished() && raw.hasRemaining()) {
+                inflater.inflate(raw);
+            }
+            return raw.flip();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt cold block at offset " + extent.offset(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long[] mark(long[] bits, int id) {
+        int word = id >>> 6;
+        if (word >= bits.length) {
+            bits = Arrays.copyOf(bits, word + 1);
+        }
+        bits[word] |= 1L << id;
+        return bits;
+    }
+}
@@ -0,0 +1,16 @@
+package chatapp;
+
+import java.io.PrintStream;
+
+// Synchronous: formats and prints on the caller's thread. Resolves System.out per event,
+// so redirecting System.out still takes effect.
+public class ConsoleEventSink extends FormattingEventSink {
+
+    @Override
+    protected void emit(int type, Object a, Object b) {
+        StringBuilder line = new StringBuilder(64);
+        format(type, a, b, line);
+        PrintStream out = System.out;
+        out.print(line);
+    }
+}
@@ -0,0 +1,218 @@
+package chatapp;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+// Remembers (sender, idempotency key) -> first result for a sliding time window, in fixed memory.
+// Keys are spread over independently locked stripes. Each stripe keeps GENERATIONS open-addressed
+// segments of equal, preallocated size: inserts go to the newest, and when it fills up or has
+// been open for window / GENERATIONS the oldest is cleared and reused. A segment is also cleared
+// once it was opened more than a window ago, so an entry is forgotten between one generation
+// short of the window and the full window after it was recorded (sooner only if capacity forces
+// it out), and a lookup probes at most GENERATIONS small tables.
+public class DedupCache<V> {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    public static final Duration DEFAULT_WINDOW = Duration.ofMinutes(10);
+
+    private static final int STRIPES = 16;
+    private static final int GENERATIONS = 4;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // One generation: at most limit entries in a table twice that size. hash 0 marks a free slot;
+    // a slot whose value is null was released and only holds its place in the probe chain.
+    private static final class Segment {
+        final long[] hashes;
+        final int[] senders;
+        final String[] keys;
+        final Object[] values;
+        final int mask;
+        int size = 0;
+        long openedAt;
+
+        Segment(int limit) {
+            int capacity = Integer.highestOneBit(Math.max(2, limit) * 2 - 1) << 1;
+            hashes = new long[capacity];
+            senders = new int[capacity];
+            keys = new String[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+
+        int find(long hash, int senderId, String key) {
+            for (int i = (int) (hash ^ (hash >>> 32)) & mask; ; i = (i + 1) & mask) {
+                long h = hashes[i];
+                if (h == 0) {
+                    return -1;
+                }
+                if (h == hash && senders[i] == senderId && keys[i].equals(key)) {
+                    return i;
+                }
+            }
+        }
+
+        void insert(long hash, int senderId, String key, Object value) {
+            int i = (int) (hash ^ (hash >>> 32)) & mask;
+            while (hashes[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = hash;
+            senders[i] = senderId;
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        void clear(long now) {
+            Arrays.fill(hashes, 0);
+            Arrays.fill(keys, null);
+            Arrays.fill(values, null);
+            size = 0;
+            openedAt = now;
+        }
+    }
+
+    private static final class Stripe {
+        final Segment[] segments = new Segment[GENERATIONS];
+        final long windowNanos;
+        final int segmentLimit;
+        // Index of the newest segment; older ones follow it backwards around the ring.
+        int current = 0;
+        long hits = 0;
+
+        Stripe(long windowNanos, int segmentLimit, long now) {
+            this.windowNanos = windowNanos;
+            this.segmentLimit = segmentLimit;
+            for (int g = 0; g < GENERATIONS; g++) {
+                segments[g] = new Segment(segmentLimit);
+                segments[g].clear(now);
+            }
+        }
+
+        synchronized Object putIfAbsent(long hash, int senderId, String key, Object value, long now) {
+            expire(now);
+            for (Segment s : segments) {
+                int i = s.find(hash, senderId, key);
+                if (i < 0) {
+                    continue;
+                }
+                if (s.values[i] != null) {
+                    hits++;
+                    return s.values[i];
+                }
+                // Released after a failure: the key keeps its one slot.
+                s.values[i] = value;
+                return null;
+            }
+            Segment head = segments[current];
+            if (head.size >= segmentLimit || now - head.openedAt >= windowNanos / GENERATIONS) {
+                current = (current + 1) % GENERATIONS;
+                head = segments[current];
+                head.clear(now);
+            }
+            head.insert(hash, senderId, key, value);
+            return null;
+        }
+
+        synchronized boolean remove(long hash, int senderId, String key, Object value) {
+            for (Segment s : segments) {
+                int i = s.find(hash, senderId, key);
+                if (i >= 0 && s.values[i] == value) {
+                    s.values[i] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized int size(long now) {
+            expire(now);
+            int n = 0;
+            for (Segment s : segments) {
+                for (Object v : s.values) {
+                    if (v != null) {
+                        n++;
+                    }
+                }
+            }
+            return n;
+        }
+
+        private void expire(long now) {
+            for (Segment s : segments) {
+                if (s.size > 0 && now - s.openedAt > windowNanos) {
+                    s.clear(s.openedAt);
+                }
+            }
+        }
+    }
+
+    public DedupCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_WINDOW);
+    }
+
+    public DedupCache(int capacity, Duration window) {
+        if (capacity <= 0 || window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("Capacity and window must be positive");
+        }
+        int segmentLimit = Math.max(1, capacity / (STRIPES * GENERATIONS));
+        long now = System.nanoTime();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(window.toNanos(), segmentLimit, now);
+        }
+    }
+
+    // Records value under (senderId, key) and returns null, or returns what an earlier call within
+    // the window recorded and leaves it in place.
+    public V putIfAbsent(int senderId, String key, V value) {
+        return putIfAbsent(senderId, key, value, System.nanoTime());
+    }
+
+    @SuppressWarnings("unchecked")
+    V putIfAbsent(int senderId, String key, V value, long nowNanos) {
+        long hash = hash(senderId, key);
+        return (V) stripeOf(hash).putIfAbsent(hash, senderId, key, value, nowNanos);
+    }
+
+    // Forgets the entry if it still maps to value, so a failed attempt can be retried.
+    public boolean remove(int senderId, String key, V value) {
+        long hash = hash(senderId, key);
+        return stripeOf(hash).remove(hash, senderId, key, value);
+    }
+
+    public int size() {
+        return size(System.nanoTime());
+    }
+
+    int size(long nowNanos) {
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            n += stripe.size(nowNanos);
+        }
+        return n;
+    }
+
+    // How many calls found an earlier entry.
+    public long getHits() {
+        long n = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                n += stripe.hits;
+            }
+        }
+        return n;
+    }
+
+    private Stripe stripeOf(long hash) {
+        return stripes[(int) (hash >>> 60) & (STRIPES - 1)];
+    }
+
+    private static long hash(int senderId, String key) {
+        long h = (key.hashCode() * 0x9E3779B97F4A7C15L) ^ (senderId * 0xC2B2AE3D27D4EB4FL);
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return h != 0 ? h : 1;
+    }
+}
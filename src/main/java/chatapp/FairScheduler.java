@@ -0,0 +1,204 @@
+package chatapp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Deficit round robin over senders, in front of the mediator. While nothing is queued and one of
+// `concurrency` slots is free, a send runs at once on the caller's thread, for the price of a read
+// and a CAS. Otherwise it joins its sender's lane. Threads holding a slot (callers, not a pool)
+// serve the ring of non-empty lanes: a lane's turn adds quantum to its deficit and runs its sends
+// in order while the deficit covers their cost in recipients. A lane is off the ring while it is
+// being served, so one sender's queued sends never run concurrently or out of order, and a heavy
+// sender waits its turn behind everyone else rather than starving them. As in FQ-CoDel, a lane
+// that was idle joins a separate fresh queue served ahead of the ring, so a light sender waits
+// for the turn in progress rather than a whole round of backlogged lanes.
+// A caller serves at most one turn per submit, so its own send never waits on more than a quantum
+// of other senders' work; whatever is still waiting after that goes to a single helper thread,
+// started on demand, which serves turns until the lanes are empty.
+public class FairScheduler {
+
+    public static final int DEFAULT_QUANTUM = 64;
+    public static final int DEFAULT_MAX_QUEUED_PER_SENDER = 1024;
+
+    private final int concurrency;
+    private final int quantum;
+    private final int maxQueuedPerSender;
+    private final IdTable<Lane> lanes = new IdTable<>();
+    private final ConcurrentLinkedQueue<Lane> fresh = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Lane> ring = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    // Queued sends not yet finished; the fast path is only taken at zero.
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean helping = new AtomicBoolean();
+
+    private static final class Lane {
+        final ConcurrentLinkedQueue<Task<?>> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        // True while the lane is queued for a turn or being served.
+        final AtomicBoolean active = new AtomicBoolean();
+        // Only touched by the thread serving the lane's turn.
+        long deficit = 0;
+    }
+
+    private static final class Task<T> {
+        final int cost;
+        final Supplier<CompletableFuture<T>> work;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final ChatMetrics metrics;
+        final long queuedAt;
+
+        Task(int cost, Supplier<CompletableFuture<T>> work, ChatMetrics metrics) {
+            this.cost = cost;
+            this.work = work;
+            this.metrics = metrics;
+            this.queuedAt = metrics.startTimer();
+        }
+
+        void run() {
+            metrics.sendDequeued(queuedAt);
+            try {
+                work.get().whenComplete((value, err) -> {
+                    if (err == null) {
+                        result.complete(value);
+                    } else {
+                        result.completeExceptionally(err);
+                    }
+                });
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    public FairScheduler(int concurrency) {
+        this(concurrency, DEFAULT_QUANTUM, DEFAULT_MAX_QUEUED_PER_SENDER);
+    }
+
+    public FairScheduler(int concurrency, int quantum, int maxQueuedPerSender) {
+        if (concurrency <= 0 || quantum <= 0 || maxQueuedPerSender <= 0) {
+            throw new IllegalArgumentException("Concurrency, quantum and queue limit must be positive");
+        }
+        this.concurrency = concurrency;
+        this.quantum = quantum;
+        this.maxQueuedPerSender = maxQueuedPerSender;
+    }
+
+    // Runs work now or after the sender's turn comes. A sender already holding maxQueuedPerSender
+    // sends gets a future failed with RejectedExecutionException.
+    public <T> CompletableFuture<T> submit(int senderId, int cost, Supplier<CompletableFuture<T>> work, ChatMetrics m) {
+        if (queued.get() == 0 && tryAcquire()) {
+            try {
+                return work.get();
+            } finally {
+                running.decrementAndGet();
+                drain(1);
+            }
+        }
+        Lane lane = lanes.get(senderId);
+        if (lane == null) {
+            lane = lanes.computeIfAbsent(senderId, k -> new Lane());
+        }
+        if (lane.size.incrementAndGet() > maxQueuedPerSender) {
+            lane.size.decrementAndGet();
+            m.sendRejected();
+            return CompletableFuture.failedFuture(new RejectedExecutionException(
+                    "Too many queued sends from " + UserDictionary.GLOBAL.nameOf(senderId)));
+        }
+        Task<T> task = new Task<>(cost, work, m);
+        lane.tasks.add(task);
+        queued.incrementAndGet();
+        m.sendQueued();
+        if (lane.active.compareAndSet(false, true)) {
+            fresh.add(lane);
+        }
+        drain(1);
+        return task.result;
+    }
+
+    // Sends waiting for (or in) their lane's turn.
+    public int pending() {
+        return queued.get();
+    }
+
+    // Serves up to turns turns while lanes are waiting and a slot is free. Whoever frees a slot
+    // calls this again, and a lane is added before its submitter tries for a slot, so no lane is
+    // stranded: a caller that runs out of turns with lanes still waiting leaves them to the helper.
+    private void drain(int turns) {
+        while (hasWaiting() && tryAcquire()) {
+            if (turns-- == 0) {
+                running.decrementAndGet();
+                help();
+                return;
+            }
+            try {
+                Lane lane = fresh.poll();
+                if (lane == null) {
+                    lane = ring.poll();
+                }
+                if (lane != null) {
+                    serve(lane);
+                }
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean hasWaiting() {
+        return !fresh.isEmpty() || !ring.isEmpty();
+    }
+
+    // At most one helper at a time. It takes slots like any caller, and rechecks after standing
+    // down so a lane added as it finished is not left behind.
+    private void help() {
+        if (helping.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("fair-scheduler").start(() -> {
+                do {
+                    drain(Integer.MAX_VALUE);
+                    helping.set(false);
+                } while (hasWaiting() && helping.compareAndSet(false, true));
+            });
+        }
+    }
+
+    private void serve(Lane lane) {
+        lane.deficit += quantum;
+        Task<?> next;
+        while ((next = lane.tasks.peek()) != null && next.cost <= lane.deficit) {
+            lane.tasks.poll();
+            lane.size.decrementAndGet();
+            lane.deficit -= next.cost;
+            try {
+                next.run();
+            } finally {
+                queued.decrementAndGet();
+            }
+        }
+        if (next != null) {
+            ring.add(lane);
+            return;
+        }
+        // An idle lane keeps no credit. A submitter that saw it active relies on this recheck.
+        lane.deficit = 0;
+        lane.active.set(false);
+        if (!lane.tasks.isEmpty() && lane.active.compareAndSet(false, true)) {
+            fresh.add(lane);
+        }
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int r = running.get();
+            if (r >= concurrency) {
+                return false;
+            }
+            if (running.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package chatapp;
+
+import java.util.List;
+
+// Turns every event into (type, a, b) and leaves it to subclasses when to format it.
+// format() renders the same "[SERVER] ..." lines the server has always printed.
+public abstract class FormattingEventSink implements ChatEventSink {
+
+    protected static final int REGISTERED = 1;
+    protected static final int UNREGISTERED = 2;
+    protected static final int USER_BLOCKED = 3;
+    protected static final int DELIVERY_BLOCKED = 4;
+    protected static final int DELIVERED = 5;
+    protected static final int NOTHING_TO_UNDO = 6;
+    protected static final int UNDO_REQUESTED = 7;
+    protected static final int UNDONE = 8;
+    protected static final int ROOM_JOINED = 9;
+    protected static final int ROOM_BULK_JOINED = 10;
+    protected static final int ROOM_LEFT = 11;
+    protected static final int HISTORY = 12;
+    protected static final int EDITED = 13;
+    protected static final int BULK_BLOCKED = 14;
+    protected static final int USER_UNBLOCKED = 15;
+    protected static final int BULK_UNBLOCKED = 16;
+    protected static final int IMPORT_SKIPPED = 17;
+
+    protected abstract void emit(int type, Object a, Object b);
+
+    @Override public void userRegistered(String name) { emit(REGISTERED, name, null); }
+    @Override public void userUnregistered(String name) { emit(UNREGISTERED, name, null); }
+    @Override public void userBlocked(String blockerName, String blockeeName) { emit(USER_BLOCKED, blockerName, blockeeName); }
+    @Override public void userBlocked(String blockerName, int count) { emit(BULK_BLOCKED, blockerName, count); }
+    @Override public void userUnblocked(String blockerName, String blockeeName) { emit(USER_UNBLOCKED, blockerName, blockeeName); }
+    @Override public void userUnblocked(String blockerName, int count) { emit(BULK_UNBLOCKED, blockerName, count); }
+    @Override public void deliveryBlocked(String senderName, String recipientName) { emit(DELIVERY_BLOCKED, senderName, recipientName); }
+    @Override public void delivered(Message msg) { emit(DELIVERED, msg, null); }
+    @Override public void nothingToUndo(String senderName) { emit(NOTHING_TO_UNDO, senderName, null); }
+    @Override public void undoRequested(String senderName, MessageMemento snapshot) { emit(UNDO_REQUESTED, senderName, snapshot); }
+    @Override public void undone(String senderName) { emit(UNDONE, senderName, null); }
+    @Override public void edited(String senderName, Message msg) { emit(EDITED, senderName, msg); }
+    @Override public void roomJoined(String name, String roomId) { emit(ROOM_JOINED, name, roomId); }
+    @Override public void roomJoined(int count, String roomId) { emit(ROOM_BULK_JOINED, count, roomId); }
+    @Override public void roomLeft(String name, String roomId) { emit(ROOM_LEFT, name, roomId); }
+    @Override public void history(String name, List<Message> messages) { emit(HISTORY, name, messages); }
+    @Override public void importSkipped(String name, int count) { emit(IMPORT_SKIPPED, name, count); }
+
+    protected static void format(int type, Object a, Object b, StringBuilder out) {
+        switch (type) {
+            case REGISTERED -> out.append("[SERVER] Registered user: ").append(a);
+            case UNREGISTERED -> out.append("[SERVER] Unregistered user: ").append(a);
+            case USER_BLOCKED -> out.append("[SERVER] ").append(a).append(" has blocked ").append(b);
+            case BULK_BLOCKED -> out.append("[SERVER] ").append(a).append(" has blocked ").append(b).append(" users");
+            case USER_UNBLOCKED -> out.append("[SERVER] ").append(a).append(" has unblocked ").append(b);
+            case BULK_UNBLOCKED -> out.append("[SERVER] ").append(a).append(" has unblocked ").append(b).append(" users");
+            case DELIVERY_BLOCKED -> out.append("[SERVER] Message from ").append(a).append(" to ").append(b).append(" BLOCKED.");
+            case DELIVERED -> out.append("[SERVER] Delivered: ").append(a);
+            case NOTHING_TO_UNDO -> out.append("[SERVER] Nothing to undo for: ").append(a);
+            case UNDO_REQUESTED -> {
+                MessageMemento snap = (MessageMemento) b;
+                out.append("[SERVER] Undo request by ").append(a).append(" for message \"")
+                        .append(snap.getContentSnapshot()).append("\" at ").append(snap.getTimestamp());
+            }
+            case UNDONE -> out.append("[SERVER] Message undone for ").append(a);
+            case EDITED -> out.append("[SERVER] Message edited by ").append(a).append(": ").append(b);
+            case ROOM_JOINED -> out.append("[SERVER] ").append(a).append(" joined #").append(b);
+            case ROOM_BULK_JOINED -> out.append("[SERVER] ").append(a).append(" users joined #").append(b);
+            case ROOM_LEFT -> out.append("[SERVER] ").append(a).append(" left #").append(b);
+            case IMPORT_SKIPPED -> out.append("[SERVER] Import skipped ").append(b).append(" messages ").append(a).append(" already had");
+            case HISTORY -> {
+                out.append("---- Chat history for ").append(a).append(" ----").append(System.lineSeparator());
+                @SuppressWarnings("unchecked")
+                List<Message> messages = (List<Message>) b;
+                for (Message msg : messages) {
+                    out.append(msg).append(System.lineSeparator());
+                }
+                out.append("-----------------------------------------------------------");
+            }
+            default -> throw new IllegalArgumentException("Unknown event type " + type);
+        }
+        out.append(System.lineSeparator());
+    }
+}
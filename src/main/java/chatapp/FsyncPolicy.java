@@ -0,0 +1,10 @@
+package chatapp;
+
+public enum FsyncPolicy {
+    // Every append waits until it is on disk; concurrent appenders share one force (group commit).
+    EVERY_WRITE,
+    // A background thread forces the log on a fixed interval.
+    PERIODIC,
+    // Leave write-back entirely to the OS.
+    OS
+}
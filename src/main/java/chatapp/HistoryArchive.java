@@ -0,0 +1,457 @@
+package chatapp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Bulk export/import of every user's history in a columnar, deflated file.
+//
+//   "CHATARC2", then sections, each starting with a type byte:
+//   NAMES  int count, count x (int length, UTF-8): the next archive-local user ids, in order
+//   ROOMS  the same for archive-local room ids
+//   USER   int local id: the BLOCKs that follow belong to this user's history
+//   BLOCK  int raw length, int deflated length, deflated bytes of
+//            varint n
+//            n x zigzag varlong  id delta
+//            n x varint          sender
+//            n x varint          room + 1 (0 for direct messages), a room id
+//            n x varint          recipient count, then every recipient id, message by message
+//            n x zigzag varlong  epoch-nanosecond timestamp delta
+//            n x varint          content length, then all content bytes back to back
+//   END    long total messages
+// User and room ids are archive-local: NAMES and ROOMS always come before the first block that uses them.
+//
+// Export streams each history through ChatHistory.forEachMessage, so at most one block is in
+// memory. Import maps the file and inflates and decodes every block on the common pool. Messages
+// shared by several histories are written once per history, since blocks never refer to one
+// another and so decode independently, but on import only the first block to reach a message id
+// builds it: the rest reuse that Message and skip its content. Ids come from a per-process counter,
+// so an archived id may already name a different message here; every imported message gets a
+// fresh one instead. Each user's messages are then appended in timestamp order, skipping any the
+// history already holds with the same sender, timestamp and content (reported to the event sink),
+// and what was appended is journaled and indexed once per message.
+public final class HistoryArchive {
+
+    public static final int BLOCK_MESSAGES = 4096;
+
+    private static final byte[] MAGIC = "CHATARC2".getBytes(StandardCharsets.US_ASCII);
+    private static final byte NAMES = 1;
+    private static final byte USER = 2;
+    private static final byte BLOCK = 3;
+    private static final byte END = 4;
+    private static final byte ROOMS = 5;
+
+    private HistoryArchive() {
+    }
+
+    public static long export(ChatServer server, Path file) {
+        try (Writer writer = new Writer(file)) {
+            for (User usr : server.getUsers()) {
+                writer.user(usr.getId());
+                usr.getHistory().forEachMessage(writer::add);
+                writer.flushBlock();
+            }
+            writer.finish();
+            return writer.messages;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static long importInto(ChatServer server, Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Archive too large to map: " + channel.size() + " bytes");
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IllegalArgumentException(file + " is not a history archive");
+            }
+
+            // Archive-local id -> process-wide id. Only ever appended to, so a block can keep
+            // the array it was submitted with while later NAMES sections grow a copy.
+            int[] globalIds = new int[64];
+            int names = 0;
+            int[] globalRoomIds = new int[16];
+            int roomNames = 0;
+            Map<User, List<CompletableFuture<List<Message>>>> plan = new LinkedHashMap<>();
+            ConcurrentMap<Long, Message> decoded = new ConcurrentHashMap<>();
+            List<CompletableFuture<List<Message>>> current = null;
+            long expected = -1;
+            while (expected < 0) {
+                byte type = in.get();
+                switch (type) {
+                    case NAMES -> {
+                        int count = in.getInt();
+                        if (names + count > globalIds.length) {
+                            globalIds = Arrays.copyOf(globalIds, Math.max(names + count, globalIds.length * 2));
+                        }
+                        for (int i = 0; i < count; i++) {
+                            globalIds[names++] = UserDictionary.GLOBAL.idOf(readString(in));
+                        }
+                    }
+                    case ROOMS -> {
+                        int count = in.getInt();
+                        if (roomNames + count > globalRoomIds.length) {
+                            globalRoomIds = Arrays.copyOf(globalRoomIds, Math.max(roomNames + count, globalRoomIds.length * 2));
+                        }
+                        for (int i = 0; i < count; i++) {
+                            globalRoomIds[roomNames++] = ChatRoom.idOf(readString(in));
+                        }
+                    }
+                    case USER -> {
+                        String name = UserDictionary.GLOBAL.nameOf(globalIds[in.getInt()]);
+                        User usr = server.getUser(name);
+                        if (usr == null) {
+                            usr = new User(name, server);
+                            server.registerUser(usr);
+                        }
+                        current = plan.computeIfAbsent(usr, u -> new ArrayList<>());
+                    }
+                    case BLOCK -> {
+                        if (current == null) {
+                            throw new IllegalStateException("Block before any user in " + file);
+                        }
+                        int rawLength = in.getInt();
+                        int compressedLength = in.getInt();
+                        ByteBuffer compressed = in.slice(in.position(), compressedLength);
+                        in.position(in.position() + compressedLength);
+                        int[] ids = globalIds;
+                        int[] roomIds = globalRoomIds;
+                        current.add(CompletableFuture.supplyAsync(() -> decode(compressed, rawLength, ids, roomIds, decoded)));
+                    }
+                    case END -> expected = in.getLong();
+                    default -> throw new IllegalStateException("Unknown archive section " + type + " in " + file);
+                }
+            }
+
+            List<CompletableFuture<List<Message>>> appended = new ArrayList<>(plan.size());
+            Map<String, Integer> skipped = new ConcurrentHashMap<>();
+            long[] total = {0};
+            for (Map.Entry<User, List<CompletableFuture<List<Message>>>> entry : plan.entrySet()) {
+                List<CompletableFuture<List<Message>>> blocks = entry.getValue();
+                User usr = entry.getKey();
+                ChatHistory history = usr.getHistory();
+                appended.add(CompletableFuture.allOf(blocks.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+                    List<Message> messages = new ArrayList<>();
+                    for (CompletableFuture<List<Message>> block : blocks) {
+                        messages.addAll(block.join());
+                    }
+                    synchronized (total) {
+                        total[0] += messages.size();
+                    }
+                    // Stable, so messages sharing a timestamp keep their archive order.
+                    messages.sort(Comparator.comparing(Message::getTimestamp));
+                    List<Message> added = history.addHistoryIfAbsent(messages);
+                    if (added.size() < messages.size()) {
+                        skipped.put(usr.getName(), messages.size() - added.size());
+                    }
+                    return added;
+                }));
+            }
+
+            // Every appended message once, with the histories it went into, in archive order.
+            Map<Long, Integer> slot = new HashMap<>();
+            List<Message> added = new ArrayList<>();
+            List<List<String>> owners = new ArrayList<>();
+            int u = 0;
+            for (User usr : plan.keySet()) {
+                for (Message msg : appended.get(u++).join()) {
+                    int at = slot.computeIfAbsent(msg.getId(), k -> added.size());
+                    if (at == added.size()) {
+                        added.add(msg);
+                        owners.add(new ArrayList<>());
+                    }
+                    owners.get(at).add(usr.getName());
+                }
+            }
+            if (total[0] != expected) {
+                throw new IllegalStateException("Archive " + file + " holds " + total[0] + " messages, expected " + expected);
+            }
+            server.recordImported(added, owners, skipped);
+            long count = 0;
+            for (List<String> into : owners) {
+                count += into.size();
+            }
+            return count;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+    }
+
+    private static List<Message> decode(ByteBuffer compressed, int rawLength, int[] globalIds, int[] globalRoomIds,
+                                        ConcurrentMap<Long, Message> decoded) {
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                n += inflater.inflate(raw, n, rawLength - n);
+            }
+            if (n != rawLength) {
+                throw new IllegalStateException("Truncated archive block: " + n + " of " + rawLength + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt archive block", e);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(raw);
+        int count = Varint.getInt(in);
+        long[] ids = new long[count];
+        int[] senders = new int[count];
+        int[] rooms = new int[count];
+        int[][] recipients = new int[count][];
+        long id = 0;
+        for (int i = 0; i < count; i++) {
+            id += Varint.unZigZag(Varint.getLong(in));
+            ids[i] = id;
+        }
+        for (int i = 0; i < count; i++) {
+            senders[i] = globalIds[Varint.getInt(in)];
+        }
+        for (int i = 0; i < count; i++) {
+            int room = Varint.getInt(in);
+            rooms[i] = room == 0 ? -1 : globalRoomIds[room - 1];
+        }
+        for (int i = 0; i < count; i++) {
+            recipients[i] = new int[Varint.getInt(in)];
+        }
+        for (int i = 0; i < count; i++) {
+            int[] r = recipients[i];
+            for (int j = 0; j < r.length; j++) {
+                r[j] = globalIds[Varint.getInt(in)];
+            }
+        }
+        Instant[] timestamps = new Instant[count];
+        long nanos = 0;
+        for (int i = 0; i < count; i++) {
+            nanos += Varint.unZigZag(Varint.getLong(in));
+            timestamps[i] = Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+        }
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            lengths[i] = Varint.getInt(in);
+        }
+        List<Message> messages = new ArrayList<>(count);
+        int pos = in.position();
+        for (int i = 0; i < count; i++) {
+            Message msg = decoded.get(ids[i]);
+            if (msg == null) {
+                String content = new String(raw, pos, lengths[i], StandardCharsets.UTF_8);
+                Message built = new Message(Message.nextId(), senders[i], rooms[i], recipients[i], timestamps[i], content);
+                msg = decoded.putIfAbsent(ids[i], built);
+                msg = msg != null ? msg : built;
+            }
+            pos += lengths[i];
+            messages.add(msg);
+        }
+        return messages;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Message[] block = new Message[BLOCK_MESSAGES];
+        private final byte[][] contents = new byte[BLOCK_MESSAGES][];
+        // Process-wide id -> archive-local id + 1; zero means not yet defined.
+        private int[] localIds = new int[64];
+        private int nextLocal = 0;
+        private final List<String> pendingNames = new ArrayList<>();
+        private int[] localRoomIds = new int[16];
+        private int nextLocalRoom = 0;
+        private final List<String> pendingRooms = new ArrayList<>();
+        private ByteBuffer raw = ByteBuffer.allocate(64 * 1024);
+        private byte[] compressed = new byte[64 * 1024];
+        private int size = 0;
+        private long messages = 0;
+
+        Writer(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 256 * 1024));
+            out.write(MAGIC);
+        }
+
+        void user(int userId) throws IOException {
+            int local = local(userId);
+            flushNames();
+            out.writeByte(USER);
+            out.writeInt(local);
+        }
+
+        void add(Message msg) {
+            block[size++] = msg;
+            if (size == BLOCK_MESSAGES) {
+                try {
+                    flushBlock();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        void flushBlock() throws IOException {
+            if (size == 0) {
+                return;
+            }
+            int bound = 5;
+            for (int i = 0; i < size; i++) {
+                Message msg = block[i];
+                local(msg.getSenderId());
+                if (msg.isRoomMessage()) {
+                    localRoom(msg.getRoomId());
+                }
+                for (int r = 0; r < msg.getRecipientCount(); r++) {
+                    local(msg.getRecipientId(r));
+                }
+                contents[i] = msg.getContent().getBytes(StandardCharsets.UTF_8);
+                bound += 10 + 5 + 5 + 5 + 5 * msg.getRecipientCount() + 10 + 5 + contents[i].length;
+            }
+            flushNames();
+            if (raw.capacity() < bound) {
+                raw = ByteBuffer.allocate(Math.max(bound, raw.capacity() * 2));
+            }
+
+            ByteBuffer col = raw.clear();
+            Varint.putInt(col, size);
+            long id = 0;
+            for (int i = 0; i < size; i++) {
+                Varint.putLong(col, Varint.zigZag(block[i].getId() - id));
+                id = block[i].getId();
+            }
+            for (int i = 0; i < size; i++) {
+                Varint.putInt(col, localIds[block[i].getSenderId()] - 1);
+            }
+            for (int i = 0; i < size; i++) {
+                Varint.putInt(col, block[i].isRoomMessage() ? localRoomIds[block[i].getRoomId()] : 0);
+            }
+            for (int i = 0; i < size; i++) {
+                Varint.putInt(col, block[i].getRecipientCount());
+            }
+            for (int i = 0; i < size; i++) {
+                Message msg = block[i];
+                for (int r = 0; r < msg.getRecipientCount(); r++) {
+                    Varint.putInt(col, localIds[msg.getRecipientId(r)] - 1);
+                }
+            }
+            long nanos = 0;
+            for (int i = 0; i < size; i++) {
+                Instant ts = block[i].getTimestamp();
+                long t = ts.getEpochSecond() * 1_000_000_000L + ts.getNano();
+                Varint.putLong(col, Varint.zigZag(t - nanos));
+                nanos = t;
+            }
+            for (int i = 0; i < size; i++) {
+                Varint.putInt(col, contents[i].length);
+            }
+            for (int i = 0; i < size; i++) {
+                col.put(contents[i]);
+                contents[i] = null;
+                block[i] = null;
+            }
+
+            deflater.reset();
+            deflater.setInput(raw.array(), 0, col.position());
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            out.writeByte(BLOCK);
+            out.writeInt(col.position());
+            out.writeInt(length);
+            out.write(compressed, 0, length);
+            messages += size;
+            size = 0;
+        }
+
+        void finish() throws IOException {
+            out.writeByte(END);
+            out.writeLong(messages);
+        }
+
+        private int local(int globalId) {
+            if (globalId >= localIds.length) {
+                localIds = Arrays.copyOf(localIds, Math.max(globalId + 1, localIds.length * 2));
+            }
+            if (localIds[globalId] == 0) {
+                localIds[globalId] = ++nextLocal;
+                pendingNames.add(UserDictionary.GLOBAL.nameOf(globalId));
+            }
+            return localIds[globalId] - 1;
+        }
+
+        private int localRoom(int globalRoomId) {
+            if (globalRoomId >= localRoomIds.length) {
+                localRoomIds = Arrays.copyOf(localRoomIds, Math.max(globalRoomId + 1, localRoomIds.length * 2));
+            }
+            if (localRoomIds[globalRoomId] == 0) {
+                localRoomIds[globalRoomId] = ++nextLocalRoom;
+                pendingRooms.add(ChatRoom.nameOf(globalRoomId));
+            }
+            return localRoomIds[globalRoomId] - 1;
+        }
+
+        private void flushNames() throws IOException {
+            flushNames(NAMES, pendingNames);
+            flushNames(ROOMS, pendingRooms);
+        }
+
+        private void flushNames(byte section, List<String> pending) throws IOException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            out.writeByte(section);
+            out.writeInt(pending.size());
+            for (String name : pending) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            pending.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package chatapp;
+
+import java.time.Instant;
+
+// Position in a history: the message a page starts or ends at. The timestamp lets a cursor
+// still resolve (by binary search) after that message has been undone.
+public class HistoryCursor {
+    private final long messageId;
+    private final Instant timestamp;
+
+    public HistoryCursor(long messageId, Instant timestamp) {
+        this.messageId = messageId;
+        this.timestamp = timestamp;
+    }
+
+    public static HistoryCursor of(Message msg) {
+        return new HistoryCursor(msg.getId(), msg.getTimestamp());
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public Instant getTimestamp() {
+        return timestamp;
+    }
+}
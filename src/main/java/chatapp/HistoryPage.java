@@ -0,0 +1,37 @@
+package chatapp;
+
+import java.util.List;
+
+// One read-only page of a history, oldest first. hasMore says whether another page exists
+// in the direction it was fetched (older for before/latest, newer for after/between).
+public class HistoryPage {
+    private final List<Message> messages;
+    private final boolean hasMore;
+
+    public HistoryPage(List<Message> messages, boolean hasMore) {
+        this.messages = List.copyOf(messages);
+        this.hasMore = hasMore;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    // Pass to before(...) for the previous page; null when this page is empty.
+    public HistoryCursor olderCursor() {
+        return messages.isEmpty() ? null : HistoryCursor.of(messages.getFirst());
+    }
+
+    // Pass to after(...) for the next page; null when this page is empty.
+    public HistoryCursor newerCursor() {
+        return messages.isEmpty() ? null : HistoryCursor.of(messages.getLast());
+    }
+}
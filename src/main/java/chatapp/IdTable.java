@@ -0,0 +1,62 @@
+package chatapp;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+// Dense table indexed by interned user id. Reads are lock-free; writers serialize and copy only on grow.
+public class IdTable<T> {
+
+    private volatile AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(16);
+
+    public T get(int id) {
+        AtomicReferenceArray<T> current = slots;
+        return id >= 0 && id < current.length() ? current.get(id) : null;
+    }
+
+    public synchronized void put(int id, T value) {
+        AtomicReferenceArray<T> current = slots;
+        if (id >= current.length()) {
+            AtomicReferenceArray<T> grown = new AtomicReferenceArray<>(Math.max(id + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            grown.set(id, value);
+            slots = grown;
+        } else {
+            current.set(id, value);
+        }
+    }
+
+    public synchronized T computeIfAbsent(int id, IntFunction<T> factory) {
+        T existing = get(id);
+        if (existing != null) {
+            return existing;
+        }
+        T created = factory.apply(id);
+        put(id, created);
+        return created;
+    }
+
+    public synchronized T remove(int id) {
+        T existing = get(id);
+        if (existing != null) {
+            slots.set(id, null);
+        }
+        return existing;
+    }
+
+    public synchronized void clear() {
+        slots = new AtomicReferenceArray<>(16);
+    }
+
+    public void forEach(Consumer<T> action) {
+        AtomicReferenceArray<T> current = slots;
+        for (int i = 0; i < current.length(); i++) {
+            T value = current.get(i);
+            if (value != null) {
+                action.accept(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package chatapp;
+
+import java.util.concurrent.TimeUnit;
+
+// Shards in one JVM calling each other directly: send applies the envelope on the caller's
+// thread before returning, so a cluster on this transport is always quiescent.
+public class InMemoryTransport implements ShardTransport {
+
+    private final IdTable<ChatServer> shards = new IdTable<>();
+
+    @Override
+    public void bind(int shardId, ChatServer server) {
+        shards.put(shardId, server);
+    }
+
+    @Override
+    public void send(int fromShard, int toShard, ShardEnvelope envelope) {
+        ChatServer target = shards.get(toShard);
+        if (target == null) {
+            throw new IllegalStateException("Shard " + toShard + " is not bound");
+        }
+        target.receiveFromShard(envelope);
+    }
+
+    @Override
+    public boolean awaitQuiescence(long timeout, TimeUnit unit) {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        shards.clear();
+    }
+}
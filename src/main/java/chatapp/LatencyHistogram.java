@@ -0,0 +1,97 @@
+package chatapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear buckets in the style of HdrHistogram: values below 64ns are exact, above that each
+// power of two is split into 32 sub-buckets, so any recorded value is off by at most ~3%.
+// Recording is one array increment plus two adders and never allocates.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        long seen = max.get();
+        while (nanos > seen && !max.compareAndSet(seen, nanos)) {
+            seen = max.get();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    // Not atomic against concurrent recorders; percentiles may be off by the few values in flight.
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        long maxValue = max.get();
+        double mean = total == 0 ? 0 : (double) sum.sum() / total;
+        return new HistogramSnapshot(total, mean,
+                valueAt(copy, total, 0.50, maxValue),
+                valueAt(copy, total, 0.90, maxValue),
+                valueAt(copy, total, 0.99, maxValue),
+                valueAt(copy, total, 0.999, maxValue),
+                maxValue);
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    // Largest value that maps to the bucket, as HdrHistogram reports percentiles.
+    static long highestValueIn(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int magnitude = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int shift = magnitude - SUB_BUCKET_BITS;
+        long top = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return (top << shift) + (1L << shift) - 1;
+    }
+
+    private static long valueAt(long[] counts, long total, double quantile, long maxValue) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+}
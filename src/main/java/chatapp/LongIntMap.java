@@ -0,0 +1,110 @@
+package chatapp;
+
+import java.util.Arrays;
+
+// Open-addressing long -> int map without boxing, for large id lookups. Key 0 is reserved as
+// the empty marker (message ids start at 1). Not thread-safe; callers synchronize.
+public class LongIntMap {
+
+    private static final long EMPTY = 0L;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+    private int mask;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    // Returns missing when the key is absent.
+    public int get(long key, int missing) {
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == EMPTY) {
+                return missing;
+            }
+        }
+    }
+
+    public void put(long key, int value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int i = slot(key);
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            size++;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones.
+    public boolean remove(long key) {
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        size--;
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            // Move j into the hole unless its home lies cyclically in (hole, j].
+            boolean stays = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+            if (!stays) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package chatapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shards talking over TCP on 127.0.0.1, one connection per ordered pair of shards, so the
+// stream's own ordering keeps envelopes from one shard to another in order.
+// Frame layout: [int length][byte type][payload].
+//   NAME      int id, UTF name: defines an id used by later frames on this connection
+//   ROOM_NAME int id, UTF name: the same for a room id
+//   DELIVER / RETRACT / REPLACE   varint count, then MessageCodec records; a room message's
+//             record is followed by varint memberCount, varint memberId..., since the codec
+//             leaves members out and the receiving shard does not have the room
+//   BLOCK / UNBLOCK   UTF blocker, int count, count UTF blockees
+// Like the journal, each connection carries its own user dictionary, so frames would stay
+// meaningful between processes; this transport binds every shard of one process, though,
+// and counts sends and applies across all of them for awaitQuiescence. An envelope the
+// receiving shard fails to apply is reported and counted, and the connection keeps reading.
+public class LoopbackSocketTransport implements ShardTransport {
+
+    private static final byte NAME = 0;
+    private static final byte ROOM_NAME = -1;
+
+    private final IdTable<Endpoint> endpoints = new IdTable<>();
+    private final Map<Long, Link> links = new ConcurrentHashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private static final class Endpoint {
+        final ServerSocket listener;
+        final List<Socket> accepted = new ArrayList<>();
+
+        Endpoint(ServerSocket listener) {
+            this.listener = listener;
+        }
+    }
+
+    // Sending half of one shard-to-shard connection.
+    private static final class Link {
+        final Socket socket;
+        final DataOutputStream out;
+        final MessageCodec codec = new MessageCodec(new UserDictionary());
+        ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+    }
+
+    @Override
+    public void bind(int shardId, ChatServer server) {
+        try {
+            ServerSocket listener = new ServerSocket();
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Endpoint endpoint = new Endpoint(listener);
+            endpoints.put(shardId, endpoint);
+            Thread.ofVirtual().name("shard-" + shardId + "-accept").start(() -> accept(endpoint, server));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int portOf(int shardId) {
+        Endpoint endpoint = endpoints.get(shardId);
+        if (endpoint == null) {
+            throw new IllegalStateException("Shard " + shardId + " is not bound");
+        }
+        return endpoint.listener.getLocalPort();
+    }
+
+    @Override
+    public void send(int fromShard, int toShard, ShardEnvelope envelope) {
+        long key = ((long) fromShard << 32) | toShard;
+        Link link = links.computeIfAbsent(key, k -> connect(toShard));
+        synchronized (link) {
+            try {
+                if (envelope.getKind() == ShardEnvelope.BLOCK || envelope.getKind() == ShardEnvelope.UNBLOCK) {
+                    writeBlocks(link, envelope);
+                } else {
+                    writeMessages(link, envelope);
+                }
+                link.out.flush();
+                // Only an envelope that left in full will ever be applied.
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                // The stream may hold half a frame; the next send reconnects.
+                links.remove(key, link);
+                closeQuietly(link.socket);
+                throw new UncheckedIOException("Shard " + fromShard + " -> " + toShard, e);
+            }
+        }
+    }
+
+    private static void writeBlocks(Link link, ShardEnvelope envelope) throws IOException {
+        List<String> blockees = envelope.getBlockeeNames();
+        byte[] blocker = envelope.getBlockerName().getBytes(StandardCharsets.UTF_8);
+        List<byte[]> encoded = new ArrayList<>(blockees.size());
+        int length = 1 + 4 + blocker.length + 4;
+        for (String name : blockees) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            length += 4 + bytes.length;
+        }
+        link.out.writeInt(length);
+        link.out.writeByte(envelope.getKind());
+        link.out.writeInt(blocker.length);
+        link.out.write(blocker);
+        link.out.writeInt(encoded.size());
+        for (byte[] bytes : encoded) {
+            link.out.writeInt(bytes.length);
+            link.out.write(bytes);
+        }
+    }
+
+    private void writeMessages(Link link, ShardEnvelope envelope) throws IOException {
+        List<Message> messages = envelope.getMessages();
+        int max = 5;
+        for (Message msg : messages) {
+            defineName(link, msg.getSenderId());
+            if (msg.isRoomMessage()) {
+                defineRoom(link, msg.getRoomId());
+            }
+            for (int i = 0; i < msg.getRecipientCount(); i++) {
+                defineName(link, msg.getRecipientId(i));
+            }
+            max += link.codec.maxEncodedSize(msg) + 5;
+        }
+        if (link.scratch.capacity() < max) {
+            link.scratch = ByteBuffer.allocate(Math.max(max, link.scratch.capacity() * 2));
+        }
+        ByteBuffer body = link.scratch.clear();
+        Varint.putInt(body, messages.size());
+        for (Message msg : messages) {
+            link.codec.encode(msg, body);
+            if (msg.isRoomMessage()) {
+                Varint.putInt(body, msg.getRecipientCount());
+                for (int i = 0; i < msg.getRecipientCount(); i++) {
+                    Varint.putInt(body, link.codec.localId(msg.getRecipientId(i)));
+                }
+            }
+        }
+        link.out.writeInt(1 + body.position());
+        link.out.writeByte(envelope.getKind());
+        link.out.write(body.array(), 0, body.position());
+    }
+
+    private static void defineName(Link link, int userId) throws IOException {
+        if (link.codec.hasLocalId(userId)) {
+            return;
+        }
+        String name = UserDictionary.GLOBAL.nameOf(userId);
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        link.out.writeInt(1 + 4 + 4 + bytes.length);
+        link.out.writeByte(NAME);
+        link.out.writeInt(link.codec.localId(userId));
+        link.out.writeInt(bytes.length);
+        link.out.write(bytes);
+    }
+
+    private static void defineRoom(Link link, int roomId) throws IOException {
+        if (link.codec.hasLocalRoomId(roomId)) {
+            return;
+        }
+        byte[] bytes = ChatRoom.nameOf(roomId).getBytes(StandardCharsets.UTF_8);
+        link.out.writeInt(1 + 4 + 4 + bytes.length);
+        link.out.writeByte(ROOM_NAME);
+        link.out.writeInt(link.codec.localRoomId(roomId));
+        link.out.writeInt(bytes.length);
+        link.out.write(bytes);
+    }
+
+    private Link connect(int toShard) {
+        try {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), portOf(toShard));
+            socket.setTcpNoDelay(true);
+            return new Link(socket);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot reach shard " + toShard, e);
+        }
+    }
+
+    private void accept(Endpoint endpoint, ChatServer server) {
+        while (!closed) {
+            try {
+                Socket socket = endpoint.listener.accept();
+                synchronized (endpoint.accepted) {
+                    endpoint.accepted.add(socket);
+                }
+                Thread.ofVirtual().start(() -> read(socket, server));
+            } catch (IOException e) {
+                // Closed listener: the transport is shutting down.
+                return;
+            }
+        }
+    }
+
+    private void read(Socket socket, ChatServer server) {
+        MessageCodec codec = new MessageCodec(new UserDictionary());
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            byte[] frame = new byte[4096];
+            while (true) {
+                int length = in.readInt();
+                if (frame.length < length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                in.readFully(frame, 0, length);
+                ByteBuffer body = ByteBuffer.wrap(frame, 1, length - 1);
+                byte type = frame[0];
+                if (type == NAME || type == ROOM_NAME) {
+                    int id = body.getInt();
+                    (type == NAME ? codec.getDictionary() : codec.getRoomDictionary()).define(id, readString(body));
+                    continue;
+                }
+                ShardEnvelope envelope;
+                if (type == ShardEnvelope.BLOCK || type == ShardEnvelope.UNBLOCK) {
+                    String blocker = readString(body);
+                    int count = body.getInt();
+                    List<String> blockees = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        blockees.add(readString(body));
+                    }
+                    envelope = type == ShardEnvelope.BLOCK ? ShardEnvelope.block(blocker, blockees) : ShardEnvelope.unblock(blocker, blockees);
+                } else {
+                    int count = Varint.getInt(body);
+                    List<Message> messages = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        Message msg = codec.decode(body);
+                        messages.add(msg.isRoomMessage() ? withMembers(msg, body, codec.getDictionary()) : msg);
+                    }
+                    envelope = ShardEnvelope.of(type, messages);
+                }
+                try {
+                    server.receiveFromShard(envelope);
+                } catch (RuntimeException e) {
+                    // One bad envelope must not cut the link: later ones are still in order.
+                    failed.incrementAndGet();
+                    Thread current = Thread.currentThread();
+                    current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                } finally {
+                    applied.incrementAndGet();
+                }
+            }
+        } catch (EOFException e) {
+            // Sender closed the connection.
+        } catch (IOException e) {
+            if (!closed) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static Message withMembers(Message msg, ByteBuffer in, UserDictionary dictionary) {
+        int[] members = new int[Varint.getInt(in)];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = UserDictionary.GLOBAL.idOf(dictionary.nameOf(Varint.getInt(in)));
+        }
+        return new Message(msg.getId(), msg.getSenderId(), msg.getRoomId(), members, msg.getTimestamp(), msg.getContent());
+    }
+
+    // Envelopes a receiving shard threw on since the transport started.
+    public long failedEnvelopes() {
+        return failed.get();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already broken.
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (applied.get() < sent.get()) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Link link : links.values()) {
+            synchronized (link) {
+                try {
+                    link.socket.close();
+                } catch (IOException ignored) {
+                    // Best effort on shutdown.
+                }
+            }
+        }
+        links.clear();
+        endpoints.forEach(endpoint -> {
+            try {
+                endpoint.listener.close();
+                synchronized (endpoint.accepted) {
+                    for (Socket socket : endpoint.accepted) {
+                        socket.close();
+                    }
+                }
+            } catch (IOException ignored) {
+                // Best effort on shutdown.
+            }
+        });
+        endpoints.clear();
+    }
+}
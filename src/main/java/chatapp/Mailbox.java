@@ -0,0 +1,121 @@
+package chatapp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Bounded per-recipient queue drained in order by its own virtual thread. Every accepted task's
+// future completes: it runs, or it is failed when the mailbox closes before the drainer got to it.
+public class Mailbox {
+
+    // How often a sender blocked on a full queue looks at whether the mailbox was closed.
+    private static final long CLOSED_CHECK_MILLIS = 50;
+
+    private final String owner;
+    private final BlockingQueue<Delivery> queue;
+    private final Thread drainer;
+    private volatile boolean closed = false;
+
+    private static final class Delivery implements Runnable {
+        final Runnable task;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Delivery(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+                done.complete(null);
+            } catch (Throwable t) {
+                // Also Errors: the caller hears about it and the drainer keeps going.
+                done.completeExceptionally(t);
+            }
+        }
+    }
+
+    public Mailbox(String owner, int capacity) {
+        this.owner = owner;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.drainer = Thread.ofVirtual().name("mailbox-" + owner).start(this::drain);
+    }
+
+    public CompletableFuture<Void> submit(Runnable task, BackpressurePolicy policy) {
+        Delivery delivery = new Delivery(task);
+        if (closed) {
+            delivery.done.completeExceptionally(closedException());
+            return delivery.done;
+        }
+
+        boolean accepted = switch (policy) {
+            case BLOCK -> put(delivery);
+            case DROP -> {
+                if (!queue.offer(delivery)) {
+                    delivery.done.completeExceptionally(new MessageDroppedException("Mailbox full for " + owner + ", delivery dropped"));
+                }
+                yield !delivery.done.isDone();
+            }
+            case FAIL -> {
+                if (!queue.offer(delivery)) {
+                    delivery.done.completeExceptionally(new RejectedExecutionException("Mailbox full for " + owner));
+                }
+                yield !delivery.done.isDone();
+            }
+        };
+        // close() may have run between the check above and the enqueue, after the drainer's last
+        // sweep. Whoever takes the delivery out of the queue owns it: the drainer runs it, we fail it.
+        if (accepted && closed && queue.remove(delivery)) {
+            delivery.done.completeExceptionally(closedException());
+        }
+        return delivery.done;
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    public void close() {
+        closed = true;
+        drainer.interrupt();
+    }
+
+    // Waits for room, but gives up once the mailbox closes since nobody would drain it any more.
+    private boolean put(Delivery delivery) {
+        try {
+            while (!queue.offer(delivery, CLOSED_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    delivery.done.completeExceptionally(closedException());
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            delivery.done.completeExceptionally(e);
+            return false;
+        }
+    }
+
+    private RejectedExecutionException closedException() {
+        return new RejectedExecutionException("Mailbox closed for " + owner);
+    }
+
+    private void drain() {
+        while (!closed) {
+            try {
+                queue.take().run();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        // Anything accepted before close still gets delivered.
+        Delivery leftover;
+        while ((leftover = queue.poll()) != null) {
+            leftover.run();
+        }
+    }
+}
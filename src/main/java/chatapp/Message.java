@@ -1,27 +1,98 @@
 package chatapp;
 
 import java.time.Instant;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Message {
-    private final String sender;
-    private final List<String> recipients;
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    private final long id;
+    private final int senderId;
+    // Interned id of "#room" for room messages, -1 for direct ones. A room message shares the
+    // room's member snapshot as its recipients instead of copying it.
+    private final int roomId;
+    private final int[] recipientIds;
     private final Instant timestamp;
     private final String content;
 
     public Message(String sender, List<String> recipients, Instant timestamp, String content) {
-        this.sender = sender;
-        this.recipients = recipients;
+        this(NEXT_ID.getAndIncrement(), sender, recipients, timestamp, content);
+    }
+
+    // Rebuilds a message with a known id (e.g. from a journal); later ids keep counting up from it.
+    public Message(long id, String sender, List<String> recipients, Instant timestamp, String content) {
+        this(id, UserDictionary.GLOBAL.idOf(sender), toIds(recipients), timestamp, content);
+    }
+
+    // Id-based form used on the delivery path; recipientIds is owned by the message from here on.
+    public Message(int senderId, int[] recipientIds, Instant timestamp, String content) {
+        this(NEXT_ID.getAndIncrement(), senderId, recipientIds, timestamp, content);
+    }
+
+    public Message(long id, int senderId, int[] recipientIds, Instant timestamp, String content) {
+        this(id, senderId, -1, recipientIds, timestamp, content);
+    }
+
+    // A fresh id, for rebuilding a message that must not keep the one it came with.
+    static long nextId() {
+        return NEXT_ID.getAndIncrement();
+    }
+
+    public Message(long id, int senderId, int roomId, int[] recipientIds, Instant timestamp, String content) {
+        // Read first: rebuilding old messages in parallel would otherwise make every thread write
+        // the shared counter.
+        if (NEXT_ID.get() <= id) {
+            NEXT_ID.accumulateAndGet(id + 1, Math::max);
+        }
+        this.id = id;
+        this.senderId = senderId;
+        this.roomId = roomId;
+        this.recipientIds = recipientIds;
         this.timestamp = timestamp;
         this.content = content;
     }
 
+    public long getId() {
+        return id;
+    }
+    public int getSenderId() {
+        return senderId;
+    }
+    public int getRoomId() {
+        return roomId;
+    }
+    public boolean isRoomMessage() {
+        return roomId >= 0;
+    }
+    public String getRoom() {
+        return roomId >= 0 ? ChatRoom.nameOf(roomId) : null;
+    }
+    public int getRecipientCount() {
+        return recipientIds.length;
+    }
+    public int getRecipientId(int index) {
+        return recipientIds[index];
+    }
+    public boolean involves(int userId) {
+        if (senderId == userId) {
+            return true;
+        }
+        for (int recipientId : recipientIds) {
+            if (recipientId == userId) {
+                return true;
+            }
+        }
+        return false;
+    }
     public String getSender() {
-        return sender;
+        return UserDictionary.GLOBAL.nameOf(senderId);
     }
     public List<String> getRecipients() {
-        return recipients;
+        return new RecipientNames(recipientIds);
     }
     public Instant getTimestamp() {
         return timestamp;
@@ -32,7 +103,60 @@ public class Message {
 
     @Override
     public String toString() {
-        String recip = recipients.stream().collect(Collectors.joining(", "));
-        return "[" + timestamp + "] " + sender + " -> [" + recip + "]: " + content;
+        if (isRoomMessage()) {
+            return "[" + timestamp + "] " + getSender() + " -> #" + getRoom() + ": " + content;
+        }
+        String recip = String.join(", ", getRecipients());
+        return "[" + timestamp + "] " + getSender() + " -> [" + recip + "]: " + content;
+    }
+
+    // Same message (id, sender, recipients, timestamp) with new content, as left by an edit.
+    public Message withContent(String newContent) {
+        return new Message(id, senderId, roomId, recipientIds, timestamp, newContent);
+    }
+
+    public static Message forRoom(int senderId, int roomId, int[] members, Instant timestamp, String content) {
+        return new Message(NEXT_ID.getAndIncrement(), senderId, roomId, members, timestamp, content);
+    }
+
+    // For sends: names never seen here cannot receive anything, so they are left out rather than
+    // interned for good.
+    static int[] knownIds(List<String> names) {
+        int[] ids = new int[names.size()];
+        int n = 0;
+        for (String name : names) {
+            int id = UserDictionary.GLOBAL.lookup(name);
+            if (id >= 0) {
+                ids[n++] = id;
+            }
+        }
+        return n == ids.length ? ids : Arrays.copyOf(ids, n);
+    }
+
+    static int[] toIds(List<String> names) {
+        int[] ids = new int[names.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UserDictionary.GLOBAL.idOf(names.get(i));
+        }
+        return ids;
+    }
+
+    // Names are only resolved when a caller actually looks at them.
+    private static final class RecipientNames extends AbstractList<String> implements RandomAccess {
+        private final int[] ids;
+
+        RecipientNames(int[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public String get(int index) {
+            return UserDictionary.GLOBAL.nameOf(ids[index]);
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
     }
 }
@@ -0,0 +1,138 @@
+package chatapp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Compact binary form of a Message:
+//   varint bodyLength
+//   varlong id, varint senderId, varint roomId + 1, zigzag varlong epochSecond, varint nanos,
+//   varint recipientCount, varint recipientId..., varint contentLength, UTF-8 content
+// Room messages (roomId + 1 > 0) omit their recipients; the room stands in for its members.
+// User ids in the record belong to the codec's own UserDictionary, and room ids to its own room
+// dictionary, so a stream stays readable in another process; process-wide ids are translated
+// through a small cache.
+// Not thread-safe: give each writer its own codec or guard it externally.
+public class MessageCodec {
+
+    private final UserDictionary dictionary;
+    private final UserDictionary roomDictionary;
+    // Global user (room) id -> local id + 1; zero means not yet translated.
+    private int[] localIds = new int[0];
+    private int[] localRoomIds = new int[0];
+
+    // A codec over the process-wide dictionaries translates nothing; any other gets a fresh room table.
+    public MessageCodec(UserDictionary dictionary) {
+        this(dictionary, dictionary == UserDictionary.GLOBAL ? ChatRoom.ROOMS : new UserDictionary());
+    }
+
+    public MessageCodec(UserDictionary dictionary, UserDictionary roomDictionary) {
+        this.dictionary = dictionary;
+        this.roomDictionary = roomDictionary;
+    }
+
+    public UserDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public UserDictionary getRoomDictionary() {
+        return roomDictionary;
+    }
+
+    public boolean hasLocalId(int globalId) {
+        return dictionary == UserDictionary.GLOBAL || (globalId < localIds.length && localIds[globalId] != 0);
+    }
+
+    public boolean hasLocalRoomId(int globalRoomId) {
+        return roomDictionary == ChatRoom.ROOMS || (globalRoomId < localRoomIds.length && localRoomIds[globalRoomId] != 0);
+    }
+
+    public int localId(int globalId) {
+        if (dictionary == UserDictionary.GLOBAL) {
+            return globalId;
+        }
+        if (globalId >= localIds.length) {
+            localIds = Arrays.copyOf(localIds, Math.max(globalId + 1, localIds.length * 2));
+        }
+        int cached = localIds[globalId];
+        if (cached == 0) {
+            cached = dictionary.idOf(UserDictionary.GLOBAL.nameOf(globalId)) + 1;
+            localIds[globalId] = cached;
+        }
+        return cached - 1;
+    }
+
+    public int localRoomId(int globalRoomId) {
+        if (roomDictionary == ChatRoom.ROOMS) {
+            return globalRoomId;
+        }
+        if (globalRoomId >= localRoomIds.length) {
+            localRoomIds = Arrays.copyOf(localRoomIds, Math.max(globalRoomId + 1, localRoomIds.length * 2));
+        }
+        int cached = localRoomIds[globalRoomId];
+        if (cached == 0) {
+            cached = roomDictionary.idOf(ChatRoom.ROOMS.nameOf(globalRoomId)) + 1;
+            localRoomIds[globalRoomId] = cached;
+        }
+        return cached - 1;
+    }
+
+    public int maxEncodedSize(Message msg) {
+        return 5 + 10 + 5 + 5 + 10 + 5 + 5 + 5 * msg.getRecipientCount() + 5 + msg.getContent().length() * 3;
+    }
+
+    // Writes one record at the buffer's position and returns the number of bytes written.
+    public int encode(Message msg, ByteBuffer out) {
+        byte[] content = msg.getContent().getBytes(StandardCharsets.UTF_8);
+        int senderId = localId(msg.getSenderId());
+        int room = msg.isRoomMessage() ? localRoomId(msg.getRoomId()) + 1 : 0;
+        int[] recipientIds = new int[msg.isRoomMessage() ? 0 : msg.getRecipientCount()];
+        for (int i = 0; i < recipientIds.length; i++) {
+            recipientIds[i] = localId(msg.getRecipientId(i));
+        }
+        long seconds = Varint.zigZag(msg.getTimestamp().getEpochSecond());
+        int nanos = msg.getTimestamp().getNano();
+
+        int body = Varint.sizeOf(msg.getId())
+                + Varint.sizeOf(senderId)
+                + Varint.sizeOf(room)
+                + Varint.sizeOf(seconds)
+                + Varint.sizeOf(nanos)
+                + Varint.sizeOf(recipientIds.length)
+                + Varint.sizeOf(content.length)
+                + content.length;
+        for (int id : recipientIds) {
+            body += Varint.sizeOf(id);
+        }
+
+        int start = out.position();
+        Varint.putInt(out, body);
+        Varint.putLong(out, msg.getId());
+        Varint.putInt(out, senderId);
+        Varint.putInt(out, room);
+        Varint.putLong(out, seconds);
+        Varint.putInt(out, nanos);
+        Varint.putInt(out, recipientIds.length);
+        for (int id : recipientIds) {
+            Varint.putInt(out, id);
+        }
+        Varint.putInt(out, content.length);
+        out.put(content);
+        return out.position() - start;
+    }
+
+    public byte[] encode(Message msg) {
+        ByteBuffer out = ByteBuffer.allocate(maxEncodedSize(msg));
+        encode(msg, out);
+        byte[] bytes = new byte[out.position()];
+        out.get(0, bytes);
+        return bytes;
+    }
+
+    // Decodes the record at the buffer's position and advances past it.
+    public Message decode(ByteBuffer in) {
+        MessageView view = new MessageView(dictionary, roomDictionary).wrap(in, in.position());
+        in.position(view.end());
+        return view.toMessage();
+    }
+}
@@ -0,0 +1,14 @@
+package chatapp;
+
+import java.util.concurrent.RejectedExecutionException;
+
+// A delivery discarded under BackpressurePolicy.DROP. A rejection like any other, but callers that
+// chose DROP can tell a shed message apart from a failure.
+public class MessageDroppedException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MessageDroppedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,519 @@
+package chatapp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only, segmented event log on memory-mapped files.
+// Record layout: [int length][int crc32 of body][body = type byte + payload].
+// A zero length marks the end of written data in a preallocated segment.
+// Sends are stored in MessageCodec form; NAME and ROOM_NAME records define the user and room
+// ids they refer to.
+public class MessageJournal implements AutoCloseable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final byte REGISTER = 1;
+    private static final byte UNREGISTER = 2;
+    private static final byte BLOCK = 3;
+    private static final byte SEND = 4;
+    private static final byte UNDO = 5;
+    private static final byte NAME = 6;
+    private static final byte JOIN_ROOM = 7;
+    private static final byte LEAVE_ROOM = 8;
+    private static final byte EDIT = 9;
+    private static final byte REVERT_EDIT = 10;
+    private static final byte UNBLOCK = 11;
+    private static final byte BLOCK_ALL = 12;
+    private static final byte UNBLOCK_ALL = 13;
+    private static final byte JOIN_ROOM_ALL = 14;
+    private static final byte ROOM_NAME = 15;
+    private static final byte IMPORT = 16;
+
+    private static final int HEADER = 8;
+
+    public interface Replayer {
+        void onRegister(String name);
+        void onUnregister(String name);
+        void onBlock(String blockerName, String blockeeName);
+        void onUnblock(String blockerName, String blockeeName);
+        default void onBlockAll(String blockerName, List<String> blockeeNames) {
+            blockeeNames.forEach(blockee -> onBlock(blockerName, blockee));
+        }
+        default void onUnblockAll(String blockerName, List<String> blockeeNames) {
+            blockeeNames.forEach(blockee -> onUnblock(blockerName, blockee));
+        }
+        void onJoinRoom(String roomId, String name);
+        default void onJoinRoomAll(String roomId, List<String> names) {
+            names.forEach(name -> onJoinRoom(roomId, name));
+        }
+        void onLeaveRoom(String roomId, String name);
+        // Room messages come back without recipients; the room stands in for its members.
+        void onSend(Message msg);
+        void onUndo(String senderName);
+        void onEdit(String senderName, long messageId, String content, Instant editedAt);
+        void onRevertEdit(String senderName, long messageId);
+        // A message an archive import added to the histories of owners. Room messages come back
+        // without recipients here too.
+        default void onImport(List<String> owners, Message msg) {
+        }
+    }
+
+    private final Path dir;
+    private final long segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+    private final MessageCodec codec = new MessageCodec(new UserDictionary());
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long segmentBase;
+    private final List<MappedByteBuffer> unforced = new ArrayList<>();
+    private long durable;
+    private boolean closed = false;
+
+    public MessageJournal(Path dir, FsyncPolicy fsyncPolicy) {
+        this(dir, fsyncPolicy, DEFAULT_SEGMENT_SIZE, 10);
+    }
+
+    public MessageJournal(Path dir, FsyncPolicy fsyncPolicy, long segmentSize, long flushIntervalMillis) {
+        this.dir = dir;
+        this.fsyncPolicy = fsyncPolicy;
+        this.segmentSize = segmentSize;
+        try {
+            Files.createDirectories(dir);
+            List<Path> segments = segments();
+            if (segments.isEmpty()) {
+                openSegment(0, 0);
+            } else {
+                forEachRecord(segments, this::loadName);
+                Path last = segments.getLast();
+                long base = baseOf(last);
+                openSegment(base, validLength(last));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        durable = segmentBase + buffer.position();
+
+        if (fsyncPolicy == FsyncPolicy.PERIODIC) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "journal-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(() -> awaitDurable(Long.MAX_VALUE),
+                    flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    public void logRegister(String name) {
+        append(REGISTER, encoder().putString(name));
+    }
+
+    public void logUnregister(String name) {
+        append(UNREGISTER, encoder().putString(name));
+    }
+
+    public void logBlock(String blockerName, String blockeeName) {
+        append(BLOCK, encoder().putString(blockerName).putString(blockeeName));
+    }
+
+    public void logUnblock(String blockerName, String blockeeName) {
+        append(UNBLOCK, encoder().putString(blockerName).putString(blockeeName));
+    }
+
+    // One record for the whole batch, so a bulk block costs one write and at most one fsync.
+    public void logBlockAll(String blockerName, List<String> blockeeNames) {
+        append(BLOCK_ALL, encoder().putString(blockerName).putStrings(blockeeNames));
+    }
+
+    public void logUnblockAll(String blockerName, List<String> blockeeNames) {
+        append(UNBLOCK_ALL, encoder().putString(blockerName).putStrings(blockeeNames));
+    }
+
+    public void logJoinRoom(String roomId, String name) {
+        append(JOIN_ROOM, encoder().putString(roomId).putString(name));
+    }
+
+    public void logJoinRoomAll(String roomId, List<String> names) {
+        append(JOIN_ROOM_ALL, encoder().putString(roomId).putStrings(names));
+    }
+
+    public void logLeaveRoom(String roomId, String name) {
+        append(LEAVE_ROOM, encoder().putString(roomId).putString(name));
+    }
+
+    public void logSend(Message msg) {
+        long end;
+        synchronized (this) {
+            // Names must be defined in the log before the first record that uses their ids.
+            defineName(msg.getSenderId());
+            if (msg.isRoomMessage()) {
+                defineRoom(msg.getRoomId());
+            } else {
+                for (int i = 0; i < msg.getRecipientCount(); i++) {
+                    defineName(msg.getRecipientId(i));
+                }
+            }
+            end = writeRecord(1 + codec.maxEncodedSize(msg), out -> {
+                out.put(SEND);
+                codec.encode(msg, out);
+            });
+        }
+        syncIfRequired(end);
+    }
+
+    // One record per imported message, naming every history it went into.
+    public void logImport(List<String> owners, Message msg) {
+        long end;
+        synchronized (this) {
+            defineName(msg.getSenderId());
+            if (msg.isRoomMessage()) {
+                defineRoom(msg.getRoomId());
+            } else {
+                for (int i = 0; i < msg.getRecipientCount(); i++) {
+                    defineName(msg.getRecipientId(i));
+                }
+            }
+            byte[] head = encoder().putStrings(owners).finish(IMPORT);
+            end = writeRecord(head.length + codec.maxEncodedSize(msg), out -> {
+                out.put(head);
+                codec.encode(msg, out);
+            });
+        }
+        syncIfRequired(end);
+    }
+
+    public void logUndo(String senderName) {
+        append(UNDO, encoder().putString(senderName));
+    }
+
+    public void logEdit(String senderName, long messageId, String content, Instant editedAt) {
+        append(EDIT, encoder().putString(senderName).putLong(messageId).putString(content).putLong(editedAt.toEpochMilli()));
+    }
+
+    public void logRevertEdit(String senderName, long messageId) {
+        append(REVERT_EDIT, encoder().putString(senderName).putLong(messageId));
+    }
+
+    // Total bytes ever appended, across all segments.
+    public synchronized long position() {
+        return segmentBase + buffer.position();
+    }
+
+    public void replay(Replayer replayer) {
+        try {
+            forEachRecord(segments(), body -> dispatch(body, replayer));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        awaitDurable(Long.MAX_VALUE);
+        synchronized (this) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void append(byte type, Encoder payload) {
+        byte[] body = payload.finish(type);
+        syncIfRequired(writeRecord(body.length, out -> out.put(body)));
+    }
+
+    private void syncIfRequired(long end) {
+        if (fsyncPolicy == FsyncPolicy.EVERY_WRITE) {
+            awaitDurable(end);
+        }
+    }
+
+    private synchronized void defineName(int userId) {
+        if (codec.hasLocalId(userId)) {
+            return;
+        }
+        String name = UserDictionary.GLOBAL.nameOf(userId);
+        // Names loaded from an existing log only need their translation cached, not a new record.
+        boolean alreadyLogged = codec.getDictionary().lookup(name) >= 0;
+        int id = codec.localId(userId);
+        if (alreadyLogged) {
+            return;
+        }
+        byte[] body = encoder().putInt(id).putString(name).finish(NAME);
+        writeRecord(body.length, out -> out.put(body));
+    }
+
+    private synchronized void defineRoom(int roomId) {
+        if (codec.hasLocalRoomId(roomId)) {
+            return;
+        }
+        String name = ChatRoom.nameOf(roomId);
+        boolean alreadyLogged = codec.getRoomDictionary().lookup(name) >= 0;
+        int id = codec.localRoomId(roomId);
+        if (alreadyLogged) {
+            return;
+        }
+        byte[] body = encoder().putInt(id).putString(name).finish(ROOM_NAME);
+        writeRecord(body.length, out -> out.put(body));
+    }
+
+    // Encodes the body straight into the mapped segment, then fills in the header.
+    // The length goes in last, so a crash mid-record leaves a zero end marker behind.
+    private synchronized long writeRecord(int maxBody, Consumer<ByteBuffer> body) {
+        if (closed) {
+            throw new IllegalStateException("Journal closed");
+        }
+        int needed = HEADER + maxBody + HEADER;
+        if (buffer.remaining() < needed) {
+            roll(needed);
+        }
+        int start = buffer.position();
+        buffer.position(start + HEADER);
+        body.accept(buffer);
+        int length = buffer.position() - start - HEADER;
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(start + HEADER, length));
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, length);
+        if (buffer.remaining() >= HEADER) {
+            buffer.putLong(buffer.position(), 0L);
+        }
+        return segmentBase + buffer.position();
+    }
+
+    // Group commit: whoever gets the flush lock forces everything written so far,
+    // and every appender whose record is already covered returns without forcing again.
+    private void awaitDurable(long offset) {
+        synchronized (flushLock) {
+            if (durable >= offset) {
+                return;
+            }
+            List<MappedByteBuffer> toForce;
+            long target;
+            synchronized (this) {
+                target = segmentBase + buffer.position();
+                toForce = new ArrayList<>(unforced);
+                unforced.clear();
+                toForce.add(buffer);
+            }
+            for (MappedByteBuffer b : toForce) {
+                b.force();
+            }
+            durable = target;
+        }
+    }
+
+    private void roll(int needed) {
+        try {
+            long nextBase = segmentBase + buffer.position();
+            if (fsyncPolicy != FsyncPolicy.OS) {
+                unforced.add(buffer);
+            }
+            channel.close();
+            openSegment(nextBase, 0, Math.max(segmentSize, needed));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void openSegment(long base, int writePosition) throws IOException {
+        openSegment(base, writePosition, segmentSize);
+    }
+
+    private void openSegment(long base, int writePosition, long size) throws IOException {
+        Path file = dir.resolve(String.format("%020d.log", base));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long mapped = Math.max(size, channel.size());
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapped);
+        buffer.position(writePosition);
+        // Clear whatever a crashed writer left past the last good record.
+        if (buffer.remaining() >= HEADER) {
+            buffer.putLong(writePosition, 0L);
+        }
+        segmentBase = base;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private static long baseOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+    }
+
+    private static int validLength(Path segment) throws IOException {
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+            return validLength(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    // Walks records until the end marker, a torn header or a checksum mismatch.
+    private static int validLength(ByteBuffer in) {
+        int pos = 0;
+        CRC32 crc = new CRC32();
+        while (pos + HEADER <= in.capacity()) {
+            int length = in.getInt(pos);
+            if (length <= 0 || pos + HEADER + length > in.capacity()) {
+                break;
+            }
+            crc.reset();
+            crc.update(in.slice(pos + HEADER, length));
+            if ((int) crc.getValue() != in.getInt(pos + 4)) {
+                break;
+            }
+            pos += HEADER + length;
+        }
+        return pos;
+    }
+
+    private static void forEachRecord(List<Path> segments, Consumer<ByteBuffer> action) throws IOException {
+        for (Path segment : segments) {
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                in.limit(validLength(in));
+                while (in.hasRemaining()) {
+                    int length = in.getInt();
+                    in.getInt();
+                    ByteBuffer body = in.slice(in.position(), length);
+                    in.position(in.position() + length);
+                    action.accept(body);
+                }
+            }
+        }
+    }
+
+    private void loadName(ByteBuffer body) {
+        if (body.get(0) == NAME) {
+            body.get();
+            codec.getDictionary().define(body.getInt(), getString(body));
+        } else if (body.get(0) == ROOM_NAME) {
+            body.get();
+            codec.getRoomDictionary().define(body.getInt(), getString(body));
+        }
+    }
+
+    private void dispatch(ByteBuffer body, Replayer replayer) {
+        byte type = body.get();
+        switch (type) {
+            case REGISTER -> replayer.onRegister(getString(body));
+            case UNREGISTER -> replayer.onUnregister(getString(body));
+            case BLOCK -> replayer.onBlock(getString(body), getString(body));
+            case UNBLOCK -> replayer.onUnblock(getString(body), getString(body));
+            case BLOCK_ALL -> replayer.onBlockAll(getString(body), getStrings(body));
+            case UNBLOCK_ALL -> replayer.onUnblockAll(getString(body), getStrings(body));
+            case SEND -> replayer.onSend(codec.decode(body));
+            case UNDO -> replayer.onUndo(getString(body));
+            case JOIN_ROOM -> replayer.onJoinRoom(getString(body), getString(body));
+            case JOIN_ROOM_ALL -> replayer.onJoinRoomAll(getString(body), getStrings(body));
+            case LEAVE_ROOM -> replayer.onLeaveRoom(getString(body), getString(body));
+            case EDIT -> replayer.onEdit(getString(body), body.getLong(), getString(body), Instant.ofEpochMilli(body.getLong()));
+            case REVERT_EDIT -> replayer.onRevertEdit(getString(body), body.getLong());
+            case NAME -> codec.getDictionary().define(body.getInt(), getString(body));
+            case ROOM_NAME -> codec.getRoomDictionary().define(body.getInt(), getString(body));
+            case IMPORT -> replayer.onImport(getStrings(body), codec.decode(body));
+            default -> throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> getStrings(ByteBuffer in) {
+        int count = in.getInt();
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(getString(in));
+        }
+        return strings;
+    }
+
+    private static Encoder encoder() {
+        return new Encoder();
+    }
+
+    private static final class Encoder {
+        private ByteBuffer out = ByteBuffer.allocate(128);
+
+        Encoder() {
+            out.put((byte) 0);
+        }
+
+        Encoder putInt(int v) {
+            ensure(4).putInt(v);
+            return this;
+        }
+
+        Encoder putLong(long v) {
+            ensure(8).putLong(v);
+            return this;
+        }
+
+        Encoder putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length).putInt(bytes.length).put(bytes);
+            return this;
+        }
+
+        Encoder putStrings(List<String> strings) {
+            putInt(strings.size());
+            strings.forEach(this::putString);
+            return this;
+        }
+
+        byte[] finish(byte type) {
+            out.put(0, type);
+            byte[] body = new byte[out.position()];
+            out.get(0, body);
+            return body;
+        }
+
+        private ByteBuffer ensure(int n) {
+            if (out.remaining() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + n));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package chatapp;
+
+import java.time.Instant;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+// Chunked append log of messages with one writer and any number of lock-free readers.
+// The writer (callers synchronize) appends, removes and replaces; nothing it does is visible
+// until publish(), which swaps in an immutable Snapshot with a single volatile write.
+// Appends land past every published slot count, so they never disturb a snapshot; removals
+// and replacements copy the affected chunk once per publish instead of writing in place.
+// Removal by id nulls the slot in O(1); dead slots are compacted away once they outnumber the live ones.
+// A self-send, or a name listed twice, appends one message twice; removal and replacement by id
+// reach every copy, as a list of them would.
+//
+// Concurrent senders, mailboxes, the offline flush and imports all append out of timestamp order,
+// so each slot also gets a sort key: its message's timestamp, raised to the key before it. Keys
+// never decrease, so time lookups binary-search them, and no message sits more than maxSkew past
+// its own timestamp, which bounds the scan that turns a key range back into real timestamps.
+public class MessageLog {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MIN_COMPACT = 64;
+
+    private Message[][] chunks = new Message[4][];
+    // Sort key per slot in epoch nanoseconds. Written once, at append, past every published slot,
+    // so snapshots share these arrays without copying them.
+    private long[][] keys = new long[4][];
+    private long lastKey = Long.MIN_VALUE;
+    private long maxSkew = 0;
+    private final Map<Long, Integer> positions = new HashMap<>();
+    // Later slots of ids appended more than once. Rare, so kept apart from positions.
+    private final Map<Long, int[]> repeats = new HashMap<>();
+    private int slots = 0;
+    private int live = 0;
+    // First slot that may be live; eviction from the front only moves this forward.
+    private int head = 0;
+
+    // Chunks (and whether the chunk table) the writer created or copied since the last publish,
+    // and so may overwrite in place.
+    private final BitSet owned = new BitSet();
+    private boolean tableOwned = true;
+    private boolean dirty = false;
+    private volatile Snapshot published = new Snapshot(chunks, keys, 0, 0, 0, 0);
+
+    public void append(Message msg) {
+        int chunk = slots >>> CHUNK_SHIFT;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            keys = Arrays.copyOf(keys, keys.length * 2);
+            tableOwned = true;
+        }
+        // A new chunk goes in at an index no snapshot reads yet.
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Message[CHUNK_SIZE];
+            keys[chunk] = new long[CHUNK_SIZE];
+            owned.set(chunk);
+        }
+        chunks[chunk][slots & CHUNK_MASK] = msg;
+        long time = keyOf(msg.getTimestamp());
+        lastKey = Math.max(lastKey, time);
+        maxSkew = Math.max(maxSkew, lastKey - time);
+        keys[chunk][slots & CHUNK_MASK] = lastKey;
+        Integer first = positions.putIfAbsent(msg.getId(), slots);
+        if (first != null) {
+            int[] more = repeats.get(msg.getId());
+            more = more == null ? new int[1] : Arrays.copyOf(more, more.length + 1);
+            more[more.length - 1] = slots;
+            repeats.put(msg.getId(), more);
+        }
+        slots++;
+        live++;
+        dirty = true;
+    }
+
+    // Clears every copy of the message; returns how many there were.
+    public int remove(long id) {
+        Integer pos = positions.remove(id);
+        if (pos == null) {
+            return 0;
+        }
+        writable(pos >>> CHUNK_SHIFT)[pos & CHUNK_MASK] = null;
+        int removed = 1;
+        int[] more = repeats.remove(id);
+        if (more != null) {
+            for (int p : more) {
+                writable(p >>> CHUNK_SHIFT)[p & CHUNK_MASK] = null;
+            }
+            removed += more.length;
+        }
+        live -= removed;
+        dirty = true;
+        while (head < slots && at(chunks, head) == null) {
+            head++;
+        }
+        int dead = slots - live;
+        if (dead >= MIN_COMPACT && dead > live) {
+            compact();
+        }
+        return removed;
+    }
+
+    // Swaps in a new version of a message by id; returns the old one, or null if absent.
+    public Message replace(Message msg) {
+        Integer pos = positions.get(msg.getId());
+        if (pos == null) {
+            return null;
+        }
+        Message[] chunk = writable(pos >>> CHUNK_SHIFT);
+        Message old = chunk[pos & CHUNK_MASK];
+        chunk[pos & CHUNK_MASK] = msg;
+        int[] more = repeats.get(msg.getId());
+        if (more != null) {
+            for (int p : more) {
+                writable(p >>> CHUNK_SHIFT)[p & CHUNK_MASK] = msg;
+            }
+        }
+        dirty = true;
+        return old;
+    }
+
+    public boolean contains(long id) {
+        return positions.containsKey(id);
+    }
+
+    public Message first() {
+        return live == 0 ? null : at(chunks, head);
+    }
+
+    public Message last() {
+        if (live == 0) {
+            return null;
+        }
+        int pos = slots - 1;
+        while (at(chunks, pos) == null) {
+            pos--;
+        }
+        return at(chunks, pos);
+    }
+
+    public int size() {
+        return live;
+    }
+
+    public boolean isEmpty() {
+        return live == 0;
+    }
+
+    // Makes every change so far visible to snapshot(). Cheap when nothing changed.
+    public void publish() {
+        if (!dirty) {
+            return;
+        }
+        published = new Snapshot(chunks, keys, slots, live, head, maxSkew);
+        owned.clear();
+        tableOwned = false;
+        dirty = false;
+    }
+
+    // Lock-free; safe from any thread.
+    public Snapshot snapshot() {
+        return published;
+    }
+
+    private Message[] writable(int chunk) {
+        if (!owned.get(chunk)) {
+            if (!tableOwned) {
+                chunks = chunks.clone();
+                tableOwned = true;
+            }
+            chunks[chunk] = chunks[chunk].clone();
+            owned.set(chunk);
+        }
+        return chunks[chunk];
+    }
+
+    private void compact() {
+        Message[][] oldChunks = chunks;
+        int oldSlots = slots;
+
+        // Fresh arrays, so published snapshots keep reading the old ones. Keys are recomputed
+        // from the survivors, which can only lower them; maxSkew stays a safe upper bound.
+        chunks = new Message[Math.max(4, Integer.highestOneBit(Math.max(1, live >>> CHUNK_SHIFT)) * 2)][];
+        keys = new long[chunks.length][];
+        lastKey = Long.MIN_VALUE;
+        tableOwned = true;
+        owned.clear();
+        positions.clear();
+        repeats.clear();
+        slots = 0;
+        live = 0;
+        for (int pos = head; pos < oldSlots; pos++) {
+            Message msg = at(oldChunks, pos);
+            if (msg != null) {
+                append(msg);
+            }
+        }
+        head = 0;
+    }
+
+    private static Message at(Message[][] chunks, int pos) {
+        return chunks[pos >>> CHUNK_SHIFT][pos & CHUNK_MASK];
+    }
+
+    private static long keyOf(Instant time) {
+        return time.getEpochSecond() * 1_000_000_000L + time.getNano();
+    }
+
+    // Point-in-time, read-only view of the log, oldest first. Indexing is O(1); once messages have
+    // been removed from the middle, the first get() maps live indexes to slots for the rest.
+    //
+    // Paging follows append order. An anchor is found by binary search on the sort keys, then by
+    // id among the slots its timestamp can have been raised into; time bounds match messages by
+    // their own timestamps.
+    public static final class Snapshot extends AbstractList<Message> implements RandomAccess {
+        private final Message[][] chunks;
+        private final long[][] keys;
+        private final int slots;
+        private final int live;
+        private final int head;
+        private final long maxSkew;
+        private volatile int[] liveSlots;
+
+        private Snapshot(Message[][] chunks, long[][] keys, int slots, int live, int head, long maxSkew) {
+            this.chunks = chunks;
+            this.keys = keys;
+            this.slots = slots;
+            this.live = live;
+            this.head = head;
+            this.maxSkew = maxSkew;
+        }
+
+        @Override
+        public int size() {
+            return live;
+        }
+
+        @Override
+        public Message get(int index) {
+            if (index < 0 || index >= live) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            if (slots - head == live) {
+                return at(chunks, head + index);
+            }
+            int[] map = liveSlots;
+            if (map == null) {
+                map = new int[live];
+                for (int i = 0, pos = nextLive(head); i < live; i++, pos = nextLive(pos + 1)) {
+                    map[i] = pos;
+                }
+                liveSlots = map;
+            }
+            return at(chunks, map[index]);
+        }
+
+        public Message first() {
+            return live == 0 ? null : at(chunks, nextLive(head));
+        }
+
+        public Message last() {
+            return live == 0 ? null : at(chunks, previousLive(slots - 1));
+        }
+
+        public boolean contains(long id, Instant timestamp) {
+            return indexOf(id, timestamp) >= 0;
+        }
+
+        public List<Message> tail(int limit) {
+            return collectBackward(slots, limit);
+        }
+
+        // Up to limit messages just before the anchor, oldest first.
+        public List<Message> before(long anchorId, Instant anchorTime, int limit) {
+            int pos = indexOf(anchorId, anchorTime);
+            return collectBackward(pos >= 0 ? pos : lowerBound(keyOf(anchorTime)), limit);
+        }
+
+        // Up to limit messages just after the anchor and before 'to' (exclusive, null for no bound).
+        public List<Message> after(long anchorId, Instant anchorTime, Instant to, int limit) {
+            int pos = indexOf(anchorId, anchorTime);
+            return collectForward(pos >= 0 ? pos + 1 : lowerBound(keyOf(anchorTime)), null, to, limit);
+        }
+
+        // Up to limit messages from 'from' (inclusive) to 'to' (exclusive); null bounds are open.
+        // A message's key is at least its timestamp, so none at or after 'from' sits before lowerBound(from).
+        public List<Message> range(Instant from, Instant to, int limit) {
+            return collectForward(from != null ? lowerBound(keyOf(from)) : head, from, to, limit);
+        }
+
+        @Override
+        public Iterator<Message> iterator() {
+            return new Iterator<>() {
+                private int pos = nextLive(head);
+
+                @Override
+                public boolean hasNext() {
+                    return pos < slots;
+                }
+
+                @Override
+                public Message next() {
+                    if (pos >= slots) {
+                        throw new NoSuchElementException();
+                    }
+                    Message msg = at(chunks, pos);
+                    pos = nextLive(pos + 1);
+                    return msg;
+                }
+            };
+        }
+
+        // The anchor's key lies between its timestamp and maxSkew past it.
+        private int indexOf(long id, Instant timestamp) {
+            long time = keyOf(timestamp);
+            for (int pos = nextLive(lowerBound(time)); pos < slots && keyAt(pos) - time <= maxSkew; pos = nextLive(pos + 1)) {
+                if (at(chunks, pos).getId() == id) {
+                    return pos;
+                }
+            }
+            return -1;
+        }
+
+        // First slot whose key is at or after the given one. Dead slots keep their keys.
+        private int lowerBound(long key) {
+            int lo = head;
+            int hi = slots;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keyAt(mid) < key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private long keyAt(int pos) {
+            return keys[pos >>> CHUNK_SHIFT][pos & CHUNK_MASK];
+        }
+
+        private int nextLive(int pos) {
+            while (pos < slots && at(chunks, pos) == null) {
+                pos++;
+            }
+            return pos;
+        }
+
+        private int previousLive(int pos) {
+            while (pos >= head && at(chunks, pos) == null) {
+                pos--;
+            }
+            return pos;
+        }
+
+        // Past the first key at or after 'to', only messages raised by up to maxSkew can still be earlier.
+        private List<Message> collectForward(int start, Instant from, Instant to, int limit) {
+            List<Message> out = new ArrayList<>(Math.min(limit, live));
+            long end = to != null ? keyOf(to) : Long.MAX_VALUE;
+            for (int pos = nextLive(start); pos < slots && out.size() < limit; pos = nextLive(pos + 1)) {
+                if (keyAt(pos) >= end && keyAt(pos) - end >= maxSkew) {
+                    break;
+                }
+                Message msg = at(chunks, pos);
+                if ((from == null || !msg.getTimestamp().isBefore(from)) && (to == null || msg.getTimestamp().isBefore(to))) {
+                    out.add(msg);
+                }
+            }
+            return out;
+        }
+
+        private List<Message> collectBackward(int end, int limit) {
+            List<Message> out = new ArrayList<>(Math.min(limit, live));
+            for (int pos = previousLive(end - 1); pos >= head && out.size() < limit; pos = previousLive(pos - 1)) {
+                out.add(at(chunks, pos));
+            }
+            Collections.reverse(out);
+            return out;
+        }
+    }
+}
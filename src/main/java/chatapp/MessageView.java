@@ -0,0 +1,158 @@
+package chatapp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+// Flyweight over one MessageCodec record. wrap() only records field offsets and
+// primitive header values; strings and the Message itself are built on demand.
+// Reuse one view per thread and re-wrap it to walk a buffer without allocating.
+public class MessageView {
+
+    private final UserDictionary dictionary;
+    private final UserDictionary roomDictionary;
+
+    private ByteBuffer buf;
+    private int end;
+    private long id;
+    private int senderId;
+    private int roomId;
+    private long epochSecond;
+    private int nanos;
+    private int recipientCount;
+    private int recipientsOffset;
+    private int contentOffset;
+    private int contentLength;
+    private int cursor;
+
+    // For records without room posts, or written against the process-wide dictionaries.
+    public MessageView(UserDictionary dictionary) {
+        this(dictionary, dictionary == UserDictionary.GLOBAL ? ChatRoom.ROOMS : new UserDictionary());
+    }
+
+    public MessageView(UserDictionary dictionary, UserDictionary roomDictionary) {
+        this.dictionary = dictionary;
+        this.roomDictionary = roomDictionary;
+    }
+
+    public MessageView wrap(ByteBuffer buffer, int offset) {
+        this.buf = buffer;
+        this.cursor = offset;
+        int body = (int) readVarLong();
+        this.end = cursor + body;
+        this.id = readVarLong();
+        this.senderId = (int) readVarLong();
+        this.roomId = (int) readVarLong() - 1;
+        this.epochSecond = Varint.unZigZag(readVarLong());
+        this.nanos = (int) readVarLong();
+        this.recipientCount = (int) readVarLong();
+        this.recipientsOffset = cursor;
+        for (int i = 0; i < recipientCount; i++) {
+            readVarLong();
+        }
+        this.contentLength = (int) readVarLong();
+        this.contentOffset = cursor;
+        return this;
+    }
+
+    // Offset just past this record, i.e. where the next one starts.
+    public int end() {
+        return end;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public int senderId() {
+        return senderId;
+    }
+
+    public String sender() {
+        return dictionary.nameOf(senderId);
+    }
+
+    // -1 for a direct message.
+    public int roomId() {
+        return roomId;
+    }
+
+    public long epochSecond() {
+        return epochSecond;
+    }
+
+    public Instant timestamp() {
+        return Instant.ofEpochSecond(epochSecond, nanos);
+    }
+
+    public int recipientCount() {
+        return recipientCount;
+    }
+
+    public int recipientId(int index) {
+        if (index < 0 || index >= recipientCount) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        cursor = recipientsOffset;
+        for (int i = 0; i < index; i++) {
+            readVarLong();
+        }
+        return (int) readVarLong();
+    }
+
+    public boolean hasParticipant(int userId) {
+        if (senderId == userId) {
+            return true;
+        }
+        cursor = recipientsOffset;
+        for (int i = 0; i < recipientCount; i++) {
+            if ((int) readVarLong() == userId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int contentLength() {
+        return contentLength;
+    }
+
+    public String content() {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + contentOffset, contentLength, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[contentLength];
+        buf.get(contentOffset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public Message toMessage() {
+        int[] recipients = new int[recipientCount];
+        cursor = recipientsOffset;
+        for (int i = 0; i < recipientCount; i++) {
+            recipients[i] = toGlobal((int) readVarLong());
+        }
+        int room = roomId >= 0 ? toGlobalRoom(roomId) : -1;
+        return new Message(id, toGlobal(senderId), room, recipients, timestamp(), content());
+    }
+
+    private int toGlobal(int localId) {
+        return dictionary == UserDictionary.GLOBAL ? localId : UserDictionary.GLOBAL.idOf(dictionary.nameOf(localId));
+    }
+
+    private int toGlobalRoom(int localId) {
+        return roomDictionary == ChatRoom.ROOMS ? localId : ChatRoom.ROOMS.idOf(roomDictionary.nameOf(localId));
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get(cursor++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
@@ -0,0 +1,26 @@
+package chatapp;
+
+import java.util.List;
+
+public class NoOpEventSink implements ChatEventSink {
+
+    public static final NoOpEventSink INSTANCE = new NoOpEventSink();
+
+    @Override public void userRegistered(String name) { }
+    @Override public void userUnregistered(String name) { }
+    @Override public void userBlocked(String blockerName, String blockeeName) { }
+    @Override public void userBlocked(String blockerName, int count) { }
+    @Override public void userUnblocked(String blockerName, String blockeeName) { }
+    @Override public void userUnblocked(String blockerName, int count) { }
+    @Override public void deliveryBlocked(String senderName, String recipientName) { }
+    @Override public void delivered(Message msg) { }
+    @Override public void nothingToUndo(String senderName) { }
+    @Override public void undoRequested(String senderName, MessageMemento snapshot) { }
+    @Override public void undone(String senderName) { }
+    @Override public void edited(String senderName, Message msg) { }
+    @Override public void roomJoined(String name, String roomId) { }
+    @Override public void roomJoined(int count, String roomId) { }
+    @Override public void roomLeft(String name, String roomId) { }
+    @Override public void history(String name, List<Message> messages) { }
+    @Override public void importSkipped(String name, int count) { }
+}
@@ -0,0 +1,401 @@
+package chatapp;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Messages for users who were registered on this server and are offline now, held per user until
+// they register again. A queue appends to an array and indexes it by message id, so retracting or
+// editing a queued copy never scans it. Once everything queued is estimated past memoryCap bytes,
+// the largest queues spill their in-memory parts to their own ColdTier files until the total is
+// back under half the cap, so spill files stay few and large however many queues are small.
+// At most maxQueues users are held for, each for at most maxAge and maxPerUser messages. Past the
+// first two the user offline longest is forgotten, along with what was queued for them; past the
+// last, newer messages are refused as FULL and counted. Names that never return cannot pile up either way.
+public class OfflineStore implements AutoCloseable {
+
+    public static final long DEFAULT_MEMORY_CAP = 64L << 20;
+    public static final int DEFAULT_MAX_QUEUES = 1 << 20;
+    public static final int DEFAULT_MAX_PER_USER = 100_000;
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofDays(30);
+
+    private final long memoryCap;
+    private final int maxQueues;
+    private final int maxPerUser;
+    private final long maxAgeNanos;
+    private final Path spillDirectory;
+    private final IdTable<Queue> queues = new IdTable<>();
+    // Queues in the order they were opened; drained ones linger until evicted or pruned.
+    // Guards opening, draining and evicting, so a queue is only ever removed by one of them.
+    private final ArrayDeque<Queue> opened = new ArrayDeque<>();
+    private int openCount = 0;
+    // When the queue opened longest ago reaches maxAge; offers check this before taking the lock.
+    private volatile long nextExpiry;
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // One thread at a time picks queues to spill.
+    private final Object spilling = new Object();
+
+    // What offer() did with a message. NOT_HELD: there is no queue, so deliver it some other way.
+    public enum Offer { QUEUED, FULL, NOT_HELD }
+
+    private record Held(Queue queue, long bytes) {
+    }
+
+    private final class Queue {
+        private final int userId;
+        private final long openedNanos;
+        private Message[] slots = new Message[8];
+        private int used = 0;
+        private int size = 0;
+        private long bytes = 0;
+        // Message id -> slot for the in-memory part.
+        private final LongIntMap index = new LongIntMap();
+        // Ids still wanted from the spill file; a retraction just drops the id.
+        private LongIntMap spilledIds;
+        private ColdTier cold;
+        private boolean drained = false;
+
+        Queue(int userId, long openedNanos) {
+            this.userId = userId;
+            this.openedNanos = openedNanos;
+        }
+
+        synchronized Offer offer(Message msg) {
+            if (drained) {
+                return Offer.NOT_HELD;
+            }
+            long id = msg.getId();
+            if (index.get(id, -1) >= 0 || (spilledIds != null && spilledIds.get(id, -1) >= 0)) {
+                return Offer.QUEUED;
+            }
+            if (size >= maxPerUser) {
+                dropped.incrementAndGet();
+                return Offer.FULL;
+            }
+            if (used == slots.length) {
+                compact();
+            }
+            slots[used] = msg;
+            index.put(id, used++);
+            size++;
+            long cost = ChatHistory.estimateBytes(msg);
+            bytes += cost;
+            memoryBytes.addAndGet(cost);
+            return Offer.QUEUED;
+        }
+
+        synchronized boolean remove(long id) {
+            int slot = index.get(id, -1);
+            if (slot >= 0) {
+                index.remove(id);
+                long cost = ChatHistory.estimateBytes(slots[slot]);
+                bytes -= cost;
+                memoryBytes.addAndGet(-cost);
+                slots[slot] = null;
+                size--;
+                return true;
+            }
+            if (spilledIds != null && spilledIds.remove(id)) {
+                size--;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean replace(Message msg) {
+            int slot = index.get(msg.getId(), -1);
+            if (slot >= 0) {
+                long delta = ChatHistory.estimateBytes(msg) - ChatHistory.estimateBytes(slots[slot]);
+                bytes += delta;
+                memoryBytes.addAndGet(delta);
+                slots[slot] = msg;
+                return true;
+            }
+            return spilledIds != null && spilledIds.get(msg.getId(), -1) >= 0 && cold.replace(msg);
+        }
+
+        // Oldest first: whatever was spilled, then the in-memory part. Later offers are refused.
+        synchronized List<Message> drain() {
+            drained = true;
+            List<Message> out = new ArrayList<>(size);
+            if (cold != null) {
+                for (Message msg : cold.readAll()) {
+                    if (spilledIds.get(msg.getId(), -1) >= 0) {
+                        out.add(msg);
+                    }
+                }
+            }
+            for (int i = 0; i < used; i++) {
+                if (slots[i] != null) {
+                    out.add(slots[i]);
+                }
+            }
+            release();
+            return out;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long memoryBytes() {
+            return bytes;
+        }
+
+        synchronized long diskBytes() {
+            return cold != null ? cold.diskBytes() : 0;
+        }
+
+        synchronized void release() {
+            drained = true;
+            memoryBytes.addAndGet(-bytes);
+            bytes = 0;
+            slots = new Message[0];
+            used = 0;
+            size = 0;
+            index.clear();
+            spilledIds = null;
+            if (cold != null) {
+                cold.close();
+                cold = null;
+            }
+        }
+
+        // Squeezes out retracted slots before growing the array.
+        private void compact() {
+            int n = 0;
+            for (int i = 0; i < used; i++) {
+                if (slots[i] != null) {
+                    slots[n] = slots[i];
+                    index.put(slots[n].getId(), n);
+                    n++;
+                }
+            }
+            Arrays.fill(slots, n, used, null);
+            used = n;
+            if (used > slots.length / 2) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+            }
+        }
+
+        synchronized void spill() {
+            if (drained || bytes == 0) {
+                return;
+            }
+            List<Message> batch = new ArrayList<>(used);
+            for (int i = 0; i < used; i++) {
+                if (slots[i] != null) {
+                    batch.add(slots[i]);
+                }
+            }
+            if (cold == null) {
+                cold = new ColdTier(spillDirectory);
+                spilledIds = new LongIntMap(batch.size());
+            }
+            cold.spill(batch);
+            for (Message msg : batch) {
+                spilledIds.put(msg.getId(), 1);
+            }
+            memoryBytes.addAndGet(-bytes);
+            bytes = 0;
+            Arrays.fill(slots, 0, used, null);
+            used = 0;
+            index.clear();
+        }
+    }
+
+    public OfflineStore() {
+        this(DEFAULT_MEMORY_CAP, null);
+    }
+
+    public OfflineStore(long memoryCap, Path spillDirectory) {
+        this(memoryCap, spillDirectory, DEFAULT_MAX_QUEUES);
+    }
+
+    public OfflineStore(long memoryCap, Path spillDirectory, int maxQueues) {
+        this(memoryCap, spillDirectory, maxQueues, DEFAULT_MAX_PER_USER, DEFAULT_MAX_AGE);
+    }
+
+    public OfflineStore(long memoryCap, Path spillDirectory, int maxQueues, int maxPerUser, Duration maxAge) {
+        if (memoryCap < 0) {
+            throw new IllegalArgumentException("Memory cap must not be negative");
+        }
+        if (maxQueues <= 0 || maxPerUser <= 0) {
+            throw new IllegalArgumentException("Must hold at least one message for at least one user");
+        }
+        if (maxAge.isNegative() || maxAge.isZero()) {
+            throw new IllegalArgumentException("Max age must be positive");
+        }
+        this.memoryCap = memoryCap;
+        this.maxQueues = maxQueues;
+        this.maxPerUser = maxPerUser;
+        this.maxAgeNanos = maxAge.toNanos();
+        this.spillDirectory = spillDirectory != null ? spillDirectory : Path.of(System.getProperty("java.io.tmpdir"));
+        this.nextExpiry = System.nanoTime() + maxAgeNanos;
+    }
+
+    // Starts holding messages for userId, who just went offline.
+    public void open(int userId) {
+        open(userId, System.nanoTime());
+    }
+
+    void open(int userId, long nowNanos) {
+        List<Queue> evicted;
+        synchronized (opened) {
+            if (queues.get(userId) != null) {
+                return;
+            }
+            Queue q = new Queue(userId, nowNanos);
+            queues.put(userId, q);
+            opened.addLast(q);
+            openCount++;
+            evicted = evict(nowNanos);
+            if (opened.size() > 2 * Math.max(openCount, 16)) {
+                opened.removeIf(stale -> queues.get(stale.userId) != stale);
+            }
+        }
+        evicted.forEach(Queue::release);
+    }
+
+    // Forgets everyone offline for longer than maxAge; returns how many.
+    public int expire() {
+        return expire(System.nanoTime());
+    }
+
+    int expire(long nowNanos) {
+        List<Queue> evicted;
+        synchronized (opened) {
+            evicted = evict(nowNanos);
+        }
+        evicted.forEach(Queue::release);
+        return evicted.size();
+    }
+
+    // Oldest first, while there are too many queues or the oldest is too old. Caller holds opened
+    // and releases what comes back outside it.
+    private List<Queue> evict(long nowNanos) {
+        List<Queue> evicted = new ArrayList<>();
+        while (!opened.isEmpty()) {
+            Queue oldest = opened.peekFirst();
+            if (queues.get(oldest.userId) != oldest) {
+                opened.pollFirst();
+            } else if (openCount > maxQueues || nowNanos - oldest.openedNanos >= maxAgeNanos) {
+                opened.pollFirst();
+                queues.remove(oldest.userId);
+                openCount--;
+                evicted.add(oldest);
+            } else {
+                break;
+            }
+        }
+        Queue next = opened.peekFirst();
+        nextExpiry = (next != null ? next.openedNanos : nowNanos) + maxAgeNanos;
+        return evicted;
+    }
+
+    public boolean isOpen(int userId) {
+        return queues.get(userId) != null;
+    }
+
+    // NOT_HELD when userId has no queue, or is taking it back right now; FULL when the queue
+    // already holds maxPerUser messages, and the message was dropped.
+    public Offer offer(int userId, Message msg) {
+        long now = System.nanoTime();
+        if (now - nextExpiry >= 0) {
+            expire(now);
+        }
+        Queue q = queues.get(userId);
+        if (q == null) {
+            return Offer.NOT_HELD;
+        }
+        Offer result = q.offer(msg);
+        if (result == Offer.QUEUED && memoryBytes.get() > memoryCap) {
+            relieve();
+        }
+        return result;
+    }
+
+    // Spills the largest queues until everything held in memory is under half the cap. Sizes are
+    // taken once up front, since offers keep changing them while this runs.
+    private void relieve() {
+        synchronized (spilling) {
+            if (memoryBytes.get() <= memoryCap) {
+                return;
+            }
+            List<Held> held = new ArrayList<>();
+            queues.forEach(q -> held.add(new Held(q, q.memoryBytes())));
+            held.sort(Comparator.comparingLong(Held::bytes).reversed());
+            for (Held h : held) {
+                if (memoryBytes.get() <= memoryCap / 2) {
+                    break;
+                }
+                h.queue().spill();
+            }
+        }
+    }
+
+    public boolean remove(int userId, long messageId) {
+        Queue q = queues.get(userId);
+        return q != null && q.remove(messageId);
+    }
+
+    public boolean replace(int userId, Message msg) {
+        Queue q = queues.get(userId);
+        return q != null && q.replace(msg);
+    }
+
+    // Hands back everything held for userId, oldest first, and stops holding for them.
+    public List<Message> drain(int userId) {
+        Queue q;
+        synchronized (opened) {
+            q = queues.remove(userId);
+            if (q != null) {
+                openCount--;
+            }
+        }
+        return q != null ? q.drain() : List.of();
+    }
+
+    // Users currently held for.
+    public int queueCount() {
+        synchronized (opened) {
+            return openCount;
+        }
+    }
+
+    public int size(int userId) {
+        Queue q = queues.get(userId);
+        return q != null ? q.size() : 0;
+    }
+
+    public long memoryBytes() {
+        return memoryBytes.get();
+    }
+
+    // Messages refused because their queue was full.
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    public long diskBytes() {
+        long[] total = {0};
+        queues.forEach(q -> total[0] += q.diskBytes());
+        return total[0];
+    }
+
+    @Override
+    public void close() {
+        synchronized (opened) {
+            queues.forEach(Queue::release);
+            queues.clear();
+            opened.clear();
+            openCount = 0;
+        }
+    }
+}
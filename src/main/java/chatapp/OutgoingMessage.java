@@ -0,0 +1,33 @@
+package chatapp;
+
+import java.util.Collections;
+import java.util.List;
+
+// One entry of a ChatServer.sendBatch call.
+public class OutgoingMessage {
+    private final User sender;
+    private final List<String> recipientNames;
+    private final String content;
+
+    public OutgoingMessage(User sender, String recipientName, String content) {
+        this(sender, Collections.singletonList(recipientName), content);
+    }
+
+    public OutgoingMessage(User sender, List<String> recipientNames, String content) {
+        this.sender = sender;
+        this.recipientNames = recipientNames;
+        this.content = content;
+    }
+
+    public User getSender() {
+        return sender;
+    }
+
+    public List<String> getRecipientNames() {
+        return recipientNames;
+    }
+
+    public String getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,6 @@
+package chatapp;
+
+// Page-at-a-time counterpart of IterableByUser. A null cursor means the newest page.
+public interface PageableByUser {
+    HistoryPage pageWith(User userToSearchWith, HistoryCursor before, int limit);
+}
@@ -0,0 +1,58 @@
+package chatapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-sender token bucket. Each sender's bucket is one AtomicLong holding the time at which it
+// would be full again (the GCRA form of a token bucket): a send costing n tokens pushes that time
+// n refill intervals ahead and is admitted while it stays within burst intervals of now. So
+// admission is a read and a CAS, with no lock and no refill timer. Tokens are recipients, so one
+// message to fifty people draws as much as fifty one-to-one messages. A single send larger than
+// the burst is charged the whole burst instead of being refused forever.
+public class RateLimiter {
+
+    private final long intervalNanos;
+    private final int burst;
+    private final long burstNanos;
+    private final IdTable<AtomicLong> buckets = new IdTable<>();
+
+    public RateLimiter(double tokensPerSecond, int burst) {
+        if (!(tokensPerSecond > 0) || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        this.intervalNanos = Math.max(1, Math.round(1e9 / tokensPerSecond));
+        this.burst = burst;
+        this.burstNanos = intervalNanos * burst;
+    }
+
+    public boolean tryAcquire(int senderId, int cost) {
+        return tryAcquire(senderId, cost, System.nanoTime());
+    }
+
+    boolean tryAcquire(int senderId, int cost, long nowNanos) {
+        AtomicLong bucket = buckets.get(senderId);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(senderId, k -> new AtomicLong(nowNanos - burstNanos));
+        }
+        long charge = Math.min(Math.max(cost, 1), burst) * intervalNanos;
+        while (true) {
+            long fullAt = bucket.get();
+            long next = (fullAt - nowNanos < 0 ? nowNanos : fullAt) + charge;
+            if (next - nowNanos > burstNanos) {
+                return false;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Tokens the sender could spend right now.
+    public int available(int senderId) {
+        AtomicLong bucket = buckets.get(senderId);
+        if (bucket == null) {
+            return burst;
+        }
+        long owed = bucket.get() - System.nanoTime();
+        return owed <= 0 ? burst : (int) ((burstNanos - owed) / intervalNanos);
+    }
+}
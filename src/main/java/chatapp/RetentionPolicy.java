@@ -0,0 +1,70 @@
+package chatapp;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+// How much of a ChatHistory stays on the heap. Zero / null limits are disabled.
+// Messages past any limit are spilled, oldest first, to compressed segments in spillDirectory
+// shared by every history that spills there.
+// Separately, undoDepth caps how many of the user's own sent messages stay undoable and editable.
+public class RetentionPolicy {
+
+    public static final int DEFAULT_UNDO_DEPTH = 1000;
+
+    private static final RetentionPolicy UNBOUNDED = new RetentionPolicy(0, 0, null, null);
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final Duration maxAge;
+    private final Path spillDirectory;
+    private final int undoDepth;
+
+    public RetentionPolicy(int maxMessages, long maxBytes, Duration maxAge, Path spillDirectory) {
+        this(maxMessages, maxBytes, maxAge, spillDirectory, DEFAULT_UNDO_DEPTH);
+    }
+
+    // undoDepth <= 0 keeps every sent message undoable.
+    public RetentionPolicy(int maxMessages, long maxBytes, Duration maxAge, Path spillDirectory, int undoDepth) {
+        this.undoDepth = undoDepth;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        this.spillDirectory = spillDirectory != null ? spillDirectory : Path.of(System.getProperty("java.io.tmpdir"));
+    }
+
+    public static RetentionPolicy unbounded() {
+        return UNBOUNDED;
+    }
+
+    public static RetentionPolicy maxMessages(int maxMessages) {
+        return new RetentionPolicy(maxMessages, 0, null, null);
+    }
+
+    public RetentionPolicy withUndoDepth(int undoDepth) {
+        return new RetentionPolicy(maxMessages, maxBytes, maxAge, spillDirectory, undoDepth);
+    }
+
+    public int getUndoDepth() {
+        return undoDepth;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Duration getMaxAge() {
+        return maxAge;
+    }
+
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public boolean isBounded() {
+        return maxMessages > 0 || maxBytes > 0 || maxAge != null;
+    }
+}
@@ -0,0 +1,287 @@
+package chatapp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SequencedMap;
+
+// Undo window and edit history for the messages one user sent, oldest first.
+// Every revision is a record in one shared byte arena: the first holds the full UTF-8 content,
+// each later one only its change against the previous revision (common prefix and suffix
+// lengths plus the new middle). Past maxDepth the oldest message leaves the window, so the
+// store never holds more than maxDepth messages' revisions. Callers synchronize.
+//
+// Record layout: [varint previous offset + 1, 0 for the first revision]
+//                [zigzag varlong millis from the message timestamp to the revision]
+//                [varint prefix][varint suffix][varint middle length][middle bytes]
+public class RevisionStore {
+
+    private static final int MIN_COMPACT = 4096;
+
+    private static final class Entry {
+        Message current;
+        int head;
+        int revisions;
+        int bytes;
+
+        Entry(Message current) {
+            this.current = current;
+        }
+    }
+
+    private final int maxDepth;
+    private final SequencedMap<Long, Entry> entries = new LinkedHashMap<>();
+    private ByteBuffer arena = ByteBuffer.allocate(1024);
+    private int liveBytes = 0;
+
+    // maxDepth <= 0 keeps every message until it is undone or removed.
+    public RevisionStore(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public void record(Message msg) {
+        Entry entry = new Entry(msg);
+        byte[] content = msg.getContent().getBytes(StandardCharsets.UTF_8);
+        append(entry, 0, 0, content, 0, content.length);
+        entries.put(msg.getId(), entry);
+        if (maxDepth > 0 && entries.size() > maxDepth) {
+            drop(entries.pollFirstEntry().getValue());
+        }
+    }
+
+    // Returns the edited message, or null when the id is not in the window.
+    public Message edit(long id, String content, Instant editedAt) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        byte[] before = entry.current.getContent().getBytes(StandardCharsets.UTF_8);
+        byte[] after = content.getBytes(StandardCharsets.UTF_8);
+        int max = Math.min(before.length, after.length);
+        int prefix = 0;
+        while (prefix < max && before[prefix] == after[prefix]) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix && before[before.length - 1 - suffix] == after[after.length - 1 - suffix]) {
+            suffix++;
+        }
+        long millis = editedAt.toEpochMilli() - entry.current.getTimestamp().toEpochMilli();
+        append(entry, millis, prefix, after, suffix, after.length - prefix - suffix);
+        entry.current = entry.current.withContent(content);
+        return entry.current;
+    }
+
+    // Drops the newest edit of a message; null when it has none left to drop.
+    public Message revert(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null || entry.revisions < 2) {
+            return null;
+        }
+        List<Integer> chain = chain(entry);
+        int dropped = chain.getLast();
+        chain.removeLast();
+        int size = recordSize(dropped);
+        entry.head = chain.getLast();
+        entry.revisions--;
+        entry.bytes -= size;
+        liveBytes -= size;
+        entry.current = entry.current.withContent(new String(contentOf(chain), StandardCharsets.UTF_8));
+        compactIfSparse();
+        return entry.current;
+    }
+
+    public Message last() {
+        Map.Entry<Long, Entry> last = entries.lastEntry();
+        return last != null ? last.getValue().current : null;
+    }
+
+    public Message first() {
+        Map.Entry<Long, Entry> first = entries.firstEntry();
+        return first != null ? first.getValue().current : null;
+    }
+
+    public Message get(long id) {
+        Entry entry = entries.get(id);
+        return entry != null ? entry.current : null;
+    }
+
+    // Pops the newest message off the window and returns a memento of its current revision.
+    public MessageMemento removeLast() {
+        Map.Entry<Long, Entry> last = entries.pollLastEntry();
+        if (last == null) {
+            return null;
+        }
+        Entry entry = last.getValue();
+        drop(entry);
+        return new MessageMemento(entry.current.getContent(), entry.current.getTimestamp());
+    }
+
+    public boolean remove(long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        drop(entry);
+        return true;
+    }
+
+    // Every revision of a message, oldest first, each stamped with when it was made.
+    public List<MessageMemento> revisions(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+        List<MessageMemento> out = new ArrayList<>(entry.revisions);
+        byte[] content = new byte[0];
+        long base = entry.current.getTimestamp().toEpochMilli();
+        for (int offset : chain(entry)) {
+            ByteBuffer in = arena.duplicate().position(offset);
+            Varint.getInt(in);
+            long millis = Varint.unZigZag(Varint.getLong(in));
+            content = apply(content, in);
+            Instant at = millis == 0 ? entry.current.getTimestamp() : Instant.ofEpochMilli(base + millis);
+            out.add(new MessageMemento(new String(content, StandardCharsets.UTF_8), at));
+        }
+        return out;
+    }
+
+    public int revisionCount(long id) {
+        Entry entry = entries.get(id);
+        return entry != null ? entry.revisions : 0;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public int arenaBytes() {
+        return arena.position();
+    }
+
+    private void append(Entry entry, long millis, int prefix, byte[] content, int suffix, int middle) {
+        // Upper bound; making room may compact the arena and move this entry's head.
+        ensure(5 + Varint.sizeOf(Varint.zigZag(millis)) + 15 + middle);
+        int offset = arena.position();
+        Varint.putInt(arena, entry.revisions == 0 ? 0 : entry.head + 1);
+        Varint.putLong(arena, Varint.zigZag(millis));
+        Varint.putInt(arena, prefix);
+        Varint.putInt(arena, suffix);
+        Varint.putInt(arena, middle);
+        arena.put(content, prefix, middle);
+        int size = arena.position() - offset;
+        entry.head = offset;
+        entry.revisions++;
+        entry.bytes += size;
+        liveBytes += size;
+    }
+
+    private void drop(Entry entry) {
+        liveBytes -= entry.bytes;
+        compactIfSparse();
+    }
+
+    // Offsets of a message's records, oldest first.
+    private List<Integer> chain(Entry entry) {
+        List<Integer> offsets = new ArrayList<>(entry.revisions);
+        int offset = entry.head;
+        for (int i = 0; i < entry.revisions; i++) {
+            offsets.add(offset);
+            offset = Varint.getInt(arena.duplicate().position(offset)) - 1;
+        }
+        Collections.reverse(offsets);
+        return offsets;
+    }
+
+    private byte[] contentOf(List<Integer> chain) {
+        byte[] content = new byte[0];
+        for (int offset : chain) {
+            ByteBuffer in = arena.duplicate().position(offset);
+            Varint.getInt(in);
+            Varint.getLong(in);
+            content = apply(content, in);
+        }
+        return content;
+    }
+
+    private static byte[] apply(byte[] before, ByteBuffer delta) {
+        int prefix = Varint.getInt(delta);
+        int suffix = Varint.getInt(delta);
+        int middle = Varint.getInt(delta);
+        byte[] after = new byte[prefix + middle + suffix];
+        System.arraycopy(before, 0, after, 0, prefix);
+        delta.get(after, prefix, middle);
+        System.arraycopy(before, before.length - suffix, after, prefix + middle, suffix);
+        return after;
+    }
+
+    private int recordSize(int offset) {
+        ByteBuffer in = arena.duplicate().position(offset);
+        Varint.getInt(in);
+        Varint.getLong(in);
+        Varint.getInt(in);
+        Varint.getInt(in);
+        int middle = Varint.getInt(in);
+        return in.position() + middle - offset;
+    }
+
+    private void ensure(int size) {
+        if (arena.remaining() < size) {
+            int dead = arena.position() - liveBytes;
+            if (dead >= MIN_COMPACT && dead > liveBytes) {
+                compact();
+            }
+        }
+        if (arena.remaining() < size) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(arena.capacity() * 2, arena.position() + size));
+            bigger.put(arena.flip());
+            arena = bigger;
+        }
+    }
+
+    private void compactIfSparse() {
+        int dead = arena.position() - liveBytes;
+        if (dead >= MIN_COMPACT && dead > liveBytes) {
+            compact();
+        }
+    }
+
+    // Copies every live chain into a fresh arena, rewriting the back links.
+    private void compact() {
+        ByteBuffer old = arena;
+        ByteBuffer fresh = ByteBuffer.allocate(Math.max(1024, Integer.highestOneBit(Math.max(1, liveBytes)) * 2));
+        for (Entry entry : entries.values()) {
+            List<Integer> chain = chain(entry);
+            int previous = -1;
+            int start = fresh.position();
+            for (int offset : chain) {
+                ByteBuffer in = old.duplicate().position(offset);
+                Varint.getInt(in);
+                int bodyStart = in.position();
+                int bodyLength = recordSize(offset) - (bodyStart - offset);
+                if (fresh.remaining() < Varint.sizeOf(previous + 1L) + bodyLength) {
+                    ByteBuffer bigger = ByteBuffer.allocate(fresh.capacity() * 2 + bodyLength);
+                    bigger.put(fresh.flip());
+                    fresh = bigger;
+                }
+                int newOffset = fresh.position();
+                Varint.putInt(fresh, previous + 1);
+                fresh.put(old.slice(bodyStart, bodyLength));
+                previous = newOffset;
+            }
+            entry.head = previous;
+            entry.bytes = fresh.position() - start;
+        }
+        arena = fresh;
+        liveBytes = fresh.position();
+    }
+}
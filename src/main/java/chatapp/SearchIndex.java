@@ -0,0 +1,407 @@
+package chatapp;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// In-process inverted index over message content. Each message is one document, numbered in
+// the order it was indexed. Postings are delta-coded varints with the term's positions in the
+// document, plus a skip entry every SKIP_INTERVAL documents so conjunctions can leapfrog.
+// Participants (sender, direct recipients) and rooms get postings of their own, indexed by id.
+// Removed documents are tombstoned and dropped when the index rebuilds itself. Documents hold
+// their message weakly, so the index never keeps a message alive: once retention has spilled it
+// from every history (or every holder is gone) the collector clears it and its entry is removed.
+public class SearchIndex {
+
+    private static final int SKIP_INTERVAL = 128;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int MIN_REBUILD = 1024;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private static final Comparator<Message> BY_TIME =
+            Comparator.comparing(Message::getTimestamp).thenComparingLong(Message::getId);
+
+    private static final class Postings {
+        ByteBuffer data = ByteBuffer.allocate(8);
+        int docs = 0;
+        int lastDoc = -1;
+        // skipDocs[k] is the document just before skip point k, skipOffsets[k] where the next entry starts.
+        int[] skipDocs = NO_POSITIONS;
+        int[] skipOffsets = NO_POSITIONS;
+        int skips = 0;
+
+        void add(int doc, int[] positions, int count) {
+            if (docs > 0 && docs % SKIP_INTERVAL == 0) {
+                if (skips == skipDocs.length) {
+                    skipDocs = Arrays.copyOf(skipDocs, Math.max(4, skips * 2));
+                    skipOffsets = Arrays.copyOf(skipOffsets, Math.max(4, skips * 2));
+                }
+                skipDocs[skips] = lastDoc;
+                skipOffsets[skips] = data.position();
+                skips++;
+            }
+            int positionBytes = 0;
+            for (int i = 0, prev = 0; i < count; prev = positions[i++]) {
+                positionBytes += Varint.sizeOf(positions[i] - prev);
+            }
+            ensure(10 + positionBytes);
+            Varint.putInt(data, doc - lastDoc);
+            Varint.putInt(data, positionBytes);
+            for (int i = 0, prev = 0; i < count; prev = positions[i++]) {
+                Varint.putInt(data, positions[i] - prev);
+            }
+            lastDoc = doc;
+            docs++;
+        }
+
+        private void ensure(int n) {
+            if (data.remaining() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + n));
+                bigger.put(data.flip());
+                data = bigger;
+            }
+        }
+    }
+
+    // Forward-only reader over one postings list.
+    private static final class Cursor {
+        final Postings postings;
+        final ByteBuffer in;
+        final int end;
+        int doc = -1;
+        int positionStart;
+        int positionBytes;
+        int skip = 0;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+            this.in = postings.data.duplicate().position(0);
+            this.end = postings.data.position();
+        }
+
+        int next() {
+            if (in.position() >= end) {
+                return doc = Integer.MAX_VALUE;
+            }
+            doc += Varint.getInt(in);
+            positionBytes = Varint.getInt(in);
+            positionStart = in.position();
+            in.position(positionStart + positionBytes);
+            return doc;
+        }
+
+        int advance(int target) {
+            while (skip < postings.skips && postings.skipDocs[skip] < target) {
+                if (postings.skipDocs[skip] > doc) {
+                    doc = postings.skipDocs[skip];
+                    in.position(postings.skipOffsets[skip]);
+                }
+                skip++;
+            }
+            while (doc < target) {
+                next();
+            }
+            return doc;
+        }
+
+        int[] positions() {
+            ByteBuffer p = in.duplicate().position(positionStart);
+            int[] out = new int[positionBytes];
+            int n = 0;
+            int pos = 0;
+            while (p.position() < positionStart + positionBytes) {
+                pos += Varint.getInt(p);
+                out[n++] = pos;
+            }
+            return Arrays.copyOf(out, n);
+        }
+    }
+
+    private static final class Doc extends WeakReference<Message> {
+        final int number;
+        final long messageId;
+
+        Doc(Message msg, int number, ReferenceQueue<Message> queue) {
+            super(msg, queue);
+            this.number = number;
+            this.messageId = msg.getId();
+        }
+    }
+
+    private final ReferenceQueue<Message> collected = new ReferenceQueue<>();
+    private Doc[][] docs = new Doc[4][];
+    private int docCount = 0;
+    private BitSet deleted = new BitSet();
+    private int deletedCount = 0;
+    private LongIntMap docOf = new LongIntMap();
+    private Map<String, Postings> terms = new HashMap<>();
+    private Postings[] participants = new Postings[16];
+    private Postings[] rooms = new Postings[16];
+
+    public synchronized void add(Message msg) {
+        expunge();
+        insert(msg);
+    }
+
+    private void insert(Message msg) {
+        if (docOf.get(msg.getId(), -1) >= 0) {
+            return;
+        }
+        int doc = docCount++;
+        int chunk = doc >>> CHUNK_SHIFT;
+        if (chunk == docs.length) {
+            docs = Arrays.copyOf(docs, docs.length * 2);
+        }
+        if (docs[chunk] == null) {
+            docs[chunk] = new Doc[CHUNK_SIZE];
+        }
+        docs[chunk][doc & (CHUNK_SIZE - 1)] = new Doc(msg, doc, collected);
+        docOf.put(msg.getId(), doc);
+
+        Map<String, int[]> positions = new LinkedHashMap<>();
+        List<String> tokens = tokenize(msg.getContent());
+        for (int i = 0; i < tokens.size(); i++) {
+            int[] list = positions.computeIfAbsent(tokens.get(i), t -> new int[] {0});
+            if (list[0] + 1 == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+                positions.put(tokens.get(i), list);
+            }
+            list[++list[0]] = i;
+        }
+        for (Map.Entry<String, int[]> e : positions.entrySet()) {
+            int[] list = e.getValue();
+            terms.computeIfAbsent(e.getKey(), t -> new Postings()).add(doc, Arrays.copyOfRange(list, 1, list[0] + 1), list[0]);
+        }
+
+        participants = post(participants, msg.getSenderId(), doc);
+        if (msg.isRoomMessage()) {
+            rooms = post(rooms, msg.getRoomId(), doc);
+        } else {
+            for (int i = 0; i < msg.getRecipientCount(); i++) {
+                participants = post(participants, msg.getRecipientId(i), doc);
+            }
+        }
+    }
+
+    public synchronized void addAll(List<Message> batch) {
+        for (Message msg : batch) {
+            add(msg);
+        }
+    }
+
+    public synchronized boolean remove(Message msg) {
+        expunge();
+        int doc = docOf.get(msg.getId(), -1);
+        if (doc < 0) {
+            return false;
+        }
+        tombstone(doc, msg.getId());
+        return true;
+    }
+
+    private void tombstone(int doc, long messageId) {
+        docOf.remove(messageId);
+        docs[doc >>> CHUNK_SHIFT][doc & (CHUNK_SIZE - 1)] = null;
+        deleted.set(doc);
+        deletedCount++;
+        if (deletedCount >= MIN_REBUILD && deletedCount > docCount - deletedCount) {
+            rebuild();
+        }
+    }
+
+    // Drops entries whose message has been collected. A Doc no longer in its slot was removed
+    // or renumbered by a rebuild already.
+    private void expunge() {
+        Reference<? extends Message> ref;
+        while ((ref = collected.poll()) != null) {
+            Doc cleared = (Doc) ref;
+            Doc[] chunk = cleared.number >>> CHUNK_SHIFT < docs.length ? docs[cleared.number >>> CHUNK_SHIFT] : null;
+            if (chunk != null && chunk[cleared.number & (CHUNK_SIZE - 1)] == cleared) {
+                tombstone(cleared.number, cleared.messageId);
+            }
+        }
+    }
+
+    // An edit re-indexes the message as a new document; results are ordered by timestamp anyway.
+    public synchronized void replace(Message msg) {
+        if (remove(msg)) {
+            add(msg);
+        }
+    }
+
+    public synchronized int size() {
+        expunge();
+        return docCount - deletedCount;
+    }
+
+    public synchronized int termCount() {
+        return terms.size();
+    }
+
+    public List<Message> search(SearchQuery query) {
+        return search(query, m -> true);
+    }
+
+    public synchronized List<Message> search(SearchQuery query, Predicate<Message> accept) {
+        expunge();
+        List<String> queryTerms = query.getTerms();
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(queryTerms));
+        List<Cursor> cursors = new ArrayList<>(distinct.size() + 1);
+        for (String term : distinct) {
+            Postings p = terms.get(term);
+            if (p == null) {
+                return List.of();
+            }
+            cursors.add(new Cursor(p));
+        }
+        for (Postings[] table : List.of(participants, rooms)) {
+            int id = table == participants ? query.getParticipantId() : query.getRoomId();
+            if (id >= 0) {
+                Postings p = id < table.length ? table[id] : null;
+                if (p == null) {
+                    return List.of();
+                }
+                cursors.add(new Cursor(p));
+            }
+        }
+
+        List<Message> out = new ArrayList<>();
+        if (cursors.isEmpty()) {
+            for (int doc = 0; doc < docCount; doc++) {
+                collect(doc, query, accept, out);
+            }
+        } else {
+            // Rarest list leads; every other cursor leapfrogs to its current document.
+            List<Cursor> ordered = new ArrayList<>(cursors);
+            ordered.sort(Comparator.comparingInt(c -> c.postings.docs));
+            Cursor lead = ordered.getFirst();
+            int doc = lead.next();
+            while (doc != Integer.MAX_VALUE) {
+                int candidate = doc;
+                for (int i = 1; i < ordered.size() && candidate == doc; i++) {
+                    candidate = ordered.get(i).advance(doc);
+                }
+                if (candidate != doc) {
+                    doc = lead.advance(candidate);
+                    continue;
+                }
+                if (!query.isPhrase() || queryTerms.isEmpty() || phraseAt(queryTerms, distinct, cursors)) {
+                    collect(doc, query, accept, out);
+                }
+                doc = lead.next();
+            }
+        }
+
+        // Documents are numbered in delivery order, so this is close to sorted already and cheap.
+        return newest(out, query.getLimit());
+    }
+
+    // Sorts matches oldest first and keeps the newest limit of them (all, for limit <= 0).
+    static List<Message> newest(List<Message> out, int limit) {
+        out.sort(BY_TIME);
+        if (limit > 0 && out.size() > limit) {
+            return List.copyOf(out.subList(out.size() - limit, out.size()));
+        }
+        return out;
+    }
+
+    // Terms appear in query order at consecutive positions.
+    private static boolean phraseAt(List<String> phrase, List<String> distinct, List<Cursor> cursors) {
+        int[][] positions = new int[phrase.size()][];
+        for (int i = 0; i < phrase.size(); i++) {
+            positions[i] = cursors.get(distinct.indexOf(phrase.get(i))).positions();
+        }
+        for (int start : positions[0]) {
+            boolean all = true;
+            for (int i = 1; i < positions.length && all; i++) {
+                all = Arrays.binarySearch(positions[i], start + i) >= 0;
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void collect(int doc, SearchQuery query, Predicate<Message> accept, List<Message> out) {
+        if (deleted.get(doc)) {
+            return;
+        }
+        Message msg = docs[doc >>> CHUNK_SHIFT][doc & (CHUNK_SIZE - 1)].get();
+        if (msg != null && query.matchesTime(msg.getTimestamp()) && accept.test(msg)) {
+            out.add(msg);
+        }
+    }
+
+    // Returns the table, grown if the id did not fit.
+    private static Postings[] post(Postings[] table, int id, int doc) {
+        if (id >= table.length) {
+            table = Arrays.copyOf(table, Math.max(id + 1, table.length * 2));
+        }
+        Postings p = table[id];
+        if (p == null) {
+            p = new Postings();
+            table[id] = p;
+        }
+        // A name listed twice on one message is posted once.
+        if (p.lastDoc != doc) {
+            p.add(doc, NO_POSITIONS, 0);
+        }
+        return table;
+    }
+
+    private void rebuild() {
+        Doc[][] oldDocs = docs;
+        BitSet oldDeleted = deleted;
+        int oldCount = docCount;
+        docs = new Doc[4][];
+        docCount = 0;
+        deleted = new BitSet();
+        deletedCount = 0;
+        docOf = new LongIntMap(oldCount - oldDeleted.cardinality());
+        terms = new HashMap<>();
+        participants = new Postings[participants.length];
+        rooms = new Postings[rooms.length];
+        for (int doc = oldDeleted.nextClearBit(0); doc < oldCount; doc = oldDeleted.nextClearBit(doc + 1)) {
+            Message msg = oldDocs[doc >>> CHUNK_SHIFT][doc & (CHUNK_SIZE - 1)].get();
+            if (msg != null) {
+                insert(msg);
+            }
+        }
+    }
+
+    // Lower-cased runs of letters and digits, cut at MAX_TERM_LENGTH characters.
+    public static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            if (Character.isLetterOrDigit(cp)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(Character.toLowerCase(cp));
+                }
+            } else if (!term.isEmpty()) {
+                out.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        if (!term.isEmpty()) {
+            out.add(term.toString());
+        }
+        return out;
+    }
+}
@@ -7,13 +7,13 @@ import java.util.NoSuchElementException;
 public class SearchMessagesByUser implements Iterator<Message> {
 
     private final List<Message> allHistory;
-    private final String otherUserName;
+    private final int otherUserId;
     private int currentIndex = 0;
     private Message nextMatch = null;
 
     public SearchMessagesByUser(List<Message> allHistory, String otherUserName) {
         this.allHistory = allHistory;
-        this.otherUserName = otherUserName;
+        this.otherUserId = UserDictionary.GLOBAL.idOf(otherUserName);
         advanceToNextMatch();
     }
 
@@ -22,8 +22,7 @@ public class SearchMessagesByUser implements Iterator<Message> {
 
         while (currentIndex < allHistory.size()) {
             Message candidate = allHistory.get(currentIndex);
-            boolean involvesOtherUser = candidate.getSender().equals(otherUserName) || candidate.getRecipients().contains(otherUserName);
-            if (involvesOtherUser) {
+            if (candidate.involves(otherUserId)) {
                 nextMatch = candidate;
                 break;
             }
@@ -0,0 +1,114 @@
+package chatapp;
+
+import java.time.Instant;
+import java.util.List;
+
+// Immutable query for SearchIndex. All terms must match (or, for a phrase, appear consecutively);
+// participant and time range narrow it further. Results come back oldest first; a limit keeps
+// the newest matches.
+public class SearchQuery {
+
+    private final List<String> terms;
+    private final boolean phrase;
+    private final int participantId;
+    private final int roomId;
+    private final Instant from;
+    private final Instant to;
+    private final int limit;
+
+    private SearchQuery(List<String> terms, boolean phrase, int participantId, int roomId, Instant from, Instant to, int limit) {
+        this.terms = terms;
+        this.phrase = phrase;
+        this.participantId = participantId;
+        this.roomId = roomId;
+        this.from = from;
+        this.to = to;
+        this.limit = limit;
+    }
+
+    // Text without a single letter or digit (say "!!!") would match everything, so it is rejected;
+    // use all() for that.
+    public static SearchQuery terms(String text) {
+        return new SearchQuery(requireTerms(text), false, -1, -1, null, null, 0);
+    }
+
+    public static SearchQuery phrase(String text) {
+        return new SearchQuery(requireTerms(text), true, -1, -1, null, null, 0);
+    }
+
+    // Matches every message; useful with a participant or time range alone.
+    public static SearchQuery all() {
+        return new SearchQuery(List.of(), false, -1, -1, null, null, 0);
+    }
+
+    // Sender or direct recipient. Room posts count for their sender; inRoom selects them by room.
+    public SearchQuery withParticipant(String name) {
+        return new SearchQuery(terms, phrase, UserDictionary.GLOBAL.idOf(name), roomId, from, to, limit);
+    }
+
+    public SearchQuery inRoom(String room) {
+        return new SearchQuery(terms, phrase, participantId, ChatRoom.idOf(room), from, to, limit);
+    }
+
+    // Inclusive from, exclusive to; either may be null for an open end.
+    public SearchQuery between(Instant from, Instant to) {
+        return new SearchQuery(terms, phrase, participantId, roomId, from, to, limit);
+    }
+
+    public SearchQuery limit(int limit) {
+        return new SearchQuery(terms, phrase, participantId, roomId, from, to, limit);
+    }
+
+    public List<String> getTerms() {
+        return terms;
+    }
+
+    public boolean isPhrase() {
+        return phrase;
+    }
+
+    public int getParticipantId() {
+        return participantId;
+    }
+
+    // -1 unless narrowed to one room.
+    public int getRoomId() {
+        return roomId;
+    }
+
+    public Instant getFrom() {
+        return from;
+    }
+
+    public Instant getTo() {
+        return to;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    // Everything but the terms: participant, room and time range.
+    boolean matchesFilters(Message msg) {
+        if (roomId >= 0 && msg.getRoomId() != roomId) {
+            return false;
+        }
+        if (participantId >= 0 && msg.getSenderId() != participantId
+                && (msg.isRoomMessage() || !msg.involves(participantId))) {
+            return false;
+        }
+        return matchesTime(msg.getTimestamp());
+    }
+
+    boolean matchesTime(Instant ts) {
+        return (from == null || !ts.isBefore(from)) && (to == null || ts.isBefore(to));
+    }
+
+    private static List<String> requireTerms(String text) {
+        List<String> terms = SearchIndex.tokenize(text);
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to search for in \"" + text + "\"");
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,70 @@
+package chatapp;
+
+import java.util.List;
+
+// One unit of work one shard hands another: messages to deliver to, retract from or replace
+// at the receiving shard's own users, or blocks to record or lift on the blocker's home shard.
+public class ShardEnvelope {
+
+    public static final byte DELIVER = 1;
+    public static final byte RETRACT = 2;
+    public static final byte REPLACE = 3;
+    public static final byte BLOCK = 4;
+    public static final byte UNBLOCK = 5;
+
+    private final byte kind;
+    private final List<Message> messages;
+    private final String blockerName;
+    private final List<String> blockeeNames;
+
+    private ShardEnvelope(byte kind, List<Message> messages, String blockerName, List<String> blockeeNames) {
+        this.kind = kind;
+        this.messages = messages;
+        this.blockerName = blockerName;
+        this.blockeeNames = blockeeNames;
+    }
+
+    public static ShardEnvelope deliver(List<Message> messages) {
+        return new ShardEnvelope(DELIVER, List.copyOf(messages), null, null);
+    }
+
+    public static ShardEnvelope retract(Message msg) {
+        return new ShardEnvelope(RETRACT, List.of(msg), null, null);
+    }
+
+    public static ShardEnvelope replace(Message msg) {
+        return new ShardEnvelope(REPLACE, List.of(msg), null, null);
+    }
+
+    public static ShardEnvelope block(String blockerName, List<String> blockeeNames) {
+        return new ShardEnvelope(BLOCK, List.of(), blockerName, List.copyOf(blockeeNames));
+    }
+
+    public static ShardEnvelope unblock(String blockerName, List<String> blockeeNames) {
+        return new ShardEnvelope(UNBLOCK, List.of(), blockerName, List.copyOf(blockeeNames));
+    }
+
+    // For transports decoding a message-carrying envelope off the wire.
+    static ShardEnvelope of(byte kind, List<Message> messages) {
+        if (kind < DELIVER || kind > REPLACE) {
+            throw new IllegalArgumentException("Not a message envelope kind: " + kind);
+        }
+        return new ShardEnvelope(kind, messages, null, null);
+    }
+
+    public byte getKind() {
+        return kind;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public String getBlockerName() {
+        return blockerName;
+    }
+
+    public List<String> getBlockeeNames() {
+        return blockeeNames;
+    }
+}
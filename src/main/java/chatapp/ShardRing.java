@@ -0,0 +1,99 @@
+package chatapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Consistent hashing of user names onto shards 0..shardCount-1. Each shard owns
+// virtualNodes points on a 64-bit ring and a name belongs to the first point at or after
+// its hash, so growing the cluster by one shard only moves about 1/(n+1) of the users.
+// Immutable apart from a per-user-id cache of the answer.
+public class ShardRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int shardCount;
+    private final long[] points;
+    private final int[] owners;
+    // User id -> shard + 1; zero means not computed yet. Racy reads only ever miss.
+    private volatile int[] byId = new int[0];
+
+    public ShardRing(int shardCount) {
+        this(shardCount, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardRing(int shardCount, int virtualNodes) {
+        if (shardCount < 1 || virtualNodes < 1) {
+            throw new IllegalArgumentException("Need at least one shard and one virtual node");
+        }
+        this.shardCount = shardCount;
+        long[] packed = new long[shardCount * virtualNodes];
+        long[] hashes = new long[packed.length];
+        for (int shard = 0, i = 0; shard < shardCount; shard++) {
+            for (int v = 0; v < virtualNodes; v++, i++) {
+                hashes[i] = hash("shard-" + shard + "#" + v);
+            }
+        }
+        // Sort point indexes by hash; ties (vanishingly rare) go to the lower index.
+        Integer[] order = new Integer[packed.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> hashes[a] != hashes[b] ? Long.compareUnsigned(hashes[a], hashes[b]) : Integer.compare(a, b));
+        points = new long[order.length];
+        owners = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    public int shardOf(String name) {
+        long h = hash(name);
+        int lo = 0;
+        int hi = points.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(points[mid], h) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return owners[lo == points.length ? 0 : lo];
+    }
+
+    public int shardOf(int userId) {
+        int[] cache = byId;
+        if (userId < cache.length && cache[userId] != 0) {
+            return cache[userId] - 1;
+        }
+        int shard = shardOf(UserDictionary.GLOBAL.nameOf(userId));
+        synchronized (this) {
+            cache = byId;
+            if (userId >= cache.length) {
+                cache = Arrays.copyOf(cache, Math.max(userId + 1, cache.length * 2));
+            }
+            cache[userId] = shard + 1;
+            byId = cache;
+        }
+        return shard;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, then the MurmurHash3 finalizer to spread nearby names.
+    static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,20 @@
+package chatapp;
+
+import java.util.concurrent.TimeUnit;
+
+// How the shards of a ChatCluster reach each other. Envelopes from one shard to another must
+// arrive in the order they were sent, so a retraction never overtakes its delivery.
+public interface ShardTransport extends AutoCloseable {
+
+    // Makes server reachable as shardId; what other shards send it goes to server.receiveFromShard.
+    void bind(int shardId, ChatServer server);
+
+    // May return before the receiving shard has applied the envelope.
+    void send(int fromShard, int toShard, ShardEnvelope envelope);
+
+    // Waits until every envelope sent so far has been applied; false on timeout.
+    boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException;
+
+    @Override
+    void close();
+}
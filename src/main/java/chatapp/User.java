@@ -1,54 +1,158 @@
 package chatapp;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 
-public class User implements IterableByUser {
+public class User implements IterableByUser, PageableByUser {
 
     private final String name;
+    private final int id;
     private final ChatServer server;
-    private final ChatHistory history =  new ChatHistory();
+    private final ChatHistory history;
 
     public User(String name, ChatServer server) {
+        this(name, server, RetentionPolicy.unbounded());
+    }
+
+    public User(String name, ChatServer server, RetentionPolicy retention) {
         this.name = name;
+        this.id = UserDictionary.GLOBAL.idOf(name);
         this.server = server;
+        this.history = new ChatHistory(retention);
     }
 
     public String getName() {
         return name;
     }
 
+    public int getId() {
+        return id;
+    }
+
     public ChatHistory getHistory() {
         return history;
     }
 
-    public void sendMessage(String recipient, String content) {
-        server.sendMessage(this, Collections.singletonList(recipient), content);
+    public CompletableFuture<Message> sendMessage(String recipient, String content) {
+        return server.sendMessage(this, Collections.singletonList(recipient), content);
+    }
+
+    public CompletableFuture<Message> sendMessage(List<String> recipients, String content) {
+        return server.sendMessage(this, recipients, content);
+    }
+
+    // Safe to retry: repeats with the same key return the first send instead of sending again.
+    public CompletableFuture<Message> sendMessage(String recipient, String content, String idempotencyKey) {
+        return server.sendMessage(this, Collections.singletonList(recipient), content, idempotencyKey);
+    }
+
+    public CompletableFuture<Message> sendMessage(List<String> recipients, String content, String idempotencyKey) {
+        return server.sendMessage(this, recipients, content, idempotencyKey);
     }
 
-    public void sendMessage(List<String> recipients, String content) {
-        server.sendMessage(this, recipients, content);
+    // Sends each line to the same recipients as one batch; the lines arrive in order.
+    public CompletableFuture<List<Message>> sendBatch(List<String> recipients, List<String> contents) {
+        List<OutgoingMessage> batch = new ArrayList<>(contents.size());
+        for (String content : contents) {
+            batch.add(new OutgoingMessage(this, recipients, content));
+        }
+        return server.sendBatch(batch);
+    }
+
+    public void joinRoom(String roomId) {
+        server.joinRoom(roomId, this);
+    }
+
+    public void leaveRoom(String roomId) {
+        server.leaveRoom(roomId, this);
+    }
+
+    public CompletableFuture<Message> sendToRoom(String roomId, String content) {
+        return server.sendToRoom(this, roomId, content);
     }
 
     public void receiveMessageInternal(Message msg) {
         history.addHistory(msg);
     }
 
+    public void receiveMessagesInternal(List<Message> batch) {
+        history.addHistory(batch);
+    }
+
     public void undoLastMessage() {
         server.undoLastMessage(this);
     }
 
+    public int undoLastMessages(int count) {
+        return server.undoLastMessages(this, count);
+    }
+
+    public Message editMessage(long messageId, String newContent) {
+        return server.editMessage(this, messageId, newContent);
+    }
+
+    public List<Message> search(String text) {
+        return server.search(this, SearchQuery.terms(text));
+    }
+
     public void blockUser(String blockeeName){
         server.blockUser(this.name, blockeeName);
     }
 
+    public void blockUsers(List<String> blockeeNames) {
+        server.blockUsers(this.name, blockeeNames);
+    }
+
+    public void unblockUser(String blockeeName) {
+        server.unblockUser(this.name, blockeeName);
+    }
+
+    public void unblockUsers(List<String> blockeeNames) {
+        server.unblockUsers(this.name, blockeeNames);
+    }
+
     public void printHistory(){
         server.printUserHistory(this);
     }
 
+    public HistoryPage latestMessages(int limit) {
+        return history.latest(limit);
+    }
+
+    @Override
+    public HistoryPage pageWith(User userToSearchWith, HistoryCursor before, int limit) {
+        return history.pageWith(userToSearchWith, before, limit);
+    }
+
     @Override
     public Iterator<Message> iterator(User userToUserWith){
-        return history.iterator(userToUserWith);
+        ChatMetrics metrics = server.getMetrics();
+        if (!metrics.isEnabled()) {
+            return history.iterator(userToUserWith);
+        }
+        // Timed from creation until the caller sees the end, so it includes the caller's own work.
+        long start = metrics.startTimer();
+        Iterator<Message> it = history.iterator(userToUserWith);
+        return new Iterator<>() {
+            private boolean recorded;
+
+            @Override
+            public boolean hasNext() {
+                boolean more = it.hasNext();
+                if (!more && !recorded) {
+                    recorded = true;
+                    metrics.historyIterated(start);
+                }
+                return more;
+            }
+
+            @Override
+            public Message next() {
+                return it.next();
+            }
+        };
     }
 }
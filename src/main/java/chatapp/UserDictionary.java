@@ -0,0 +1,74 @@
+package chatapp;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Dense name <-> int id table. Lookups are lock-free; only new names take the lock.
+public class UserDictionary {
+
+    // Process-wide ids for user names; Users and Messages carry these instead of strings.
+    public static final UserDictionary GLOBAL = new UserDictionary();
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int size = 0;
+
+    public int idOf(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : intern(name);
+    }
+
+    // -1 when the name has never been seen.
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    public String nameOf(int id) {
+        String[] current = names;
+        if (id < 0 || id >= current.length || current[id] == null) {
+            throw new IllegalArgumentException("Unknown user id " + id);
+        }
+        return current[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Installs a mapping produced elsewhere, e.g. while decoding a stream that carries its own dictionary.
+    public synchronized void define(int id, String name) {
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            if (existing != id) {
+                throw new IllegalStateException(name + " is already id " + existing + ", not " + id);
+            }
+            return;
+        }
+        ensureCapacity(id + 1);
+        names[id] = name;
+        ids.put(name, id);
+        size = Math.max(size, id + 1);
+    }
+
+    private synchronized int intern(String name) {
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        int id = size;
+        ensureCapacity(id + 1);
+        // The name is stored before the id is published, so anyone who finds the id can resolve it.
+        names[id] = name;
+        ids.put(name, id);
+        size++;
+        return id;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > names.length) {
+            names = Arrays.copyOf(names, Math.max(needed, names.length * 2));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package chatapp;
+
+import java.nio.ByteBuffer;
+
+// LEB128-style variable-length integers, 7 bits per byte, low bits first.
+public final class Varint {
+
+    private Varint() {
+    }
+
+    public static void putLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static void putInt(ByteBuffer out, int value) {
+        putLong(out, value & 0xFFFFFFFFL);
+    }
+
+    public static long getLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    public static int getInt(ByteBuffer in) {
+        return (int) getLong(in);
+    }
+
+    public static int sizeOf(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
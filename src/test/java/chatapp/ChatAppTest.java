@@ -4,11 +4,21 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -72,6 +82,114 @@ public class ChatAppTest {
         assertFalse(jamesReceived, "Unregistered user should not receive new messages through mediator");
     }
 
+    @Test
+    void offlineUser_getsQueuedMessagesOnReRegisterWithUndoAndEditApplied() {
+        server.blockUser("James", "Adrian");
+        server.unregisterUser(james);
+
+        devaansh.sendMessage("James", "first");
+        devaansh.sendMessage("James", "second");
+        devaansh.sendMessage("James", "third");
+        server.undoLastMessage(devaansh);
+        Message second = devaansh.getHistory().getLastSentMessage();
+        server.editMessage(devaansh, second.getId(), "second, edited");
+        adrian.sendMessage("James", "from a blocked sender");
+        assertEquals(Integer.valueOf(2), Integer.valueOf(server.getOfflineStore().size(james.getId())));
+
+        User back = new User("James", server);
+        server.registerUser(back);
+
+        List<String> contents = back.getHistory().getAllMessages().stream().map(Message::getContent).toList();
+        assertEquals(List.of("first", "second, edited"), contents);
+        assertEquals(Integer.valueOf(0), Integer.valueOf(server.getOfflineStore().size(james.getId())));
+        devaansh.sendMessage("James", "live again");
+        assertEquals("live again", back.getHistory().getAllMessages().getLast().getContent());
+    }
+
+    @Test
+    void offlineQueue_spillsPastItsMemoryCapAndNeverHoldsForUnknownNames(@TempDir Path dir) {
+        server.setOfflineStore(new OfflineStore(0, dir));
+        server.unregisterUser(james);
+        for (int i = 0; i < 5; i++) {
+            devaansh.sendMessage("James", "queued " + i);
+        }
+        devaansh.sendMessage("Nobody", "dropped");
+        server.undoLastMessage(devaansh);
+        server.undoLastMessage(devaansh);
+
+        OfflineStore store = server.getOfflineStore();
+        assertTrue(store.diskBytes() > 0);
+        assertEquals(0L, store.memoryBytes());
+        assertFalse(store.isOpen(UserDictionary.GLOBAL.idOf("Nobody")));
+
+        User back = new User("James", server);
+        server.registerUser(back);
+        List<String> contents = back.getHistory().getAllMessages().stream().map(Message::getContent).toList();
+        assertEquals(List.of("queued 0", "queued 1", "queued 2", "queued 3"), contents);
+    }
+
+    @Test
+    void offlineStore_forgetsTheUserOfflineLongestPastItsQueueLimit(@TempDir Path dir) {
+        OfflineStore store = new OfflineStore(OfflineStore.DEFAULT_MEMORY_CAP, dir, 2);
+        for (int id = 1; id <= 3; id++) {
+            store.open(id);
+            store.offer(id, new Message(id, new int[] {id}, Instant.now(), "for " + id));
+        }
+        assertEquals(Integer.valueOf(2), Integer.valueOf(store.queueCount()));
+        assertFalse(store.isOpen(1));
+        assertEquals(List.of(), store.drain(1));
+
+        store.drain(2);
+        store.open(4);
+        assertTrue(store.isOpen(3) && store.isOpen(4));
+        assertEquals("for 3", store.drain(3).getFirst().getContent());
+        store.close();
+    }
+
+    @Test
+    void offlineStore_spillsTheLargestQueuesAndDropsPastItsPerUserAndAgeLimits(@TempDir Path dir) {
+        Message sample = new Message(0, new int[] {1}, Instant.now(), "x".repeat(100));
+        long cap = 20 * ChatHistory.estimateBytes(sample);
+        OfflineStore store = new OfflineStore(cap, dir, 16, 30, Duration.ofMinutes(1));
+        long start = System.nanoTime();
+        store.open(1, start);
+        store.open(2, start);
+        for (int i = 0; i < 18; i++) {
+            store.offer(1, new Message(i, new int[] {1}, Instant.now(), "x".repeat(100)));
+        }
+        store.offer(2, new Message(100, new int[] {2}, Instant.now(), "x".repeat(100)));
+        store.offer(2, new Message(101, new int[] {2}, Instant.now(), "x".repeat(100)));
+        // Over the cap: the big queue goes to disk, the small one stays in memory.
+        store.offer(2, new Message(102, new int[] {2}, Instant.now(), "x".repeat(100)));
+        assertTrue(store.diskBytes() > 0);
+        assertEquals(3 * ChatHistory.estimateBytes(sample), store.memoryBytes());
+
+        for (int i = 18; i < 40; i++) {
+            store.offer(1, new Message(i, new int[] {1}, Instant.now(), "late"));
+        }
+        assertEquals(OfflineStore.Offer.FULL, store.offer(1, new Message(40, new int[] {1}, Instant.now(), "later")));
+        assertEquals(Integer.valueOf(30), Integer.valueOf(store.size(1)));
+        assertEquals(11L, store.droppedCount());
+
+        store.open(3, start + Duration.ofSeconds(30).toNanos());
+        assertEquals(Integer.valueOf(2), Integer.valueOf(store.expire(start + Duration.ofSeconds(61).toNanos())));
+        assertFalse(store.isOpen(1) || store.isOpen(2));
+        assertTrue(store.isOpen(3));
+        store.close();
+    }
+
+    @Test
+    void sendToAFullOfflineQueue_failsWithMessageDropped(@TempDir Path dir) throws Exception {
+        server.setOfflineStore(new OfflineStore(OfflineStore.DEFAULT_MEMORY_CAP, dir, 16, 1, Duration.ofMinutes(1)));
+        server.unregisterUser(james);
+        devaansh.sendMessage("James", "fits").get(5, TimeUnit.SECONDS);
+        CompletableFuture<Message> overflow = devaansh.sendMessage(List.of("James", "Adrian"), "does not fit");
+        ExecutionException e = assertThrows(ExecutionException.class, overflow::get);
+        assertTrue(e.getCause() instanceof MessageDroppedException);
+        assertEquals("does not fit", adrian.getHistory().getAllMessages().getLast().getContent());
+        assertEquals(Integer.valueOf(1), Integer.valueOf(server.getOfflineStore().size(james.getId())));
+    }
+
     @Test
     void blockUser_preventsBlockedSenderFromDeliveringMessages() {
         james.blockUser("Adrian");
@@ -100,6 +218,100 @@ public class ChatAppTest {
         assertTrue(jamesSawDevaansh, "Blocking Adrian should NOT stop messages from Devaansh");
     }
 
+    @Test
+    void blockUsersAndUnblock_changeWhoCanDeliverInBulk() {
+        List<String> imported = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            server.registerUser(new User("Spammer" + i, server));
+            imported.add("Spammer" + i);
+        }
+        imported.add("Adrian");
+        james.blockUsers(imported);
+
+        assertTrue(server.isBlocked("James", "Spammer999"));
+        assertTrue(server.isBlocked("James", "Adrian"));
+        assertFalse(server.isBlocked("James", "Devaansh"));
+        adrian.sendMessage("James", "blocked");
+
+        james.unblockUsers(imported.subList(0, 500));
+        james.unblockUser("Adrian");
+        assertFalse(server.isBlocked("James", "Spammer0"));
+        assertTrue(server.isBlocked("James", "Spammer500"));
+        adrian.sendMessage("James", "after unblock");
+
+        assertEquals(List.of("after unblock"), james.getHistory().getAllMessages().stream().map(Message::getContent).toList());
+    }
+
+    @Test
+    void sendsAndBlocksNamingNobody_internNothing() {
+        devaansh.sendMessage(List.of("James", "NeverSeenRecipient"), "hello");
+        james.blockUser("NeverSeenBlockee");
+        james.blockUsers(List.of("NeverSeenBulk", "Adrian"));
+        server.unblockUser("NeverSeenBlocker", "James");
+
+        for (String name : List.of("NeverSeenRecipient", "NeverSeenBlockee", "NeverSeenBulk", "NeverSeenBlocker")) {
+            assertEquals(Integer.valueOf(-1), Integer.valueOf(UserDictionary.GLOBAL.lookup(name)), name);
+        }
+        assertFalse(server.isBlocked("James", "NeverSeenBlockee"));
+        assertTrue(server.isBlocked("James", "Adrian"));
+        assertEquals(List.of("James"), james.getHistory().getAllMessages().getLast().getRecipients());
+    }
+
+    @Test
+    void blockList_bulkChangesCountOnlyRealChangesAndShrinkBackToEmpty() {
+        BlockList list = new BlockList();
+        assertTrue(list.isEmpty());
+        assertEquals(Integer.valueOf(3), Integer.valueOf(list.addAll(new int[] {5, 700, 5, 64})));
+        assertEquals(Integer.valueOf(3), Integer.valueOf(list.size()));
+        assertTrue(list.contains(700));
+        assertFalse(list.contains(701));
+
+        assertEquals(Integer.valueOf(1), Integer.valueOf(list.removeAll(new int[] {700, 9})));
+        assertFalse(list.contains(700));
+        assertTrue(list.remove(5));
+        assertFalse(list.remove(5));
+        assertTrue(list.remove(64));
+        assertTrue(list.isEmpty());
+        assertFalse(list.contains(64));
+    }
+
+    @Test
+    void blockList_staysSmallForAHighIdAndTurnsIntoABitsetWhenDense() {
+        BlockList sparse = new BlockList();
+        sparse.add(50_000_000);
+        assertTrue(sparse.contains(50_000_000));
+        assertFalse(sparse.contains(49_999_999));
+        assertTrue(sparse.footprint() < 64, "One high id must not allocate a bitset up to it");
+
+        BlockList dense = new BlockList();
+        int[] ids = new int[1_000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 2 * i;
+        }
+        dense.addAll(ids);
+        assertTrue(dense.footprint() < 4L * ids.length, "Dense ids should be held as a bitset");
+        assertTrue(dense.contains(1_998));
+        assertFalse(dense.contains(1_999));
+        dense.add(50_000_000);
+        assertTrue(dense.footprint() <= 4L * dense.size(), "A far outlier should fall back to the sorted array");
+        assertTrue(dense.contains(50_000_000) && dense.contains(0));
+        assertEquals(Integer.valueOf(1_001), Integer.valueOf(dense.size()));
+    }
+
+    @Test
+    void users_getDenseInternedIdsAndMessagesResolveNamesFromThem() {
+        assertNotEquals(devaansh.getId(), james.getId());
+        assertEquals(james.getId(), new User("James", server).getId(), "The same name should always intern to the same id");
+
+        devaansh.sendMessage(List.of("James", "Adrian"), "ids please");
+        Message sent = devaansh.getHistory().getLastSentMessage();
+
+        assertEquals(devaansh.getId(), sent.getSenderId());
+        assertEquals(List.of("James", "Adrian"), sent.getRecipients());
+        assertTrue(sent.involves(adrian.getId()));
+        assertTrue(server.isBlocked(james.getId(), adrian.getId()) == server.isBlocked("James", "Adrian"));
+    }
+
     @Test
     void sendMessage_oneRecipient_deliversToRecipientAndSenderHistory() {
         devaansh.sendMessage("James", "Hey James, are you coming to class today?");
@@ -136,6 +348,50 @@ public class ChatAppTest {
         assertTrue(devaanshSawAdrian, "Devaansh did NOT block Adrian, so he should see the message");
     }
 
+    @Test
+    void sendToRoom_deliversOneSharedMessageToEveryMemberExceptBlockers() {
+        devaansh.joinRoom("cs5800");
+        james.joinRoom("cs5800");
+        adrian.joinRoom("cs5800");
+        james.blockUser("Adrian");
+
+        Message posted = adrian.sendToRoom("cs5800", "room hello").join();
+
+        assertTrue(posted.isRoomMessage());
+        assertEquals("cs5800", posted.getRoom());
+        assertSame(posted, devaansh.getHistory().getAllMessages().getLast(),
+                "Members should hold a reference to the same shared message");
+        assertFalse(james.getHistory().contains(posted), "James blocked Adrian, so the room post should skip him");
+        assertEquals(1, adrian.getHistory().size(), "The sender should record the post once, not receive it back");
+
+        adrian.undoLastMessage();
+        assertFalse(devaansh.getHistory().contains(posted), "Undo should retract the post from every member");
+    }
+
+    @Test
+    void rooms_doNotShareIdsWithUsersAndSeeNewBlocksAtOnce() {
+        User hashX = new User("#x", server);
+        server.registerUser(hashX);
+        devaansh.joinRoom("x");
+        james.joinRoom("x");
+
+        Message posted = devaansh.sendToRoom("x", "to room x").join();
+        assertEquals("x", posted.getRoom());
+        assertEquals(0, hashX.getHistory().size(), "A user named #x is not room x");
+
+        james.blockUser("Devaansh");
+        devaansh.sendToRoom("x", "after the block");
+        assertEquals(1, james.getHistory().size(), "A block applies to the very next room post");
+    }
+
+    @Test
+    void sendToRoom_rejectsNonMembers() {
+        server.createRoom("private");
+        devaansh.joinRoom("private");
+
+        assertThrows(IllegalArgumentException.class, () -> james.sendToRoom("private", "let me in"));
+    }
+
     @Test
     void undoLastMessage_removesMessageFromRecipientAndLeavesSystemNotice() {
         devaansh.sendMessage("James", "I might be late today.");
@@ -185,6 +441,105 @@ public class ChatAppTest {
         assertTrue(jamesHasSystemForSecond, "A SYSTEM retraction notice should appear after undo");
     }
 
+    @Test
+    void undoLastMessage_removesEveryCopyOfASelfSendOrRepeatedRecipient() {
+        devaansh.sendMessage("Devaansh", "note to self");
+        assertEquals(2L, devaansh.getHistory().getAllMessages().stream()
+                .filter(m -> m.getContent().equals("note to self")).count());
+        devaansh.undoLastMessage();
+        List<Message> mine = devaansh.getHistory().getAllMessages();
+        assertTrue(mine.stream().noneMatch(m -> m.getContent().equals("note to self")));
+        assertEquals(Integer.valueOf(1), Integer.valueOf(mine.size()));
+        assertEquals("SYSTEM", mine.getFirst().getSender());
+
+        devaansh.sendMessage(List.of("James", "James"), "said twice");
+        devaansh.undoLastMessage();
+        List<String> jamesContents = james.getHistory().getAllMessages().stream().map(Message::getContent).toList();
+        assertFalse(jamesContents.contains("said twice"));
+        assertEquals(2L, jamesContents.stream().filter(c -> c.contains("Message retracted by Devaansh")).count());
+    }
+
+    @Test
+    void undoLastMessage_repeatedUndosKeepRemainingMessagesInOrder() {
+        for (int i = 0; i < 200; i++) {
+            devaansh.sendMessage("James", "msg " + i);
+        }
+        for (int i = 0; i < 150; i++) {
+            devaansh.undoLastMessage();
+        }
+
+        List<String> remaining = james.getHistory().getAllMessages().stream()
+                .filter(m -> m.getSender().equals("Devaansh"))
+                .map(Message::getContent)
+                .toList();
+        assertEquals(50, remaining.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("msg " + i, remaining.get(i));
+        }
+        assertEquals("msg 49", devaansh.getHistory().getLastSentMessage().getContent());
+    }
+
+    @Test
+    void undoLastMessages_retractsTheNewestNInOrder() {
+        for (int i = 0; i < 5; i++) {
+            devaansh.sendMessage("James", "msg " + i);
+        }
+        assertEquals(3, devaansh.undoLastMessages(3));
+        assertEquals("msg 1", devaansh.getHistory().getLastSentMessage().getContent());
+        assertEquals(2, devaansh.undoLastMessages(10), "Only what is left can be undone");
+        assertNull(devaansh.getHistory().getLastSentMessage());
+    }
+
+    @Test
+    void editMessage_reachesEveryRecipientAndUndoRetractsTheEditedMessage() {
+        Message sent = devaansh.sendMessage(List.of("James", "Adrian"), "see you at 5").join();
+
+        Message edited = devaansh.editMessage(sent.getId(), "see you at 6");
+
+        assertEquals(sent.getId(), edited.getId());
+        for (User u : List.of(devaansh, james, adrian)) {
+            List<String> contents = u.getHistory().getAllMessages().stream().map(Message::getContent).toList();
+            assertTrue(contents.contains("see you at 6"), u.getName() + " should see the edit");
+            assertFalse(contents.contains("see you at 5"), u.getName() + " should no longer see the original");
+        }
+        Iterator<Message> conversation = james.iterator(devaansh);
+        assertEquals("see you at 6", conversation.next().getContent());
+
+        assertEquals("see you at 5", server.revertEdit(devaansh, sent.getId()).getContent());
+        assertEquals("see you at 5", james.getHistory().getAllMessages().getFirst().getContent());
+
+        devaansh.undoLastMessage();
+        assertFalse(james.getHistory().contains(sent));
+    }
+
+    @Test
+    void editMessage_outsideTheUndoWindowIsRejected() {
+        User terse = new User("Terse", server, RetentionPolicy.unbounded().withUndoDepth(2));
+        server.registerUser(terse);
+        Message first = terse.sendMessage("James", "one").join();
+        terse.sendMessage("James", "two");
+        terse.sendMessage("James", "three");
+
+        assertThrows(IllegalArgumentException.class, () -> terse.editMessage(first.getId(), "uno"));
+        assertEquals(2, terse.undoLastMessages(5), "Undo depth bounds how far back undo reaches");
+    }
+
+    @Test
+    void sendMessage_retriedWithTheSameKeyDeliversOnceAndUndoRetractsIt() throws Exception {
+        Message first = devaansh.sendMessage("James", "retried", "req-1").get();
+        Message retry = devaansh.sendMessage("James", "retried", "req-1").get();
+        Message other = devaansh.sendMessage("James", "retried", "req-2").get();
+
+        assertEquals(first.getId(), retry.getId());
+        assertNotEquals(first.getId(), other.getId());
+        assertEquals(Integer.valueOf(2), Integer.valueOf(james.getHistory().getAllMessages().size()));
+
+        devaansh.undoLastMessage();
+        devaansh.undoLastMessage();
+        assertTrue(james.getHistory().getAllMessages().stream().allMatch(m -> m.getSender().equals("SYSTEM")));
+        assertEquals(1L, server.getDedupCache().getHits());
+    }
+
     @Test
     void undoLastMessage_whenNoMessagesDoesNotThrow() {
         assertDoesNotThrow(
@@ -235,6 +590,244 @@ public class ChatAppTest {
         assertFalse(hasAny, "If two users never exchanged messages with this user, iterator should be empty");
     }
 
+    @Test
+    void iterator_dropsRetractedMessagesFromTheConversation() {
+        devaansh.sendMessage("James", "keep me");
+        devaansh.sendMessage(List.of("James", "Adrian"), "retract me");
+        devaansh.undoLastMessage();
+
+        Iterator<Message> withJames = devaansh.iterator(james);
+        assertEquals("keep me", withJames.next().getContent());
+        assertFalse(withJames.hasNext(), "Retracted message should no longer appear in the conversation");
+        assertFalse(devaansh.iterator(adrian).hasNext(), "Adrian's only conversation with Devaansh was retracted");
+    }
+
+    @Test
+    void boundedHistory_spillsOldMessagesAndPagesThemBackInOrder() {
+        User archivist = new User("Archivist", server, RetentionPolicy.maxMessages(100));
+        server.registerUser(archivist);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                (i % 2 == 0 ? james : adrian).sendMessage("Archivist", "note " + i);
+            }
+            ChatHistory history = archivist.getHistory();
+
+            assertTrue(history.hotSize() <= 100, "Hot tier should respect maxMessages");
+            assertEquals(1000, history.hotSize() + history.coldSize());
+            assertTrue(history.coldBytes() > 0, "Evicted messages should be on disk");
+
+            List<Message> all = history.getAllMessages();
+            assertEquals(1000, all.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("note " + i, all.get(i).getContent());
+            }
+
+            int fromJames = 0;
+            for (Iterator<Message> it = archivist.iterator(james); it.hasNext(); ) {
+                assertEquals("James", it.next().getSender());
+                fromJames++;
+            }
+            assertEquals(500, fromJames);
+        } finally {
+            archivist.getHistory().close();
+        }
+    }
+
+    @Test
+    void boundedHistory_undoRemovesAMessageThatAlreadySpilled() {
+        User archivist = new User("Archivist", server, RetentionPolicy.maxMessages(10));
+        server.registerUser(archivist);
+        try {
+            devaansh.sendMessage("Archivist", "will be retracted");
+            for (int i = 0; i < 30; i++) {
+                james.sendMessage("Archivist", "filler " + i);
+            }
+            devaansh.undoLastMessage();
+
+            assertFalse(archivist.getHistory().getAllMessages().stream()
+                    .anyMatch(m -> m.getContent().equals("will be retracted")));
+        } finally {
+            archivist.getHistory().close();
+        }
+    }
+
+    @Test
+    void boundedHistories_shareSpillSegmentsAndReleaseDeadBlocks(@TempDir Path dir) {
+        ColdStore store = ColdStore.shared(dir);
+        RetentionPolicy policy = new RetentionPolicy(10, 0, java.time.Duration.ofDays(1), dir);
+        List<ChatHistory> histories = new ArrayList<>();
+        for (int h = 0; h < 50; h++) {
+            ChatHistory history = new ChatHistory(policy);
+            history.addHistory(List.of());
+            history.recordSentMsgs(List.of());
+            for (int i = 0; i < 30; i++) {
+                history.addHistory(new Message("James", List.of("Devaansh"), Instant.now(), "note " + i));
+            }
+            histories.add(history);
+        }
+        assertEquals(Integer.valueOf(1), Integer.valueOf(store.segmentCount()), "Histories should spill into one shared segment");
+
+        ChatHistory first = histories.getFirst();
+        long coldBefore = first.coldBytes();
+        for (Message msg : first.getAllMessages().subList(0, first.coldSize())) {
+            first.removeMessage(msg);
+        }
+        assertEquals(Integer.valueOf(0), Integer.valueOf(first.coldSize()));
+        assertTrue(first.coldBytes() < coldBefore, "Blocks with nothing live should be released");
+        histories.forEach(ChatHistory::close);
+    }
+
+    @Test
+    void boundedHistory_readersKeepTheirPointInTimeAcrossSpills(@TempDir Path dir) {
+        ChatHistory history = new ChatHistory(new RetentionPolicy(10, 0, java.time.Duration.ofDays(1), dir));
+        for (int i = 0; i < 30; i++) {
+            history.addHistory(new Message("James", List.of("Devaansh"), Instant.now(), "note " + i));
+        }
+        Iterator<Message> withDevaansh = history.iterator(devaansh);
+        List<Message> all = history.getAllMessages();
+
+        withDevaansh.next();
+        for (int i = 30; i < 60; i++) {
+            history.addHistory(new Message("James", List.of("Devaansh"), Instant.now(), "note " + i));
+        }
+        List<String> seen = new ArrayList<>(List.of("note 0"));
+        withDevaansh.forEachRemaining(m -> seen.add(m.getContent()));
+        assertEquals(30, seen.size(), "A spill while iterating must neither repeat nor add messages");
+
+        history.removeMessage(all.get(1));
+        assertEquals(30, all.size());
+        for (int i = 0; i < 30; i++) {
+            assertEquals("note " + i, all.get(i).getContent());
+        }
+        history.close();
+    }
+
+    @Test
+    void latestAndBefore_pageBackwardsThroughTheWholeHistory() {
+        for (int i = 0; i < 120; i++) {
+            james.sendMessage("Devaansh", "line " + i);
+        }
+        ChatHistory history = devaansh.getHistory();
+
+        HistoryPage page = history.latest(50);
+        assertEquals(50, page.getMessages().size());
+        assertEquals("line 70", page.getMessages().getFirst().getContent());
+        assertEquals("line 119", page.getMessages().getLast().getContent());
+        assertTrue(page.hasMore());
+
+        page = history.before(page.olderCursor(), 50);
+        assertEquals("line 20", page.getMessages().getFirst().getContent());
+        page = history.before(page.olderCursor(), 50);
+        assertEquals(20, page.getMessages().size());
+        assertEquals("line 0", page.getMessages().getFirst().getContent());
+        assertFalse(page.hasMore());
+        assertThrows(UnsupportedOperationException.class, () -> history.latest(5).getMessages().clear());
+    }
+
+    @Test
+    void afterAndBetween_pageForwardsWithinATimeRange() {
+        for (int i = 0; i < 30; i++) {
+            james.sendMessage("Devaansh", "line " + i);
+        }
+        ChatHistory history = devaansh.getHistory();
+        List<Message> all = history.getAllMessages();
+        Instant from = all.get(10).getTimestamp();
+        Instant to = all.get(20).getTimestamp();
+
+        HistoryPage page = history.between(from, to, 1000);
+        assertFalse(page.hasMore());
+        assertTrue(page.getMessages().stream()
+                .allMatch(m -> !m.getTimestamp().isBefore(from) && m.getTimestamp().isBefore(to)));
+        assertTrue(page.getMessages().contains(all.get(10)));
+        assertFalse(page.getMessages().contains(all.get(20)));
+
+        page = history.after(HistoryCursor.of(all.get(9)), 5);
+        assertEquals("line 10", page.getMessages().getFirst().getContent());
+        assertEquals("line 14", page.getMessages().getLast().getContent());
+        assertTrue(page.hasMore());
+        page = history.after(page.newerCursor(), 100);
+        assertEquals(15, page.getMessages().size());
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    void paging_followsAppendOrderWhenTimestampsArriveOutOfOrder() {
+        Instant t0 = Instant.parse("2025-01-01T00:00:00Z");
+        ChatHistory history = new ChatHistory();
+        for (int seconds : new int[] {0, 10, 5, 20, 15}) {
+            history.addHistory(new Message("James", List.of("Devaansh"), t0.plusSeconds(seconds), "at " + seconds));
+        }
+
+        HistoryPage page = history.latest(2);
+        assertEquals(List.of("at 20", "at 15"), page.getMessages().stream().map(Message::getContent).toList());
+        page = history.before(page.olderCursor(), 2);
+        assertEquals(List.of("at 10", "at 5"), page.getMessages().stream().map(Message::getContent).toList());
+        page = history.before(page.olderCursor(), 2);
+        assertEquals(List.of("at 0"), page.getMessages().stream().map(Message::getContent).toList());
+        assertFalse(page.hasMore());
+
+        page = history.after(HistoryCursor.of(history.getAllMessages().get(2)), 10);
+        assertEquals(List.of("at 20", "at 15"), page.getMessages().stream().map(Message::getContent).toList());
+        page = history.between(t0.plusSeconds(5), t0.plusSeconds(16), 10);
+        assertEquals(List.of("at 10", "at 5", "at 15"), page.getMessages().stream().map(Message::getContent).toList());
+    }
+
+    @Test
+    void pageWith_returnsOnlyTheConversationAndSurvivesARetractedAnchor() {
+        for (int i = 0; i < 10; i++) {
+            james.sendMessage("Devaansh", "james " + i);
+            adrian.sendMessage("Devaansh", "adrian " + i);
+        }
+        HistoryPage page = devaansh.pageWith(james, null, 4);
+        assertEquals(List.of("james 6", "james 7", "james 8", "james 9"),
+                page.getMessages().stream().map(Message::getContent).toList());
+
+        // The anchor is retracted; its timestamp still places the next page.
+        HistoryCursor anchor = page.olderCursor();
+        james.undoLastMessages(4);
+        page = devaansh.pageWith(james, anchor, 3);
+        assertEquals(List.of("james 3", "james 4", "james 5"),
+                page.getMessages().stream().map(Message::getContent).toList());
+        assertTrue(page.hasMore());
+    }
+
+    @Test
+    void boundedHistory_pagesCrossFromTheHotTierIntoSpilledMessages() {
+        User archivist = new User("Archivist", server, RetentionPolicy.maxMessages(100));
+        server.registerUser(archivist);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                (i % 2 == 0 ? james : adrian).sendMessage("Archivist", "note " + i);
+            }
+            ChatHistory history = archivist.getHistory();
+
+            List<String> seen = new ArrayList<>();
+            HistoryPage page = history.latest(64);
+            while (true) {
+                seen.addAll(0, page.getMessages().stream().map(Message::getContent).toList());
+                if (!page.hasMore()) {
+                    break;
+                }
+                page = history.before(page.olderCursor(), 64);
+            }
+            assertEquals(1000, seen.size());
+            assertEquals("note 0", seen.getFirst());
+            assertEquals("note 999", seen.getLast());
+
+            page = history.between(null, null, 10);
+            assertEquals("note 0", page.getMessages().getFirst().getContent());
+            page = history.after(HistoryCursor.of(history.getAllMessages().get(895)), 10);
+            assertEquals("note 896", page.getMessages().getFirst().getContent());
+            assertEquals("note 905", page.getMessages().getLast().getContent());
+
+            page = archivist.pageWith(james, null, 600);
+            assertEquals(500, page.getMessages().size());
+            assertFalse(page.hasMore());
+        } finally {
+            archivist.getHistory().close();
+        }
+    }
+
     @Test
     void printMyHistory_doesNotThrowAndReflectsCurrentMessages() {
         adrian.sendMessage("James", "hello james");
@@ -263,5 +856,149 @@ public class ChatAppTest {
 
         assertEquals(beforeSize, afterSize, "Printing history should not change the stored history");
     }
-}
 
+    @Test
+    void sendBatch_deliversInOrderAndSkipsBlockedPairs() {
+        james.blockUser("Adrian");
+        List<Message> sent = server.sendBatch(List.of(
+                new OutgoingMessage(devaansh, "James", "d1"),
+                new OutgoingMessage(adrian, List.of("James", "Devaansh"), "a1"),
+                new OutgoingMessage(devaansh, List.of("James", "Adrian"), "d2"),
+                new OutgoingMessage(adrian, "James", "a2"))).join();
+
+        assertEquals(4, sent.size());
+        assertEquals(List.of(sent.get(0), sent.get(2)), james.getHistory().getAllMessages(), "James keeps Devaansh's lines in order and none of Adrian's");
+        assertTrue(devaansh.getHistory().getAllMessages().containsAll(List.of(sent.get(0), sent.get(1), sent.get(2))));
+        assertTrue(adrian.getHistory().getAllMessages().contains(sent.get(2)));
+
+        devaansh.undoLastMessage();
+        assertFalse(james.getHistory().contains(sent.get(2)), "Undo should retract the last message of the batch");
+        assertTrue(james.getHistory().contains(sent.get(0)));
+    }
+
+    @Test
+    void userSendBatch_onAsyncServerCompletesOnceEveryLineIsDelivered() throws Exception {
+        ChatServer async = new ChatServer(16, BackpressurePolicy.BLOCK);
+        User a = new User("A", async);
+        User b = new User("B", async);
+        async.registerUser(a);
+        async.registerUser(b);
+        try {
+            List<Message> sent = a.sendBatch(List.of("B"), List.of("one", "two", "three")).get(5, TimeUnit.SECONDS);
+
+            assertEquals(sent, b.getHistory().getAllMessages());
+        } finally {
+            async.shutdown();
+        }
+    }
+
+    @Test
+    void asyncServer_futureCompletesOnceAllRecipientsHaveTheMessage() throws Exception {
+        ChatServer async = new ChatServer(16, BackpressurePolicy.BLOCK);
+        User a = new User("A", async);
+        User b = new User("B", async);
+        User c = new User("C", async);
+        async.registerUser(a);
+        async.registerUser(b);
+        async.registerUser(c);
+        try {
+            Message sent = a.sendMessage(List.of("B", "C"), "async hello").get(5, TimeUnit.SECONDS);
+
+            assertTrue(b.getHistory().getAllMessages().contains(sent), "B should have the message once the future completes");
+            assertTrue(c.getHistory().getAllMessages().contains(sent), "C should have the message once the future completes");
+        } finally {
+            async.shutdown();
+        }
+    }
+
+    @Test
+    void asyncServer_failPolicyRejectsWhenMailboxIsFull() throws Exception {
+        ChatServer async = new ChatServer(1, BackpressurePolicy.FAIL);
+        CountDownLatch release = new CountDownLatch(1);
+        User slow = new User("Slow", async) {
+            @Override
+            public void receiveMessageInternal(Message msg) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.receiveMessageInternal(msg);
+            }
+        };
+        User sender = new User("Sender", async);
+        async.registerUser(slow);
+        async.registerUser(sender);
+        try {
+            CompletableFuture<Message> inFlight = sender.sendMessage("Slow", "one");
+            CompletableFuture<Message> rejected = null;
+            for (int i = 0; i < 10 && rejected == null; i++) {
+                CompletableFuture<Message> f = sender.sendMessage("Slow", "overflow " + i);
+                if (f.isCompletedExceptionally()) {
+                    rejected = f;
+                }
+            }
+            assertNotNull(rejected, "A full mailbox should reject sends under FAIL");
+            CompletableFuture<Message> failed = rejected;
+            ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get());
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+
+            release.countDown();
+            inFlight.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            async.shutdown();
+        }
+    }
+
+    @Test
+    void mailbox_completesEveryFutureEvenWhenClosedUnderASender() throws Exception {
+        Mailbox mailbox = new Mailbox("Closing", 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        mailbox.submit(() -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, BackpressurePolicy.BLOCK);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> queued = mailbox.submit(() -> { }, BackpressurePolicy.BLOCK);
+
+        ExecutionException dropped = assertThrows(ExecutionException.class,
+                () -> mailbox.submit(() -> { }, BackpressurePolicy.DROP).get(5, TimeUnit.SECONDS));
+        assertTrue(dropped.getCause() instanceof MessageDroppedException);
+
+        CompletableFuture<CompletableFuture<Void>> blocked = CompletableFuture.supplyAsync(
+                () -> mailbox.submit(() -> { }, BackpressurePolicy.BLOCK));
+        mailbox.close();
+        release.countDown();
+        CompletableFuture<Void> late = blocked.get(5, TimeUnit.SECONDS);
+        try {
+            late.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        queued.get(5, TimeUnit.SECONDS);
+        ExecutionException closed = assertThrows(ExecutionException.class,
+                () -> mailbox.submit(() -> { }, BackpressurePolicy.BLOCK).get(5, TimeUnit.SECONDS));
+        assertTrue(closed.getCause() instanceof RejectedExecutionException);
+    }
+
+    @Test
+    void mailbox_reportsErrorsThrownByADeliveryAndKeepsDraining() throws Exception {
+        Mailbox mailbox = new Mailbox("Faulty", 4);
+        try {
+            CompletableFuture<Void> broken = mailbox.submit(() -> {
+                throw new AssertionError("boom");
+            }, BackpressurePolicy.BLOCK);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> broken.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof AssertionError);
+            mailbox.submit(() -> { }, BackpressurePolicy.BLOCK).get(5, TimeUnit.SECONDS);
+        } finally {
+            mailbox.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package chatapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatClusterTest {
+
+    @Test
+    void shardRing_spreadsUsersAndMovesFewWhenAShardIsAdded() {
+        ShardRing four = new ShardRing(4);
+        ShardRing five = new ShardRing(5);
+        int[] counts = new int[4];
+        int moved = 0;
+        for (int i = 0; i < 20_000; i++) {
+            String name = "user" + i;
+            int before = four.shardOf(name);
+            counts[before]++;
+            int after = five.shardOf(name);
+            if (after != before) {
+                assertEquals(4, after, "Users only move to the new shard");
+                moved++;
+            }
+        }
+        for (int count : counts) {
+            assertTrue(count > 3_500 && count < 6_500, "Unbalanced ring: " + count);
+        }
+        assertTrue(moved > 2_500 && moved < 5_500, "About a fifth should move, moved " + moved);
+        assertEquals(four.shardOf("user7"), four.shardOf(UserDictionary.GLOBAL.idOf("user7")));
+    }
+
+    @Test
+    void inMemoryCluster_deliversBlocksUndoesAndEditsAcrossShards() throws Exception {
+        try (ChatCluster cluster = new ChatCluster(4, new InMemoryTransport())) {
+            exerciseCluster(cluster);
+        }
+    }
+
+    @Test
+    void loopbackSocketCluster_deliversBlocksUndoesAndEditsAcrossShards() throws Exception {
+        try (ChatCluster cluster = new ChatCluster(4, new LoopbackSocketTransport())) {
+            exerciseCluster(cluster);
+        }
+    }
+
+    @Test
+    void registerUser_rejectsAUserTheRingPlacesOnAnotherShard() {
+        try (ChatCluster cluster = new ChatCluster(4, new InMemoryTransport())) {
+            cluster.setEventSink(NoOpEventSink.INSTANCE);
+            String name = usersOnDistinctShards(cluster, 2).get(1);
+            ChatServer wrong = cluster.shard((cluster.getRing().shardOf(name) + 1) % 4);
+            assertThrows(IllegalArgumentException.class, () -> wrong.registerUser(new User(name, wrong)));
+        }
+    }
+
+    @Test
+    void loopbackSocketTransport_keepsReadingPastAnEnvelopeTheShardRejects() throws Exception {
+        LoopbackSocketTransport transport = new LoopbackSocketTransport();
+        ShardRing ring = new ShardRing(2);
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((t, e) -> { });
+        try (ChatCluster cluster = new ChatCluster(ring, transport, () -> new ChatServer() {
+            @Override
+            void receiveFromShard(ShardEnvelope envelope) {
+                if (envelope.getMessages().stream().anyMatch(m -> m.getContent().equals("poison"))) {
+                    throw new IllegalStateException("rejected");
+                }
+                super.receiveFromShard(envelope);
+            }
+        })) {
+            cluster.setEventSink(NoOpEventSink.INSTANCE);
+            List<String> names = usersOnDistinctShards(cluster, 2);
+            User alice = cluster.createUser(names.get(0));
+            User bob = cluster.createUser(names.get(1));
+
+            alice.sendMessage(bob.getName(), "poison");
+            alice.sendMessage(bob.getName(), "after");
+            assertTrue(cluster.awaitQuiescence(5, TimeUnit.SECONDS));
+            assertEquals(List.of("after"), contents(bob));
+            assertEquals(1L, transport.failedEnvelopes());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(previous);
+        }
+    }
+
+    private static void exerciseCluster(ChatCluster cluster) throws InterruptedException {
+        cluster.setEventSink(NoOpEventSink.INSTANCE);
+        List<String> names = usersOnDistinctShards(cluster, 3);
+        User alice = cluster.createUser(names.get(0));
+        User bob = cluster.createUser(names.get(1));
+        User carol = cluster.createUser(names.get(2));
+
+        alice.sendMessage(List.of(bob.getName(), carol.getName()), "hello both");
+        // Carol's block list lives on Carol's shard; Alice's shard forwards it there.
+        cluster.shardFor(alice.getName()).blockUser(carol.getName(), alice.getName());
+        assertTrue(cluster.awaitQuiescence(5, TimeUnit.SECONDS));
+        assertTrue(cluster.isBlocked(carol.getName(), alice.getName()));
+
+        alice.sendMessage(List.of(bob.getName(), carol.getName()), "only bob");
+        alice.sendBatch(List.of(bob.getName()), List.of("batched 1", "batched 2"));
+        assertTrue(cluster.awaitQuiescence(5, TimeUnit.SECONDS));
+
+        assertEquals(List.of("hello both", "only bob", "batched 1", "batched 2"), contents(bob));
+        assertEquals(List.of("hello both"), contents(carol));
+
+        Message edited = alice.editMessage(alice.getHistory().getAllMessages().get(1).getId(), "only bob, edited");
+        alice.undoLastMessage();
+        assertTrue(cluster.awaitQuiescence(5, TimeUnit.SECONDS));
+
+        List<String> bobSees = contents(bob);
+        assertEquals(List.of("hello both", "only bob, edited", "batched 1",
+                "(Message retracted by " + alice.getName() + " from " + bob.getName() + ")"), bobSees);
+        assertEquals(edited.getId(), bob.getHistory().getAllMessages().get(1).getId());
+        assertEquals(1, contents(carol).size(), "Carol never had the blocked message to retract");
+
+        cluster.shardFor(alice.getName()).unblockUsers(carol.getName(), List.of(alice.getName(), bob.getName()));
+        assertTrue(cluster.awaitQuiescence(5, TimeUnit.SECONDS));
+        assertFalse(cluster.isBlocked(carol.getName(), alice.getName()));
+        alice.sendMessage(carol.getName(), "unblocked");
+        assertTrue(cluster.awaitQuiescence(5, TimeUnit.SECONDS));
+        assertEquals(List.of("hello both", "unblocked"), contents(carol));
+
+        // Bob and Carol are homed elsewhere but joined a room on Alice's shard.
+        ChatServer aliceShard = cluster.shardFor(alice.getName());
+        aliceShard.joinRoom("lobby", List.of(alice, bob, carol));
+        aliceShard.blockUser(carol.getName(), alice.getName());
+        alice.sendToRoom("lobby", "to the room");
+        assertTrue(cluster.awaitQuiescence(5, TimeUnit.SECONDS));
+        assertEquals("to the room", contents(bob).getLast());
+        assertEquals(List.of("hello both", "unblocked"), contents(carol), "Carol's shard applies her block to room posts");
+    }
+
+    private static List<String> contents(User usr) {
+        List<String> out = new ArrayList<>();
+        for (Message m : usr.getHistory().getAllMessages()) {
+            out.add(m.getContent());
+        }
+        return out;
+    }
+
+    private static List<String> usersOnDistinctShards(ChatCluster cluster, int count) {
+        List<String> names = new ArrayList<>();
+        boolean[] taken = new boolean[cluster.shardCount()];
+        for (int i = 0; names.size() < count; i++) {
+            String name = "member" + i;
+            int shard = cluster.getRing().shardOf(name);
+            if (!taken[shard]) {
+                taken[shard] = true;
+                names.add(name);
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,114 @@
+package chatapp;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatMetricsTest {
+
+    @Test
+    void counters_trackSendsDeliveriesBlocksMissingRecipientsAndUndos() {
+        ChatServer server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        ChatMetrics metrics = server.enableMetrics();
+        User devaansh = new User("Devaansh", server);
+        User james = new User("James", server);
+        User adrian = new User("Adrian", server);
+        server.registerUser(devaansh);
+        server.registerUser(james);
+        server.registerUser(adrian);
+        server.blockUser("Adrian", "Devaansh");
+
+        devaansh.sendMessage(List.of("James", "Adrian", "Nobody"), "hi");
+        devaansh.sendMessage("James", "again");
+        devaansh.undoLastMessage();
+        james.undoLastMessage();
+
+        ChatMetricsSnapshot snap = metrics.snapshot();
+        assertEquals(2, snap.getMessagesSent());
+        assertEquals(2, snap.getRecipientsDelivered());
+        assertEquals(1, snap.getBlockedDrops());
+        assertEquals(1, snap.getMissingRecipients());
+        assertEquals(1, snap.getUndos());
+        assertEquals(1, snap.getEmptyUndos());
+        assertEquals(2, snap.getSendLatency().getCount());
+        assertEquals(1, snap.getUndoLatency().getCount());
+        assertEquals(Integer.valueOf(james.getHistory().size()), snap.getHistorySizes().get("James"));
+    }
+
+    @Test
+    void historyIteration_isRecordedWhenTheCallerReachesTheEnd() {
+        ChatServer server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        ChatMetrics metrics = server.enableMetrics();
+        User devaansh = new User("Devaansh", server);
+        User james = new User("James", server);
+        server.registerUser(devaansh);
+        server.registerUser(james);
+        james.sendMessage("Devaansh", "hello");
+
+        Iterator<Message> it = devaansh.iterator(james);
+        assertEquals(0, metrics.getHistoryIterationLatency().getCount());
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.hasNext();
+        assertEquals(1, metrics.getHistoryIterationLatency().getCount());
+    }
+
+    @Test
+    void disabledMetrics_recordNothing() {
+        ChatServer server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        User devaansh = new User("Devaansh", server);
+        server.registerUser(devaansh);
+        server.registerUser(new User("James", server));
+        devaansh.sendMessage("James", "hi");
+
+        assertSame(ChatMetrics.DISABLED, server.getMetrics());
+        assertEquals(0, server.getMetrics().getMessagesSent());
+        assertEquals(0, server.getMetrics().getSendLatency().getCount());
+    }
+
+    @Test
+    void histogram_percentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100_000; v++) {
+            histogram.record(v * 1000);
+        }
+        HistogramSnapshot snap = histogram.snapshot();
+        assertEquals(100_000, snap.getCount());
+        assertEquals(50_000_000, snap.getP50(), 50_000_000 * 0.04);
+        assertEquals(99_000_000, snap.getP99(), 99_000_000 * 0.04);
+        assertEquals(100_000_000, snap.getMax());
+        assertTrue(snap.getP999() <= snap.getMax());
+    }
+
+    @Test
+    void mbean_exposesCountersAndHistogramsOverJmx() throws Exception {
+        ChatServer server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        ChatMetrics metrics = server.enableMetrics();
+        User devaansh = new User("Devaansh", server);
+        server.registerUser(devaansh);
+        server.registerUser(new User("James", server));
+        devaansh.sendMessage("James", "hi");
+
+        ObjectName name = metrics.registerMBean("metrics-test");
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, mbeans.getAttribute(name, "MessagesSent"));
+            CompositeData latency = (CompositeData) mbeans.getAttribute(name, "SendLatency");
+            assertEquals(1L, latency.get("count"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+    }
+}
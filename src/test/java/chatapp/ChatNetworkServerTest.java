@@ -0,0 +1,142 @@
+package chatapp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatNetworkServerTest {
+
+    private ChatServer server;
+    private ChatNetworkServer network;
+
+    @BeforeEach
+    void setUp() {
+        server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        network = new ChatNetworkServer(server, new InetSocketAddress("127.0.0.1", 0));
+        network.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        network.close();
+    }
+
+    @Test
+    void clients_sendBlockUndoAndPageHistoryWithPushedDeliveries() throws Exception {
+        BlockingQueue<Message> bobInbox = new LinkedBlockingQueue<>();
+        try (ChatClient alice = new ChatClient("127.0.0.1", network.getPort());
+             ChatClient bob = new ChatClient("127.0.0.1", network.getPort())) {
+            bob.setDeliveryListener(bobInbox::add);
+            alice.register("NetAlice").get(5, TimeUnit.SECONDS);
+            bob.register("NetBob").get(5, TimeUnit.SECONDS);
+
+            long id = alice.send(List.of("NetBob"), "hi over the wire").get(5, TimeUnit.SECONDS);
+            Message pushed = bobInbox.poll(5, TimeUnit.SECONDS);
+            assertNotNull(pushed, "Delivery should be pushed to Bob");
+            assertEquals(id, pushed.getId());
+            assertEquals("NetAlice", pushed.getSender());
+            assertEquals("hi over the wire", pushed.getContent());
+
+            long retried = alice.send(List.of("NetBob"), "sent twice", "retry-1").get(5, TimeUnit.SECONDS);
+            assertEquals(retried, (long) alice.send(List.of("NetBob"), "sent twice", "retry-1").get(5, TimeUnit.SECONDS));
+            assertEquals(retried, bobInbox.poll(5, TimeUnit.SECONDS).getId());
+            alice.undo().get(5, TimeUnit.SECONDS);
+            Message notice = bobInbox.poll(5, TimeUnit.SECONDS);
+            assertEquals("SYSTEM", notice.getSender());
+
+            bob.block("NetAlice").get(5, TimeUnit.SECONDS);
+            alice.send(List.of("NetBob"), "you will not see this").get(5, TimeUnit.SECONDS);
+            assertTrue(server.isBlocked("NetBob", "NetAlice"));
+
+            for (int i = 0; i < 5; i++) {
+                bob.send(List.of("NetAlice"), "line " + i).get(5, TimeUnit.SECONDS);
+            }
+            HistoryPage page = alice.history("NetBob", null, 3).get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("line 2", "line 3", "line 4"), page.getMessages().stream().map(Message::getContent).toList());
+            assertTrue(page.hasMore());
+            page = alice.history("NetBob", page.olderCursor(), 10).get(5, TimeUnit.SECONDS);
+            assertEquals("line 0", page.getMessages().get(page.getMessages().size() - 2).getContent());
+            assertFalse(page.hasMore());
+
+            assertTrue(bobInbox.stream().noneMatch(m -> m.getContent().equals("you will not see this")));
+        }
+    }
+
+    @Test
+    void pipelinedRequests_allCompleteAndDeliveriesArriveInOrder() throws Exception {
+        int count = 2_000;
+        List<Message> received = new ArrayList<>();
+        try (ChatClient sender = new ChatClient("127.0.0.1", network.getPort());
+             ChatClient receiver = new ChatClient("127.0.0.1", network.getPort())) {
+            CompletableFuture<Void> all = new CompletableFuture<>();
+            receiver.setDeliveryListener(msg -> {
+                received.add(msg);
+                if (received.size() == count) {
+                    all.complete(null);
+                }
+            });
+            sender.register("PipeSender").get(5, TimeUnit.SECONDS);
+            receiver.register("PipeReceiver").get(5, TimeUnit.SECONDS);
+
+            sender.setAutoFlush(false);
+            List<CompletableFuture<Long>> acks = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                acks.add(sender.send(List.of("PipeReceiver"), "burst " + i));
+            }
+            sender.flush();
+            for (CompletableFuture<Long> ack : acks) {
+                ack.get(10, TimeUnit.SECONDS);
+            }
+            all.get(10, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals("burst " + i, received.get(i).getContent());
+        }
+    }
+
+    @Test
+    void requestsBeforeRegisteringOrForATakenName_fail() throws Exception {
+        try (ChatClient first = new ChatClient("127.0.0.1", network.getPort());
+             ChatClient second = new ChatClient("127.0.0.1", network.getPort())) {
+            ExecutionException early = assertThrows(ExecutionException.class,
+                    () -> first.send(List.of("Nobody"), "too soon").get(5, TimeUnit.SECONDS));
+            assertTrue(early.getCause().getMessage().contains("Register first"));
+
+            first.register("Taken").get(5, TimeUnit.SECONDS);
+            assertThrows(ExecutionException.class, () -> second.register("Taken").get(5, TimeUnit.SECONDS));
+        }
+        // Closing the connection unregisters its user.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.getUser("Taken") != null && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertNull(server.getUser("Taken"));
+    }
+
+    @Test
+    void namesNobodyRegistered_areRefusedWithoutBeingInterned() throws Exception {
+        try (ChatClient client = new ChatClient("127.0.0.1", network.getPort())) {
+            client.register("Lonely").get(5, TimeUnit.SECONDS);
+            ExecutionException unknown = assertThrows(ExecutionException.class,
+                    () -> client.send(List.of("NeverRegistered"), "anyone there?").get(5, TimeUnit.SECONDS));
+            assertTrue(unknown.getCause().getMessage().contains("Unknown user NeverRegistered"));
+            assertThrows(ExecutionException.class, () -> client.block("NeverBlocked").get(5, TimeUnit.SECONDS));
+            assertTrue(client.history("NeverPaged", null, 10).get(5, TimeUnit.SECONDS).getMessages().isEmpty());
+        }
+        assertEquals(Integer.valueOf(-1), Integer.valueOf(UserDictionary.GLOBAL.lookup("NeverRegistered")));
+        assertEquals(Integer.valueOf(-1), Integer.valueOf(UserDictionary.GLOBAL.lookup("NeverBlocked")));
+        assertEquals(Integer.valueOf(-1), Integer.valueOf(UserDictionary.GLOBAL.lookup("NeverPaged")));
+    }
+}
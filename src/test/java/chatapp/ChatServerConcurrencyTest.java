@@ -0,0 +1,213 @@
+package chatapp;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatServerConcurrencyTest {
+
+    private static final int SENDERS = 8;
+    private static final int MESSAGES_PER_SENDER = 2_000;
+
+    private static PrintStream originalOut;
+
+    @BeforeAll
+    static void muteConsole() {
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @AfterAll
+    static void restoreConsole() {
+        System.setOut(originalOut);
+    }
+
+    @Test
+    void concurrentSenders_toSharedRecipient_loseAndDuplicateNothing() throws Exception {
+        ChatServer server = new ChatServer();
+        User inbox = new User("Inbox", server);
+        server.registerUser(inbox);
+
+        List<User> senders = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            User s = new User("Sender" + i, server);
+            server.registerUser(s);
+            senders.add(s);
+        }
+
+        runConcurrently(senders, (s, n) -> s.sendMessage("Inbox", s.getName() + "#" + n));
+
+        List<Message> received = inbox.getHistory().getAllMessages();
+        assertEquals(SENDERS * MESSAGES_PER_SENDER, received.size(), "Every send should land exactly once");
+
+        Set<String> distinct = new HashSet<>();
+        for (Message m : received) {
+            distinct.add(m.getContent());
+        }
+        assertEquals(received.size(), distinct.size(), "No message should be delivered twice");
+
+        for (User s : senders) {
+            assertEquals(MESSAGES_PER_SENDER, s.getHistory().getAllMessages().size(),
+                    "Each sender should record every one of its own messages");
+        }
+    }
+
+    @Test
+    void concurrentRegistrationBlockingAndSending_keepsBlockListsConsistent() throws Exception {
+        ChatServer server = new ChatServer();
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            User u = new User("User" + i, server);
+            server.registerUser(u);
+            users.add(u);
+        }
+        User spammer = new User("Spammer", server);
+        server.registerUser(spammer);
+
+        runConcurrently(users, (u, n) -> {
+            if (n == 0) {
+                u.blockUser("Spammer");
+            }
+            String peer = "User" + ((Integer.parseInt(u.getName().substring(4)) + 1) % SENDERS);
+            u.sendMessage(peer, u.getName() + "#" + n);
+        });
+
+        spammer.sendMessage(users.stream().map(User::getName).toList(), "buy now");
+
+        for (User u : users) {
+            assertTrue(server.isBlocked(u.getName(), "Spammer"));
+            assertFalse(u.getHistory().getAllMessages().stream().anyMatch(m -> m.getSender().equals("Spammer")),
+                    "Blocked sender should never reach " + u.getName());
+            assertEquals(2 * MESSAGES_PER_SENDER, u.getHistory().getAllMessages().size(),
+                    "Each user should hold its own sends plus every message from its neighbour");
+        }
+    }
+
+    @Test
+    void concurrentUndo_betweenTwoUsers_doesNotDeadlockOrLeaveRetractedMessages() throws Exception {
+        ChatServer server = new ChatServer();
+        User a = new User("A", server);
+        User b = new User("B", server);
+        server.registerUser(a);
+        server.registerUser(b);
+
+        runConcurrently(List.of(a, b), (u, n) -> {
+            u.sendMessage(u == a ? "B" : "A", u.getName() + "#" + n);
+            u.undoLastMessage();
+        });
+
+        assertTrue(a.getHistory().getAllMessages().stream().allMatch(m -> m.getSender().equals("SYSTEM")));
+        assertTrue(b.getHistory().getAllMessages().stream().allMatch(m -> m.getSender().equals("SYSTEM")));
+        assertEquals(MESSAGES_PER_SENDER, a.getHistory().getAllMessages().size());
+        assertEquals(MESSAGES_PER_SENDER, b.getHistory().getAllMessages().size());
+    }
+
+    @Test
+    void readersSeeConsistentSnapshotsWhileOneWriterAppendsEditsAndUndoes() throws Exception {
+        ChatServer server = new ChatServer();
+        User writer = new User("Writer", server);
+        User inbox = new User("Inbox", server);
+        server.registerUser(writer);
+        server.registerUser(inbox);
+
+        int readers = 4;
+        ExecutorService pool = Executors.newFixedThreadPool(readers);
+        AtomicBoolean done = new AtomicBoolean();
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int r = 0; r < readers; r++) {
+                futures.add(pool.submit(() -> {
+                    int snapshots = 0;
+                    int lastSize = 0;
+                    while (!done.get()) {
+                        List<Message> all = inbox.getHistory().getAllMessages();
+                        // Strictly increasing sequence numbers: nothing torn, duplicated or reordered.
+                        int count = 0;
+                        int previous = -1;
+                        for (Message m : all) {
+                            count++;
+                            if (m.getSender().equals("SYSTEM")) {
+                                continue;
+                            }
+                            int seq = Integer.parseInt(m.getContent().split(" ")[0]);
+                            assertTrue(seq > previous, "Out of order at " + seq);
+                            previous = seq;
+                        }
+                        assertEquals(all.size(), count, "A snapshot must not change while it is read");
+                        assertTrue(count >= lastSize, "An undo swaps the message for a notice");
+                        lastSize = count;
+
+                        HistoryPage page = inbox.pageWith(writer, null, 20);
+                        assertTrue(page.getMessages().size() <= 20);
+                        snapshots++;
+                    }
+                    return snapshots;
+                }));
+            }
+
+            for (int n = 0; n < MESSAGES_PER_SENDER * 5; n++) {
+                writer.sendMessage("Inbox", n + " text");
+                if (n % 7 == 0) {
+                    writer.editMessage(writer.getHistory().getLastSentMessage().getId(), n + " edited");
+                }
+                if (n % 11 == 0) {
+                    writer.undoLastMessage();
+                }
+            }
+            done.set(true);
+            for (Future<Integer> f : futures) {
+                assertTrue(f.get() > 0, "Every reader should have taken snapshots");
+            }
+        } finally {
+            done.set(true);
+            pool.shutdownNow();
+        }
+
+        int undone = (MESSAGES_PER_SENDER * 5 + 10) / 11;
+        List<Message> all = inbox.getHistory().getAllMessages();
+        assertEquals(MESSAGES_PER_SENDER * 5, all.size());
+        assertEquals(undone, all.stream().filter(m -> m.getSender().equals("SYSTEM")).count());
+        assertTrue(all.stream().noneMatch(m -> m.getContent().startsWith("0 ")), "Undone messages stay gone");
+    }
+
+    private interface UserAction {
+        void run(User user, int n);
+    }
+
+    private static void runConcurrently(List<User> actors, UserAction action) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(actors.size());
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (User u : actors) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    for (int n = 0; n < MESSAGES_PER_SENDER; n++) {
+                        action.run(u, n);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
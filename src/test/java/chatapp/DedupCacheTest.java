@@ -0,0 +1,45 @@
+package chatapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DedupCacheTest {
+
+    @Test
+    void putIfAbsent_returnsTheFirstValuePerSenderAndKeyUntilReleased() {
+        DedupCache<String> cache = new DedupCache<>(1024, Duration.ofMinutes(1));
+        assertNull(cache.putIfAbsent(1, "k", "first"));
+        assertEquals("first", cache.putIfAbsent(1, "k", "retry"));
+        assertNull(cache.putIfAbsent(2, "k", "other sender"), "Keys are scoped to their sender");
+
+        assertFalse(cache.remove(1, "k", "retry"), "Only the recorded value releases the key");
+        assertTrue(cache.remove(1, "k", "first"));
+        assertNull(cache.putIfAbsent(1, "k", "after failure"));
+        assertEquals("after failure", cache.putIfAbsent(1, "k", "again"));
+        assertEquals(2L, cache.getHits());
+    }
+
+    @Test
+    void entries_expireOnceTheWindowHasPassed() {
+        DedupCache<String> cache = new DedupCache<>(1024, Duration.ofSeconds(8));
+        long t0 = System.nanoTime();
+        assertNull(cache.putIfAbsent(1, "k", "first", t0));
+        assertEquals("first", cache.putIfAbsent(1, "k", "retry", t0 + TimeUnit.SECONDS.toNanos(5)));
+        assertNull(cache.putIfAbsent(1, "k", "late", t0 + TimeUnit.SECONDS.toNanos(9)));
+        assertEquals(Integer.valueOf(1), Integer.valueOf(cache.size(t0 + TimeUnit.SECONDS.toNanos(9))));
+    }
+
+    @Test
+    void capacity_boundsHowManyKeysAreKept() {
+        DedupCache<Integer> cache = new DedupCache<>(1024, Duration.ofHours(1));
+        for (int i = 0; i < 100_000; i++) {
+            assertNull(cache.putIfAbsent(7, "key-" + i, i));
+        }
+        assertTrue(cache.size() <= 1024, "size " + cache.size());
+        assertEquals(Integer.valueOf(99_999), cache.putIfAbsent(7, "key-99999", -1), "The newest keys are still remembered");
+    }
+}
@@ -0,0 +1,89 @@
+package chatapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventSinkTest {
+
+    @Test
+    void asyncSink_writesEventsInOrderWithTheConsoleFormat() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChatServer server = new ChatServer();
+        try (AsyncEventSink sink = new AsyncEventSink(new PrintStream(bytes, true, StandardCharsets.UTF_8), 1024)) {
+            server.setEventSink(sink);
+            User devaansh = new User("Devaansh", server);
+            User james = new User("James", server);
+            server.registerUser(devaansh);
+            server.registerUser(james);
+            server.blockUser("James", "Devaansh");
+            devaansh.sendMessage(List.of("James"), "hi");
+            server.undoLastMessage(devaansh);
+            sink.flush();
+        }
+
+        String[] lines = bytes.toString(StandardCharsets.UTF_8).split(System.lineSeparator());
+        assertEquals("[SERVER] Registered user: Devaansh", lines[0]);
+        assertEquals("[SERVER] Registered user: James", lines[1]);
+        assertEquals("[SERVER] James has blocked Devaansh", lines[2]);
+        assertEquals("[SERVER] Message from Devaansh to James BLOCKED.", lines[3]);
+        assertTrue(lines[4].startsWith("[SERVER] Delivered: "));
+        assertTrue(lines[5].startsWith("[SERVER] Undo request by Devaansh for message \"hi\""));
+        assertEquals("[SERVER] Message undone for Devaansh", lines[6]);
+    }
+
+    @Test
+    void asyncSink_dropsInsteadOfBlockingWhenTheRingIsFull() throws Exception {
+        // A stream that stalls the writer until released, so the ring fills up.
+        Object gate = new Object();
+        boolean[] open = {false};
+        PrintStream stalled = new PrintStream(new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                synchronized (gate) {
+                    while (!open[0]) {
+                        try {
+                            gate.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                super.write(b, off, len);
+            }
+        }, true, StandardCharsets.UTF_8);
+
+        AsyncEventSink sink = new AsyncEventSink(stalled, 8);
+        for (int i = 0; i < 1000; i++) {
+            sink.userRegistered("user" + i);
+        }
+        assertTrue(sink.droppedEvents() > 0);
+        synchronized (gate) {
+            open[0] = true;
+            gate.notifyAll();
+        }
+        sink.close();
+    }
+
+    @Test
+    void noOpSink_silencesTheServer() {
+        PrintStream original = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        try {
+            ChatServer server = new ChatServer();
+            server.setEventSink(NoOpEventSink.INSTANCE);
+            User devaansh = new User("Devaansh", server);
+            server.registerUser(devaansh);
+            server.printUserHistory(devaansh);
+        } finally {
+            System.setOut(original);
+        }
+        assertEquals(0, bytes.size());
+    }
+}
@@ -0,0 +1,134 @@
+package chatapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FairSchedulerTest {
+
+    @Test
+    void rateLimiter_admitsABurstThenRefillsOverTime() {
+        RateLimiter limiter = new RateLimiter(10, 5);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(1, 1, t0));
+        }
+        assertFalse(limiter.tryAcquire(1, 1, t0));
+        assertTrue(limiter.tryAcquire(2, 1, t0), "Buckets are per sender");
+
+        long later = t0 + TimeUnit.MILLISECONDS.toNanos(100);
+        assertTrue(limiter.tryAcquire(1, 1, later));
+        assertFalse(limiter.tryAcquire(1, 1, later));
+
+        // A send wider than the burst costs the whole burst, once the bucket is full.
+        long full = t0 + TimeUnit.SECONDS.toNanos(1);
+        assertTrue(limiter.tryAcquire(1, 500, full));
+        assertFalse(limiter.tryAcquire(1, 1, full));
+    }
+
+    @Test
+    void queuedSends_areServedByDeficitRoundRobinOverRecipientCost() throws Exception {
+        FairScheduler scheduler = new FairScheduler(1, 10, 100);
+        ChatMetrics metrics = new ChatMetrics(true, Map.of());
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch holding = new CountDownLatch(1);
+
+        // Occupy the only slot so everything below queues.
+        Thread holder = Thread.ofVirtual().start(() -> scheduler.submit(99, 1, () -> {
+            holding.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return CompletableFuture.completedFuture("held");
+        }, metrics));
+        assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            String name = "heavy" + i;
+            futures.add(scheduler.submit(1, 10, () -> {
+                order.add(name);
+                return CompletableFuture.completedFuture(name);
+            }, metrics));
+        }
+        for (int i = 0; i < 2; i++) {
+            String name = "light" + i;
+            futures.add(scheduler.submit(2, 1, () -> {
+                order.add(name);
+                return CompletableFuture.completedFuture(name);
+            }, metrics));
+        }
+        assertEquals(Integer.valueOf(7), Integer.valueOf(scheduler.pending()));
+
+        release.countDown();
+        holder.join();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("heavy0", "light0", "light1", "heavy1", "heavy2", "heavy3", "heavy4"), order);
+        assertEquals(7L, metrics.getQueuedSends());
+        assertEquals(7L, metrics.getQueueWait().getCount());
+    }
+
+    @Test
+    void server_rejectsSendsOverTheRateLimitAndCountsThem() throws Exception {
+        ChatServer server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        ChatMetrics metrics = server.enableMetrics();
+        server.enableRateLimiting(0.001, 3);
+        server.enableFairScheduling(4, FairScheduler.DEFAULT_QUANTUM, 8);
+        User chatty = new User("Chatty", server);
+        User quiet = new User("Quiet", server);
+        server.registerUser(chatty);
+        server.registerUser(quiet);
+
+        chatty.sendMessage(List.of("Quiet", "Nobody"), "two recipients").get(5, TimeUnit.SECONDS);
+        chatty.sendMessage("Quiet", "third token").get(5, TimeUnit.SECONDS);
+        CompletableFuture<Message> limited = chatty.sendMessage("Quiet", "over the limit");
+        ExecutionException e = assertThrows(ExecutionException.class, limited::get);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        quiet.sendMessage("Chatty", "unaffected").get(5, TimeUnit.SECONDS);
+
+        assertEquals(1L, metrics.getRejectedSends());
+        assertEquals(Integer.valueOf(3), Integer.valueOf(quiet.getHistory().size()));
+        server.shutdown();
+    }
+
+    @Test
+    void sendBatch_chargesEachSendersShareAgainstTheRateLimit() throws Exception {
+        ChatServer server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        ChatMetrics metrics = server.enableMetrics();
+        server.enableRateLimiting(0.001, 3);
+        User burst = new User("Burst", server);
+        User calm = new User("Calm", server);
+        server.registerUser(burst);
+        server.registerUser(calm);
+
+        List<Message> sent = server.sendBatch(List.of(
+                new OutgoingMessage(burst, "Calm", "one"),
+                new OutgoingMessage(calm, "Burst", "reply"),
+                new OutgoingMessage(burst, List.of("Calm", "Nobody"), "two and three"))).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("one", "reply", "two and three"), sent.stream().map(Message::getContent).toList());
+
+        CompletableFuture<List<Message>> limited = server.sendBatch(List.of(
+                new OutgoingMessage(burst, "Calm", "over the limit"),
+                new OutgoingMessage(calm, "Burst", "still goes out")));
+        ExecutionException e = assertThrows(ExecutionException.class, limited::get);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertEquals("still goes out", burst.getHistory().getAllMessages().getLast().getContent());
+        assertEquals(1L, metrics.getRejectedSends());
+        server.shutdown();
+    }
+}
@@ -0,0 +1,166 @@
+package chatapp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryArchiveTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void exportThenImport_rebuildsEveryHistoryAcrossManyBlocks() {
+        ChatServer source = new ChatServer();
+        source.setEventSink(NoOpEventSink.INSTANCE);
+        User ana = new User("ArcAna", source);
+        User ben = new User("ArcBen", source);
+        // Spills past 500 messages, so its export streams through the cold tier too.
+        User cho = new User("ArcCho", source, new RetentionPolicy(500, 0, null, dir));
+        source.registerUser(ana);
+        source.registerUser(ben);
+        source.registerUser(cho);
+        source.joinRoom("arc-room", List.of(ana, ben, cho));
+        for (int i = 0; i < 10_000; i++) {
+            ana.sendMessage(List.of("ArcBen", "ArcCho"), "line " + i + " é✓");
+            if (i % 7 == 0) {
+                ben.sendMessage("ArcAna", "reply " + i);
+            }
+        }
+        cho.sendToRoom("arc-room", "room post");
+        ana.undoLastMessage();
+
+        Path file = dir.resolve("histories.arc");
+        long written = source.exportHistories(file);
+
+        ChatServer target = new ChatServer();
+        target.setEventSink(NoOpEventSink.INSTANCE);
+        assertEquals(written, target.importHistories(file));
+        for (String name : List.of("ArcAna", "ArcBen", "ArcCho")) {
+            List<Message> expected = source.getUser(name).getHistory().getAllMessages();
+            List<Message> actual = target.getUser(name).getHistory().getAllMessages();
+            assertEquals(expected.size(), actual.size(), name);
+            for (int i = 0; i < expected.size(); i++) {
+                Message e = expected.get(i);
+                Message a = actual.get(i);
+                assertEquals(e.getSender(), a.getSender());
+                assertEquals(e.getRecipients(), a.getRecipients());
+                assertEquals(e.getTimestamp(), a.getTimestamp());
+                assertEquals(e.getContent(), a.getContent());
+                assertEquals(e.getRoomId(), a.getRoomId());
+            }
+        }
+        // Imported messages get fresh ids, but one message shared by several histories stays one.
+        Message shared = target.getUser("ArcAna").getHistory().getAllMessages().getFirst();
+        assertSame(shared, target.getUser("ArcBen").getHistory().getAllMessages().stream()
+                .filter(m -> m.getId() == shared.getId()).findFirst().orElseThrow());
+        assertTrue(Files.exists(file));
+        cho.getHistory().close();
+    }
+
+    @Test
+    void import_appendsToExistingUsersAndRejectsOtherFiles() throws Exception {
+        ChatServer source = new ChatServer();
+        source.setEventSink(NoOpEventSink.INSTANCE);
+        User dee = new User("ArcDee", source);
+        User eli = new User("ArcEli", source);
+        source.registerUser(dee);
+        source.registerUser(eli);
+        dee.sendMessage("ArcEli", "archived");
+        Path file = dir.resolve("small.arc");
+        source.exportHistories(file);
+
+        ChatServer target = new ChatServer();
+        target.setEventSink(NoOpEventSink.INSTANCE);
+        User eliAgain = new User("ArcEli", target);
+        target.registerUser(eliAgain);
+        assertEquals(2L, target.importHistories(file));
+        assertSame(eliAgain, target.getUser("ArcEli"));
+        List<String> contents = new ArrayList<>();
+        eliAgain.getHistory().forEachMessage(m -> contents.add(m.getContent()));
+        assertEquals(List.of("archived"), contents);
+        assertNotNull(target.getUser("ArcDee"));
+
+        Path bogus = dir.resolve("bogus.arc");
+        Files.writeString(bogus, "definitely not an archive");
+        assertThrows(IllegalArgumentException.class, () -> target.importHistories(bogus));
+    }
+
+    @Test
+    void importingTwice_addsNothingNewAndImportsAreIndexedAndJournaled() {
+        ChatServer source = new ChatServer();
+        source.setEventSink(NoOpEventSink.INSTANCE);
+        User fay = new User("ArcFay", source);
+        User gus = new User("ArcGus", source);
+        source.registerUser(fay);
+        source.registerUser(gus);
+        fay.sendMessage("ArcGus", "kumquat season");
+        gus.sendMessage("ArcFay", "already?");
+        Path file = dir.resolve("twice.arc");
+        long written = source.exportHistories(file);
+
+        Path logs = dir.resolve("journal");
+        try (MessageJournal journal = new MessageJournal(logs, FsyncPolicy.OS)) {
+            ChatServer target = new ChatServer();
+            target.setEventSink(NoOpEventSink.INSTANCE);
+            target.recoverFrom(journal);
+            target.enableSearch();
+            assertEquals(written, target.importHistories(file));
+            assertEquals(0L, target.importHistories(file));
+            assertEquals(2, target.getUser("ArcGus").getHistory().getAllMessages().size());
+            assertEquals(1, target.search(SearchQuery.terms("kumquat")).size());
+        }
+
+        try (MessageJournal journal = new MessageJournal(logs, FsyncPolicy.OS)) {
+            ChatServer recovered = new ChatServer();
+            recovered.recoverFrom(journal);
+            List<String> contents = new ArrayList<>();
+            recovered.getUser("ArcFay").getHistory().forEachMessage(m -> contents.add(m.getContent()));
+            assertEquals(List.of("kumquat season", "already?"), contents);
+        }
+    }
+
+    @Test
+    void importIntoAServerWithTraffic_keepsArchivedMessagesWhoseIdsAreTakenHere() {
+        ChatServer source = new ChatServer();
+        source.setEventSink(NoOpEventSink.INSTANCE);
+        User hal = new User("ArcHal", source);
+        User ivy = new User("ArcIvy", source);
+        source.registerUser(hal);
+        source.registerUser(ivy);
+        for (int i = 0; i < 10; i++) {
+            hal.sendMessage("ArcIvy", "archived " + i);
+        }
+        Path file = dir.resolve("busy.arc");
+        long written = source.exportHistories(file);
+
+        ChatServer target = new ChatServer();
+        List<String> skipped = new ArrayList<>();
+        target.setEventSink(new NoOpEventSink() {
+            @Override
+            public void importSkipped(String name, int count) {
+                skipped.add(name + "=" + count);
+            }
+        });
+        User halHere = new User("ArcHal", target);
+        User ivyHere = new User("ArcIvy", target);
+        target.registerUser(halHere);
+        target.registerUser(ivyHere);
+        // Same ids as the archived messages, different messages.
+        for (Message archived : ivy.getHistory().getAllMessages().subList(0, 5)) {
+            ivyHere.receiveMessageInternal(new Message(archived.getId(), halHere.getId(), new int[] {ivyHere.getId()},
+                    archived.getTimestamp(), "local"));
+        }
+
+        assertEquals(written, target.importHistories(file));
+        assertEquals(Integer.valueOf(15), Integer.valueOf(ivyHere.getHistory().getAllMessages().size()));
+        assertEquals(0L, target.importHistories(file));
+        assertEquals(List.of("ArcHal=10", "ArcIvy=10"), skipped.stream().sorted().toList());
+    }
+}
@@ -0,0 +1,60 @@
+package chatapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageCodecTest {
+
+    @Test
+    void encodeThenDecode_roundTripsEveryField() {
+        MessageCodec codec = new MessageCodec(new UserDictionary());
+        Message original = new Message("Devaansh", List.of("James", "Adrian"),
+                Instant.parse("2025-03-01T10:15:30.123456789Z"), "héllo wörld ✓");
+
+        Message decoded = codec.decode(ByteBuffer.wrap(codec.encode(original)));
+
+        assertEquals(original.getId(), decoded.getId());
+        assertEquals(original.getSender(), decoded.getSender());
+        assertEquals(original.getRecipients(), decoded.getRecipients());
+        assertEquals(original.getTimestamp(), decoded.getTimestamp());
+        assertEquals(original.getContent(), decoded.getContent());
+    }
+
+    @Test
+    void view_walksABufferOfRecordsWithoutBuildingMessages() {
+        UserDictionary dictionary = new UserDictionary();
+        MessageCodec codec = new MessageCodec(dictionary);
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        Instant ts = Instant.now();
+        for (int i = 0; i < 20; i++) {
+            String sender = i % 2 == 0 ? "James" : "Adrian";
+            codec.encode(new Message(sender, List.of("Devaansh"), ts.plusSeconds(i), "msg " + i), buf);
+        }
+
+        int james = dictionary.lookup("James");
+        int matches = 0;
+        MessageView view = new MessageView(dictionary);
+        for (int pos = 0; pos < buf.position(); pos = view.end()) {
+            view.wrap(buf, pos);
+            if (view.hasParticipant(james)) {
+                matches++;
+                assertEquals("James", view.sender());
+            }
+            assertEquals(dictionary.lookup("Devaansh"), view.recipientId(0));
+        }
+        assertEquals(10, matches);
+    }
+
+    @Test
+    void encodedForm_isMuchSmallerThanToString() {
+        MessageCodec codec = new MessageCodec(new UserDictionary());
+        Message msg = new Message("Devaansh", List.of("James", "Adrian"), Instant.now(), "see you at 7");
+
+        assertTrue(codec.encode(msg).length * 2 < msg.toString().length());
+    }
+}
@@ -0,0 +1,270 @@
+package chatapp;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageJournalTest {
+
+    private static PrintStream originalOut;
+
+    @BeforeAll
+    static void muteConsole() {
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @AfterAll
+    static void restoreConsole() {
+        System.setOut(originalOut);
+    }
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoverFrom_rebuildsUsersHistoriesBlocksAndUndos() {
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.EVERY_WRITE)) {
+            ChatServer server = new ChatServer();
+            server.recoverFrom(journal);
+            User dev = new User("Devaansh", server);
+            User james = new User("James", server);
+            User adrian = new User("Adrian", server);
+            server.registerUser(dev);
+            server.registerUser(james);
+            server.registerUser(adrian);
+
+            dev.sendMessage("James", "first");
+            dev.sendMessage(List.of("James", "Adrian"), "second");
+            dev.undoLastMessage();
+            james.blockUser("Adrian");
+            adrian.sendMessage("James", "blocked one");
+            james.blockUsers(List.of("Devaansh", "Ghost"));
+            james.unblockUser("Devaansh");
+        }
+
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.EVERY_WRITE)) {
+            ChatServer recovered = new ChatServer();
+            recovered.recoverFrom(journal);
+
+            User james = recovered.getUser("James");
+            assertNotNull(james, "Registered users should come back after replay");
+            List<String> jamesContents = james.getHistory().getAllMessages().stream()
+                    .filter(m -> !m.getSender().equals("SYSTEM"))
+                    .map(Message::getContent)
+                    .toList();
+            assertEquals(List.of("first"), jamesContents);
+            assertTrue(recovered.isBlocked("James", "Adrian"));
+            assertFalse(recovered.isBlocked("James", "Ghost"), "Names nobody registered are never blocked");
+            assertFalse(recovered.isBlocked("James", "Devaansh"));
+            assertEquals("first", recovered.getUser("Devaansh").getHistory().getLastSentMessage().getContent());
+
+            // New events keep appending to the same log after recovery.
+            recovered.getUser("Devaansh").sendMessage("James", "after restart");
+        }
+
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+            ChatServer again = new ChatServer();
+            again.recoverFrom(journal);
+            assertEquals("after restart", again.getUser("Devaansh").getHistory().getLastSentMessage().getContent());
+        }
+    }
+
+    @Test
+    void recoverFrom_replaysAMixedSenderBatchInBatchOrder() {
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+            ChatServer server = new ChatServer();
+            server.setEventSink(NoOpEventSink.INSTANCE);
+            server.recoverFrom(journal);
+            User al = new User("BatchAl", server);
+            User bo = new User("BatchBo", server);
+            User rue = new User("BatchRue", server);
+            server.registerUser(al);
+            server.registerUser(bo);
+            server.registerUser(rue);
+            server.sendBatch(List.of(
+                    new OutgoingMessage(al, "BatchRue", "a1"),
+                    new OutgoingMessage(bo, "BatchRue", "b1"),
+                    new OutgoingMessage(al, "BatchRue", "a2")));
+            assertEquals(List.of("a1", "b1", "a2"), rue.getHistory().getAllMessages().stream().map(Message::getContent).toList());
+        }
+
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+            ChatServer recovered = new ChatServer();
+            recovered.setEventSink(NoOpEventSink.INSTANCE);
+            recovered.recoverFrom(journal);
+            assertEquals(List.of("a1", "b1", "a2"),
+                    recovered.getUser("BatchRue").getHistory().getAllMessages().stream().map(Message::getContent).toList());
+        }
+    }
+
+    @Test
+    void recoverFrom_replaysEditsAndReverts() {
+        long id;
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+            ChatServer server = new ChatServer();
+            server.recoverFrom(journal);
+            User dev = new User("Devaansh", server);
+            User james = new User("James", server);
+            server.registerUser(dev);
+            server.registerUser(james);
+
+            id = dev.sendMessage("James", "draft").join().getId();
+            dev.editMessage(id, "second draft");
+            dev.editMessage(id, "final");
+            server.revertEdit(dev, id);
+        }
+
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+            ChatServer recovered = new ChatServer();
+            recovered.recoverFrom(journal);
+
+            assertEquals("second draft", recovered.getUser("James").getHistory().getAllMessages().getFirst().getContent());
+            List<String> revisions = recovered.getUser("Devaansh").getHistory().revisions(id).stream()
+                    .map(MessageMemento::getContentSnapshot).toList();
+            assertEquals(List.of("draft", "second draft"), revisions);
+        }
+    }
+
+    @Test
+    void recoverFrom_replaysRoomMembershipAndPosts() {
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+            ChatServer server = new ChatServer();
+            server.recoverFrom(journal);
+            User a = new User("A", server);
+            User b = new User("B", server);
+            User c = new User("C", server);
+            server.registerUser(a);
+            server.registerUser(b);
+            server.registerUser(c);
+            server.joinRoom("team", List.of(a, b));
+            a.sendToRoom("team", "before C joined");
+            c.joinRoom("team");
+            a.sendToRoom("team", "after C joined");
+        }
+
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+            ChatServer recovered = new ChatServer();
+            recovered.recoverFrom(journal);
+
+            assertEquals(2, recovered.getUser("B").getHistory().size());
+            List<Message> seenByC = recovered.getUser("C").getHistory().getAllMessages();
+            assertEquals(1, seenByC.size());
+            assertEquals("after C joined", seenByC.getFirst().getContent());
+            assertEquals("team", seenByC.getFirst().getRoom());
+        }
+    }
+
+    @Test
+    void replay_stopsCleanlyAtATornTail() throws Exception {
+        long goodEnd;
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.EVERY_WRITE)) {
+            ChatServer server = new ChatServer();
+            server.recoverFrom(journal);
+            User a = new User("A", server);
+            User b = new User("B", server);
+            server.registerUser(a);
+            server.registerUser(b);
+            a.sendMessage("B", "survives");
+            goodEnd = journal.position();
+            a.sendMessage("B", "torn");
+        }
+
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[] {0x7f, 0x7f, 0x7f}), goodEnd + 12);
+        }
+
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.EVERY_WRITE)) {
+            ChatServer recovered = new ChatServer();
+            recovered.recoverFrom(journal);
+            assertEquals("survives", recovered.getUser("A").getHistory().getLastSentMessage().getContent());
+            assertEquals(goodEnd, journal.position(), "Appends should resume right after the last intact record");
+        }
+    }
+
+    @Test
+    void appends_rollOverIntoNewSegments() throws Exception {
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.PERIODIC, 4096, 5)) {
+            ChatServer server = new ChatServer();
+            server.recoverFrom(journal);
+            User a = new User("A", server);
+            User b = new User("B", server);
+            server.registerUser(a);
+            server.registerUser(b);
+            for (int i = 0; i < 500; i++) {
+                a.sendMessage("B", "message number " + i);
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.count() > 1, "A small segment size should produce several segment files");
+        }
+
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.PERIODIC, 4096, 5)) {
+            ChatServer recovered = new ChatServer();
+            recovered.recoverFrom(journal);
+            assertEquals(500, recovered.getUser("B").getHistory().size());
+        }
+    }
+
+    @Test
+    void bulkBlocksAreOneRecordAndReplayAsABatch() {
+        long single;
+        long bulk;
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+            ChatServer server = new ChatServer();
+            server.recoverFrom(journal);
+            User james = new User("James", server);
+            server.registerUser(james);
+            for (int i = 0; i <= 100; i++) {
+                server.registerUser(new User("Blockee" + i, server));
+            }
+            long before = journal.position();
+            james.blockUser("Blockee0");
+            single = journal.position() - before;
+            List<String> many = new java.util.ArrayList<>();
+            for (int i = 1; i <= 100; i++) {
+                many.add("Blockee" + i);
+            }
+            before = journal.position();
+            james.blockUsers(many);
+            bulk = journal.position() - before;
+            james.unblockUsers(List.of("Blockee1", "Blockee2"));
+        }
+        assertTrue(bulk < 100 * single / 2, "A bulk block should not cost a record per blockee");
+
+        try (MessageJournal journal = new MessageJournal(dir, FsyncPolicy.OS)) {
+            ChatServer recovered = new ChatServer();
+            recovered.recoverFrom(journal);
+            assertTrue(recovered.isBlocked("James", "Blockee0"));
+            assertTrue(recovered.isBlocked("James", "Blockee100"));
+            assertFalse(recovered.isBlocked("James", "Blockee1"));
+            assertFalse(recovered.isBlocked("James", "Blockee2"));
+        }
+    }
+
+    @Test
+    void writesAfterCloseAreRejected() {
+        MessageJournal journal = new MessageJournal(dir, FsyncPolicy.EVERY_WRITE);
+        journal.logRegister("A");
+        journal.close();
+        journal.close();
+        assertThrows(IllegalStateException.class, () -> journal.logRegister("B"));
+    }
+}
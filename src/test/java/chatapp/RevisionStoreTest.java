@@ -0,0 +1,73 @@
+package chatapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RevisionStoreTest {
+
+    private static Message message(String content) {
+        return new Message("Devaansh", List.of("James"), Instant.now(), content);
+    }
+
+    @Test
+    void edits_storeOnlyTheChangedMiddleAndReplayEveryRevision() {
+        RevisionStore store = new RevisionStore(10);
+        String original = "x".repeat(500) + " meet at 5pm " + "y".repeat(500);
+        Message msg = message(original);
+        store.record(msg);
+        int afterFirst = store.arenaBytes();
+
+        store.edit(msg.getId(), original.replace("5pm", "6pm"), Instant.now());
+        store.edit(msg.getId(), original.replace("5pm", "6:30pm ✓"), Instant.now());
+
+        assertTrue(store.arenaBytes() - afterFirst < 40, "Edits should cost a few bytes, not a copy of the content");
+        List<String> contents = store.revisions(msg.getId()).stream().map(MessageMemento::getContentSnapshot).toList();
+        assertEquals(List.of(original, original.replace("5pm", "6pm"), original.replace("5pm", "6:30pm ✓")), contents);
+        assertEquals(original.replace("5pm", "6:30pm ✓"), store.last().getContent());
+
+        assertEquals(original.replace("5pm", "6pm"), store.revert(msg.getId()).getContent());
+        assertEquals(original, store.revert(msg.getId()).getContent());
+        assertNull(store.revert(msg.getId()), "The original revision cannot be reverted");
+    }
+
+    @Test
+    void depth_isBoundedAndTheOldestMessagesLeaveTheWindow() {
+        RevisionStore store = new RevisionStore(3);
+        Message[] sent = new Message[5];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = message("msg " + i);
+            store.record(sent[i]);
+        }
+        assertEquals(3, store.size());
+        assertNull(store.get(sent[1].getId()));
+        assertNull(store.edit(sent[0].getId(), "too late", Instant.now()));
+
+        assertEquals("msg 4", store.removeLast().getContentSnapshot());
+        assertTrue(store.remove(sent[2].getId()), "Removing by id must not disturb the rest of the stack");
+        assertEquals("msg 3", store.removeLast().getContentSnapshot());
+        assertNull(store.removeLast());
+    }
+
+    @Test
+    void compaction_keepsChainsIntactWhileTheArenaStaysSmall() {
+        RevisionStore store = new RevisionStore(200);
+        Message kept = message("kept");
+        store.record(kept);
+        for (int round = 0; round < 200; round++) {
+            store.edit(kept.getId(), "kept " + round, Instant.now());
+            for (int i = 0; i < 100; i++) {
+                store.record(message("filler " + round + " " + i + " " + "z".repeat(50)));
+            }
+            while (store.size() > 1) {
+                store.removeLast();
+            }
+        }
+        assertEquals(201, store.revisions(kept.getId()).size());
+        assertEquals("kept 199", store.revisions(kept.getId()).getLast().getContentSnapshot());
+        assertTrue(store.arenaBytes() < 64 * 1024, "Dead revisions should be compacted away, arena=" + store.arenaBytes());
+    }
+}
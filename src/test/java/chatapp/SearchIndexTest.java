@@ -0,0 +1,153 @@
+package chatapp;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SearchIndexTest {
+
+    private static final Instant T0 = Instant.parse("2025-01-01T00:00:00Z");
+
+    @Test
+    void termPhraseParticipantAndTimeRange_matchABruteForceScan() {
+        String[] words = {"lunch", "meeting", "deploy", "coffee", "friday", "release", "bug", "fix"};
+        String[] names = {"Ana", "Ben", "Cy", "Dee"};
+        Random random = new Random(7);
+        SearchIndex index = new SearchIndex();
+        List<Message> all = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder content = new StringBuilder();
+            for (int w = 0; w < 1 + random.nextInt(6); w++) {
+                content.append(words[random.nextInt(words.length)]).append(w % 2 == 0 ? " " : ", ");
+            }
+            String from = names[random.nextInt(names.length)];
+            String to = names[random.nextInt(names.length)];
+            Message msg = new Message(from, List.of(to), T0.plusSeconds(i), content.toString().toUpperCase());
+            index.add(msg);
+            all.add(msg);
+        }
+        for (int i = 0; i < all.size(); i += 3) {
+            index.remove(all.get(i));
+        }
+        List<Message> live = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            if (i % 3 != 0) {
+                live.add(all.get(i));
+            }
+        }
+
+        assertEquals(scan(live, m -> tokens(m).contains("deploy") && tokens(m).contains("friday")),
+                index.search(SearchQuery.terms("Deploy FRIDAY")));
+        assertEquals(scan(live, m -> (" " + String.join(" ", tokens(m)) + " ").contains(" bug fix ")),
+                index.search(SearchQuery.phrase("bug fix")));
+
+        Instant from = T0.plusSeconds(1000);
+        Instant to = T0.plusSeconds(2000);
+        List<Message> expected = scan(live, m -> tokens(m).contains("coffee") && m.involves(UserDictionary.GLOBAL.idOf("Cy"))
+                && !m.getTimestamp().isBefore(from) && m.getTimestamp().isBefore(to));
+        assertEquals(expected, index.search(SearchQuery.terms("coffee").withParticipant("Cy").between(from, to)));
+        assertEquals(expected.subList(expected.size() - 5, expected.size()),
+                index.search(SearchQuery.terms("coffee").withParticipant("Cy").between(from, to).limit(5)));
+        assertTrue(index.search(SearchQuery.terms("nonexistent")).isEmpty());
+    }
+
+    @Test
+    void removingMostDocuments_rebuildsWithoutLosingTheRest() {
+        SearchIndex index = new SearchIndex();
+        List<Message> all = new ArrayList<>();
+        for (int i = 0; i < 4000; i++) {
+            Message msg = new Message("Ana", List.of("Ben"), T0.plusMillis(i), (i % 10 == 0 ? "keeper " : "chaff ") + i);
+            index.add(msg);
+            all.add(msg);
+        }
+        for (Message msg : all) {
+            if (!msg.getContent().startsWith("keeper")) {
+                index.remove(msg);
+            }
+        }
+        assertEquals(400, index.size());
+        assertTrue(index.termCount() < 4002, "A rebuild should have dropped the terms of removed messages");
+        assertEquals(400, index.search(SearchQuery.terms("keeper")).size());
+    }
+
+    @Test
+    void server_indexesDeliveriesAndDropsUndoneAndBlockedMessages() {
+        ChatServer server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        User ana = new User("Ana", server);
+        User ben = new User("Ben", server);
+        User cy = new User("Cy", server);
+        server.registerUser(ana);
+        server.registerUser(ben);
+        server.registerUser(cy);
+        ana.sendMessage("Ben", "pizza before search was on");
+        server.enableSearch();
+
+        Message kept = ana.sendMessage("Ben", "pizza tonight?").join();
+        ana.sendMessage("Ben", "pizza or tacos");
+        ana.undoLastMessage();
+        ben.blockUser("Cy");
+        cy.sendMessage("Ben", "pizza spam");
+
+        assertEquals(3, server.search(SearchQuery.terms("pizza")).size(), "Backfilled, live and blocked posts are all indexed");
+        List<String> bens = ben.search("pizza").stream().map(Message::getContent).toList();
+        assertEquals(List.of("pizza before search was on", "pizza tonight?"), bens);
+
+        ana.editMessage(kept.getId(), "sushi tonight?");
+        assertEquals(List.of("sushi tonight?"), ben.search("tonight").stream().map(Message::getContent).toList());
+        assertTrue(ben.search("pizza tonight").isEmpty());
+    }
+
+    @Test
+    void userSearch_seesWhatTheirHistoryHoldsIncludingOtherMembersRoomPosts() {
+        ChatServer server = new ChatServer();
+        server.setEventSink(NoOpEventSink.INSTANCE);
+        User ana = new User("Ana", server);
+        User ben = new User("Ben", server);
+        User cy = new User("Cy", server);
+        server.registerUser(ana);
+        server.registerUser(ben);
+        server.registerUser(cy);
+        server.enableSearch();
+        server.joinRoom("lunch", List.of(ana, ben));
+
+        ana.sendToRoom("lunch", "ramen at noon");
+        assertEquals(List.of("ramen at noon"), ben.search("ramen").stream().map(Message::getContent).toList());
+        assertTrue(cy.search("ramen").isEmpty(), "Cy is not in the room");
+
+        // Visibility follows delivery, not today's block list.
+        cy.sendMessage("Ben", "ramen later?");
+        ben.blockUser("Cy");
+        assertEquals(2, ben.search("ramen").size());
+        assertEquals(1, server.search(ben, SearchQuery.all().inRoom("lunch")).size());
+
+        assertThrows(IllegalArgumentException.class, () -> ben.search("!!!"));
+    }
+
+    @Test
+    void index_doesNotKeepMessagesAlive() throws InterruptedException {
+        SearchIndex index = new SearchIndex();
+        for (int i = 0; i < 1000; i++) {
+            index.add(new Message("Ana", List.of("Ben"), T0.plusMillis(i), "transient " + i));
+        }
+        for (int attempt = 0; attempt < 50 && index.size() > 0; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, index.size(), "Messages nobody holds should drop out of the index");
+        assertTrue(index.search(SearchQuery.terms("transient")).isEmpty());
+    }
+
+    private static List<String> tokens(Message msg) {
+        return SearchIndex.tokenize(msg.getContent());
+    }
+
+    private static List<Message> scan(List<Message> messages, java.util.function.Predicate<Message> match) {
+        return messages.stream().filter(match).toList();
+    }
+}